@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the block level functions in {@link HU01} and
+ * {@link HU01MultiSymbolDecoder}. Each operation processes every compressed
+ * block of the input once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HU01BlockBenchmark {
+
+    @Param({"test1", "test2", "test3", "test4", "test5", "test6", "test7", HU01Corpus.SYNTHETIC})
+    public String input;
+
+    private byte[] hu01;
+    private int[][] blocks;
+    private short[][] tables;
+    private int[][] multiTables;
+    private short[] table;
+    private byte[] destination;
+    private ByteBuffer directSource;
+    private ByteBuffer directDestination;
+
+    @Setup
+    public void setup() throws Exception {
+        hu01 = HU01Corpus.load(input);
+        blocks = HU01Corpus.compressedBlocks(hu01);
+        tables = new short[blocks.length][];
+        multiTables = new int[blocks.length][];
+        int maxCompressed = 0;
+        int maxDecompressed = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            tables[i] = new short[HU01TableCache.TABLE_ENTRIES];
+            if (!HU01.build_decompression_table(ByteBuffer.wrap(hu01, blocks[i][0], 256).slice(), tables[i])) {
+                throw new IllegalStateException("Bad table in block " + i + " of " + input);
+            }
+            multiTables[i] = new int[HU01MultiSymbolDecoder.TABLE_SIZE];
+            HU01MultiSymbolDecoder.buildTable(tables[i], multiTables[i]);
+            maxCompressed = Math.max(maxCompressed, blocks[i][1]);
+            maxDecompressed = Math.max(maxDecompressed, blocks[i][2]);
+        }
+        table = new short[HU01TableCache.TABLE_ENTRIES];
+        destination = new byte[maxDecompressed];
+        directSource = ByteBuffer.allocateDirect(maxCompressed);
+        directDestination = ByteBuffer.allocateDirect(maxDecompressed);
+    }
+
+    @Benchmark
+    public short[] buildDecompressionTable(DecodedBytes decoded) {
+        for (int[] block : blocks) {
+            HU01.build_decompression_table(ByteBuffer.wrap(hu01, block[0], 256).slice(), table);
+            decoded.add(block[2]);
+        }
+        return table;
+    }
+
+    @Benchmark
+    public int[] buildMultiSymbolTable(DecodedBytes decoded) {
+        int[] multiTable = multiTables[0];
+        for (int i = 0; i < blocks.length; i++) {
+            HU01MultiSymbolDecoder.buildTable(tables[i], multiTable);
+            decoded.add(blocks[i][2]);
+        }
+        return multiTable;
+    }
+
+    @Benchmark
+    public byte[] decompressBlock(DecodedBytes decoded) throws HU01Exception {
+        for (int i = 0; i < blocks.length; i++) {
+            int[] block = blocks[i];
+            decoded.add(HU01.decompress_hu01_block(hu01, block[0] + 256, block[1] - 256,
+                    tables[i], destination, 0, block[2]));
+        }
+        return destination;
+    }
+
+    /**
+     * The {@link ByteBuffer} entry point as used with direct buffers.
+     */
+    @Benchmark
+    public ByteBuffer decompressBlockDirect(DecodedBytes decoded) throws HU01Exception {
+        for (int i = 0; i < blocks.length; i++) {
+            int[] block = blocks[i];
+            directSource.clear();
+            directSource.put(hu01, block[0] + 256, block[1] - 256).flip();
+            directDestination.clear();
+            directDestination.limit(block[2]);
+            HU01.decompress_hu01_block(directSource, tables[i], directDestination);
+            decoded.add(block[2]);
+        }
+        return directDestination;
+    }
+
+    @Benchmark
+    public byte[] decompressBlockMultiSymbol(DecodedBytes decoded) throws HU01Exception {
+        for (int i = 0; i < blocks.length; i++) {
+            int[] block = blocks[i];
+            decoded.add(HU01MultiSymbolDecoder.decompress(hu01, block[0] + 256, block[1] - 256,
+                    tables[i], multiTables[i], destination, 0, block[2]));
+        }
+        return destination;
+    }
+}
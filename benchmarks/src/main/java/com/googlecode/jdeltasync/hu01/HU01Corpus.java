@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the HU01 input used by the benchmarks. The {@code test1} to
+ * {@code test7} fixtures are loaded from the class path. {@code synthetic}
+ * is a stream of about {@value #SYNTHETIC_SIZE} uncompressed bytes made up
+ * of the blocks of all fixtures repeated. Since every block carries its own
+ * table and CRC the result is a valid HU01 stream.
+ */
+final class HU01Corpus {
+
+    static final String SYNTHETIC = "synthetic";
+    static final int SYNTHETIC_SIZE = 16 * 1024 * 1024;
+
+    private static final int FIXTURES = 7;
+
+    private HU01Corpus() {
+    }
+
+    /**
+     * Returns the named HU01 stream.
+     */
+    static byte[] load(String name) throws IOException {
+        if (SYNTHETIC.equals(name)) {
+            return synthetic(SYNTHETIC_SIZE);
+        }
+        InputStream in = HU01Corpus.class.getResourceAsStream(name + ".hu01");
+        if (in == null) {
+            throw new IllegalArgumentException("No such input: " + name);
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Concatenates the blocks of all fixtures until at least
+     * {@code minSize} uncompressed bytes have been added.
+     */
+    static byte[] synthetic(int minSize) throws IOException {
+        List<byte[]> fixtures = new ArrayList<byte[]>();
+        for (int i = 1; i <= FIXTURES; i++) {
+            fixtures.add(load("test" + i));
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] first = fixtures.get(0);
+        int headerSize = header(first).getInt(4);
+        baos.write(first, 0, headerSize);
+        long size = 0;
+        while (size < minSize) {
+            for (byte[] hu01 : fixtures) {
+                int start = header(hu01).getInt(4);
+                baos.write(hu01, start, hu01.length - start);
+                size += decompressedSize(hu01);
+            }
+        }
+        byte[] result = baos.toByteArray();
+        header(result).putInt(32, (int) size);
+        return result;
+    }
+
+    /**
+     * Returns the total uncompressed size of a HU01 stream.
+     */
+    static long decompressedSize(byte[] hu01) {
+        return header(hu01).getInt(32) & 0xffffffffL;
+    }
+
+    /**
+     * Returns the offset of the table, the compressed size including the
+     * table and the decompressed size of each compressed block.
+     */
+    static int[][] compressedBlocks(byte[] hu01) {
+        ByteBuffer b = header(hu01);
+        List<int[]> blocks = new ArrayList<int[]>();
+        int pos = b.getInt(4);
+        while (pos < hu01.length) {
+            int headerSize = b.getInt(pos + 4);
+            int decompressedSize = b.getInt(pos + 8);
+            int compressedSize = b.getInt(pos + 16);
+            if (compressedSize != decompressedSize || decompressedSize >= 2048) {
+                blocks.add(new int[] {pos + headerSize, compressedSize, decompressedSize});
+            }
+            pos += headerSize + compressedSize;
+        }
+        return blocks.toArray(new int[blocks.size()][]);
+    }
+
+    private static ByteBuffer header(byte[] hu01) {
+        return ByteBuffer.wrap(hu01).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
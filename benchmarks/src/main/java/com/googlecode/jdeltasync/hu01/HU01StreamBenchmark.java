@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks decompression of entire HU01 streams through
+ * {@link HU01DecompressorInputStream} and {@link HU01DecompressorOutputStream}.
+ * A new {@link HU01Decompressor} is created for each operation like
+ * {@code DeltaSyncClient} does for each message when not using a pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HU01StreamBenchmark {
+
+    @Param({"test1", "test2", "test3", "test4", "test5", "test6", "test7", HU01Corpus.SYNTHETIC})
+    public String input;
+
+    @Param({"REFERENCE", "MULTI_SYMBOL"})
+    public HU01Decompressor.Decoder decoder;
+
+    private byte[] hu01;
+    private byte[] buffer = new byte[4096];
+
+    @Setup
+    public void setup() throws Exception {
+        hu01 = HU01Corpus.load(input);
+    }
+
+    private HU01Decompressor newDecompressor() {
+        HU01Decompressor decompressor = new HU01Decompressor();
+        decompressor.setDecoder(decoder);
+        return decompressor;
+    }
+
+    @Benchmark
+    public long inputStream(DecodedBytes decoded) throws IOException {
+        HU01DecompressorInputStream in = new HU01DecompressorInputStream(
+                new ByteArrayInputStream(hu01), newDecompressor());
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+        }
+        in.close();
+        decoded.add(total);
+        return total;
+    }
+
+    @Benchmark
+    public long outputStream(DecodedBytes decoded) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        HU01DecompressorOutputStream out = new HU01DecompressorOutputStream(counter, newDecompressor());
+        // Write in chunks like DeltaSyncClient does
+        for (int off = 0; off < hu01.length; off += buffer.length) {
+            out.write(hu01, off, Math.min(buffer.length, hu01.length - off));
+        }
+        out.close();
+        decoded.add(counter.count);
+        return counter.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
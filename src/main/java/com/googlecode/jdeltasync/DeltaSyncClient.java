@@ -15,19 +15,15 @@
  */
 package com.googlecode.jdeltasync;
 
+import com.googlecode.jdeltasync.hu01.HU01Decompressor;
 import com.googlecode.jdeltasync.hu01.HU01DecompressorOutputStream;
+import com.googlecode.jdeltasync.hu01.HU01DecompressorPool;
 import com.googlecode.jdeltasync.hu01.HU01Exception;
-import com.googlecode.jdeltasync.message.Clazz;
+import com.googlecode.jdeltasync.hu01.HU01PipelinedOutputStream;
+import com.googlecode.jdeltasync.hu01.HU01Stats;
 import com.googlecode.jdeltasync.message.Command;
-import com.googlecode.jdeltasync.message.FolderAddCommand;
-import com.googlecode.jdeltasync.message.FolderChangeCommand;
-import com.googlecode.jdeltasync.message.FolderDeleteCommand;
-import com.googlecode.jdeltasync.message.MessageAddCommand;
-import com.googlecode.jdeltasync.message.MessageChangeCommand;
-import com.googlecode.jdeltasync.message.MessageDeleteCommand;
 import com.googlecode.jdeltasync.message.SyncRequest;
 import com.googlecode.jdeltasync.message.SyncResponse;
-import com.sun.org.apache.xerces.internal.dom.DeferredNode;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -36,14 +32,17 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.SortedMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeMap;
+import java.util.concurrent.Executor;
 import java.util.regex.Pattern;
 import org.apache.commons.codec.binary.Base64OutputStream;
 import org.apache.http.Header;
@@ -60,6 +59,8 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.URIUtils;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.client.RedirectLocations;
@@ -68,9 +69,11 @@ import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.util.EntityUtils;
 import org.apache.james.mime4j.MimeException;
 import org.apache.james.mime4j.descriptor.BodyDescriptor;
 import org.apache.james.mime4j.message.SimpleContentHandler;
+import org.apache.james.mime4j.parser.Field;
 import org.apache.james.mime4j.parser.MimeStreamParser;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -90,6 +93,30 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
     private static final String DS_BASE_URI = "http://mail.services.live.com";
     private static final byte[] LINE_SEPARATOR;
 
+    private static final XmlUtil.Path SECURITY = XmlUtil.compile("/s:Envelope/s:Header/wsse:Security");
+    private static final XmlUtil.Path SECURITY_USERNAME = XmlUtil.compile("wsse:UsernameToken/wsse:Username");
+    private static final XmlUtil.Path SECURITY_PASSWORD = XmlUtil.compile("wsse:UsernameToken/wsse:Password");
+    private static final XmlUtil.Path SECURITY_CREATED = XmlUtil.compile("wsu:Timestamp/wsu:Created");
+    private static final XmlUtil.Path SECURITY_EXPIRES = XmlUtil.compile("wsu:Timestamp/wsu:Expires");
+    private static final XmlUtil.Path LOGIN_FAULT = XmlUtil.compile("/s:Envelope/s:Body/s:Fault");
+    private static final XmlUtil.Path LOGIN_FAULT_TEXT = XmlUtil.compile("/s:Envelope/s:Body/s:Fault/s:Reason/s:Text");
+    private static final String LOGIN_RESPONSE = 
+        "/s:Envelope/s:Body/wst:RequestSecurityTokenResponseCollection/wst:RequestSecurityTokenResponse/";
+    private static final XmlUtil.Path LOGIN_TICKET = 
+        XmlUtil.compile(LOGIN_RESPONSE + "wst:RequestedSecurityToken/wsse:BinarySecurityToken");
+    private static final XmlUtil.Path LOGIN_FLOW_URL = XmlUtil.compile(LOGIN_RESPONSE + "psf:pp/psf:flowurl");
+    private static final XmlUtil.Path LOGIN_REQUEST_STATUS = XmlUtil.compile(LOGIN_RESPONSE + "psf:pp/psf:reqstatus");
+    private static final XmlUtil.Path LOGIN_ERROR_STATUS = XmlUtil.compile(LOGIN_RESPONSE + "psf:pp/psf:errorstatus");
+    private static final XmlUtil.Path FETCH_STATUS = 
+        XmlUtil.compile("/itemop:ItemOperations/itemop:Responses/itemop:Fetch/itemop:Status");
+    private static final XmlUtil.Path FETCHES = 
+        XmlUtil.compile("/itemop:ItemOperations/itemop:Responses/itemop:Fetch");
+    private static final XmlUtil.Path FETCH_RESPONSE_STATUS = XmlUtil.compile("itemop:Status");
+    private static final XmlUtil.Path FETCH_SERVER_ID = XmlUtil.compile("*:ServerId");
+    private static final XmlUtil.Path FETCH_INCLUDE = XmlUtil.compile("//*:Include");
+    private static final XmlUtil.Path STATUS = XmlUtil.compile("*:Status");
+    private static final XmlUtil.Path FAULT_STRING = XmlUtil.compile("*:Fault/*:Faultstring");
+
     static {
         try {
             LINE_SEPARATOR = System.getProperty("line.separator").getBytes("ASCII");
@@ -100,6 +127,9 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
 
     private final HttpClient httpClient;
 	private RequestConfig rcConfig = RequestConfig.DEFAULT;
+    private HU01DecompressorPool decompressorPool = new HU01DecompressorPool();
+    private Executor downloadExecutor;
+    private int downloadBuffers;
 
     /**
      * Creates a new {@link DeltaSyncClient} using a
@@ -171,6 +201,53 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
 		this.rcConfig = RequestConfig.copy(this.rcConfig).setSocketTimeout(timeout).build();
     }
 
+    /**
+     * Returns the {@link HU01DecompressorPool} used by
+     * {@link #downloadMessageContent(IDeltaSyncSession, String, OutputStream)}.
+     *
+     * @return the {@link HU01DecompressorPool}.
+     */
+    public HU01DecompressorPool getDecompressorPool() {
+        return decompressorPool;
+    }
+
+    /**
+     * Sets the {@link HU01DecompressorPool} used by
+     * {@link #downloadMessageContent(IDeltaSyncSession, String, OutputStream)}.
+     * The pool can be shared by several {@link DeltaSyncClient}s.
+     *
+     * @param decompressorPool the {@link HU01DecompressorPool}.
+     */
+    public void setDecompressorPool(HU01DecompressorPool decompressorPool) {
+        if (decompressorPool == null) {
+            throw new NullPointerException("decompressorPool");
+        }
+        this.decompressorPool = decompressorPool;
+    }
+
+    /**
+     * Makes {@link #downloadMessageContent(IDeltaSyncSession, String, OutputStream)}
+     * decompress message content on a thread from the specified 
+     * {@link Executor} while the calling thread keeps reading from the 
+     * network. Up to {@code buffers} chunks of compressed data read from the
+     * network are buffered while waiting to be decompressed (see 
+     * {@link HU01PipelinedOutputStream}). The {@link OutputStream} passed to
+     * {@link #downloadMessageContent(IDeltaSyncSession, String, OutputStream)}
+     * is then written to by the {@link Executor}'s thread. Pass {@code null} 
+     * to read and decompress on the calling thread (the default).
+     *
+     * @param executor the {@link Executor} or {@code null}.
+     * @param buffers the number of buffers.
+     * @throws IllegalArgumentException if {@code buffers} is 0 or negative.
+     */
+    public void setDownloadPipeline(Executor executor, int buffers) {
+        if (executor != null && buffers <= 0) {
+            throw new IllegalArgumentException("buffers");
+        }
+        this.downloadExecutor = executor;
+        this.downloadBuffers = buffers;
+    }
+
     /**
      * Logs in using the specified username and password. Returns a
      * {@link IDeltaSyncSession} object on successful authentication.
@@ -200,11 +277,11 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
         Date expires = new Date(created.getTime() + 5 * 60 * 1000);
 
         Document request = XmlUtil.parse(getClass().getResourceAsStream("login-request.xml"));
-        Element elSecurity = XmlUtil.getElement(request, "/s:Envelope/s:Header/wsse:Security");
-        XmlUtil.setTextContent(elSecurity, "wsse:UsernameToken/wsse:Username", username);
-        XmlUtil.setTextContent(elSecurity, "wsse:UsernameToken/wsse:Password", password);
-        XmlUtil.setTextContent(elSecurity, "wsu:Timestamp/wsu:Created", format.format(created));
-        XmlUtil.setTextContent(elSecurity, "wsu:Timestamp/wsu:Expires", format.format(expires));
+        Element elSecurity = XmlUtil.getElement(request, SECURITY);
+        XmlUtil.setTextContent(elSecurity, SECURITY_USERNAME, username);
+        XmlUtil.setTextContent(elSecurity, SECURITY_PASSWORD, password);
+        XmlUtil.setTextContent(elSecurity, SECURITY_CREATED, format.format(created));
+        XmlUtil.setTextContent(elSecurity, SECURITY_EXPIRES, format.format(expires));
 
         IDeltaSyncSession session = new DeltaSyncSession(username, password);
 
@@ -225,19 +302,15 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
         if (session.getLogger().isDebugEnabled()) {
             session.getLogger().debug("Received login response: {}", XmlUtil.toString(response, false));
         }
-        if (XmlUtil.hasElement(response, "/s:Envelope/s:Body/s:Fault")) {
-            throw new AuthenticationException(XmlUtil.getTextContent(response, "/s:Envelope/s:Body/s:Fault/s:Reason/s:Text"));
+        if (XmlUtil.hasElement(response, LOGIN_FAULT)) {
+            throw new AuthenticationException(XmlUtil.getTextContent(response, LOGIN_FAULT_TEXT));
         }
 
-        String ticket = XmlUtil.getTextContent(response, "/s:Envelope/s:Body/wst:RequestSecurityTokenResponseCollection/"
-                + "wst:RequestSecurityTokenResponse/wst:RequestedSecurityToken/wsse:BinarySecurityToken");
+        String ticket = XmlUtil.getTextContent(response, LOGIN_TICKET);
         if (ticket == null) {
-            String flowUrl = XmlUtil.getTextContent(response, "/s:Envelope/s:Body/wst:RequestSecurityTokenResponseCollection/"
-                    + "wst:RequestSecurityTokenResponse/psf:pp/psf:flowurl");
-            String requestStatus = XmlUtil.getTextContent(response, "/s:Envelope/s:Body/wst:RequestSecurityTokenResponseCollection/"
-                    + "wst:RequestSecurityTokenResponse/psf:pp/psf:reqstatus");
-            String errorStatus = XmlUtil.getTextContent(response, "/s:Envelope/s:Body/wst:RequestSecurityTokenResponseCollection/"
-                    + "wst:RequestSecurityTokenResponse/psf:pp/psf:errorstatus");
+            String flowUrl = XmlUtil.getTextContent(response, LOGIN_FLOW_URL);
+            String requestStatus = XmlUtil.getTextContent(response, LOGIN_REQUEST_STATUS);
+            String errorStatus = XmlUtil.getTextContent(response, LOGIN_ERROR_STATUS);
             if (flowUrl != null || requestStatus != null || errorStatus != null) {
                 throw new AuthenticationException(flowUrl, requestStatus, errorStatus);
             }
@@ -283,7 +356,7 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
     public void downloadRawMessageContent(IDeltaSyncSession session, String messageId, OutputStream out)
             throws DeltaSyncException, IOException {
 
-        downloadMessageContent(session, messageId, out, true);
+        downloadMessageContent(session, messageId, out, true, -1);
     }
 
     /**
@@ -301,22 +374,39 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
     public void downloadMessageContent(IDeltaSyncSession session, String messageId, OutputStream out)
             throws DeltaSyncException, IOException {
 
-        downloadMessageContent(session, messageId, out, false);
+        downloadMessageContent(session, messageId, out, false, -1);
+    }
+
+    /**
+     * Downloads the RFC 822 header of the message with the specified id 
+     * followed by the first {@code bodyLines} lines of the body and writes
+     * them to the specified {@link OutputStream}. Decompression stops, and 
+     * the connection is closed if possible, once the requested lines have 
+     * been written which saves bandwidth and CPU for large messages.
+     *
+     * @param session the session.
+     * @param messageId the id of the message to download.
+     * @param bodyLines the number of body lines to download after the header.
+     * @param out the stream to write the message header to.
+     * @throws SessionExpiredException if the session has expired.
+     * @throws DeltaSyncException on errors returned by the server.
+     * @throws IOException on communication errors.
+     */
+	@Override
+    public void downloadMessageHeader(IDeltaSyncSession session, String messageId, int bodyLines, 
+            OutputStream out) throws DeltaSyncException, IOException {
+
+        if (bodyLines < 0) {
+            throw new IllegalArgumentException("bodyLines");
+        }
+        downloadMessageContent(session, messageId, out, false, bodyLines);
     }
 
     private void downloadMessageContent(final IDeltaSyncSession session,
-            final String messageId, final OutputStream output, final boolean raw)
-            throws DeltaSyncException, IOException {
+            final String messageId, final OutputStream output, final boolean raw, 
+            final int maxBodyLines) throws DeltaSyncException, IOException {
 
-        String request =
-              "<ItemOperations xmlns=\"ItemOperations:\" xmlns:A=\"HMMAIL:\">"
-            +   "<Fetch>"
-            +     "<Class>Email</Class>"
-            +     "<A:ServerId>" + messageId + "</A:ServerId>"
-            +     "<A:Compression>hm-compression</A:Compression>"
-            +     "<A:ResponseContentType>mtom</A:ResponseContentType>"
-            +   "</Fetch>"
-            + "</ItemOperations>";
+        XmlRequestEntity request = new ItemOperationsRequestEntity(messageId);
 
         Document response = itemOperations(session, request, new UriCapturingResponseHandler<Document>() {
             public Document handle(URI uri, HttpResponse response)
@@ -334,7 +424,8 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
                 }
 
                 final Object[] result = new Object[1];
-                MimeStreamParser parser = new MimeStreamParser();
+                final boolean[] stopped = new boolean[1];
+                final MimeStreamParser parser = new MimeStreamParser();
                 parser.setContentHandler(new SimpleContentHandler() {
 
                     @Override
@@ -352,22 +443,26 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
                                 result[0] = e;
                             }
                         } else if ("application/octet-stream".equals(bd.getMimeType())) {
-                            OutputStream out = output;
-                            if (!raw) {
-                                out = new HU01DecompressorOutputStream(output);
-                            }
-                            byte[] buffer = new byte[4096];
-                            int n;
-                            while ((n = is.read(buffer)) != -1) {
-                                out.write(buffer, 0, n);
+                            boolean truncated = copyMessageContent(session, is, output, raw, maxBodyLines);
+                            if (truncated && result[0] != null) {
+                                /*
+                                 * We have got all the lines we need. No need to read the 
+                                 * rest of the message.
+                                 */
+                                stopped[0] = true;
+                                parser.stop();
                             }
-                            out.flush();
                         }
                     }
                 });
 
+                InputStream content = response.getEntity().getContent();
                 try {
-                    parser.parse(response.getEntity().getContent());
+                    parser.parse(content);
+                    if (stopped[0] && content instanceof ConnectionReleaseTrigger) {
+                        // Close the connection instead of reading the rest of the response
+                        ((ConnectionReleaseTrigger) content).abortConnection();
+                    }
                 } catch (MimeException e) {
                     throw new DeltaSyncException("Failed to parse multipart xop+xml response", e);
                 } catch (IOException e) {
@@ -407,8 +502,7 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
 
         checkStatus(response);
         // No general error in the response. Check for a specific <Fetch> error.
-        Element elStatus = XmlUtil.getElement(response,
-                "/itemop:ItemOperations/itemop:Responses/itemop:Fetch/itemop:Status");
+        Element elStatus = XmlUtil.getElement(response, FETCH_STATUS);
         if (elStatus == null) {
             throw new DeltaSyncException("No <Status> element found in <Fetch> response: " + XmlUtil.toString(response, true));
         }
@@ -422,194 +516,355 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
         }
     }
 
-    private void addCommand(SortedMap<Integer,List<Command>> commandMap, Element element, Command command) {
-        int index;
-        if (element instanceof DeferredNode) {
-            index = ((DeferredNode)element).getNodeIndex();
-        }
-        else {
-            index = -1;
-        }
-        List<Command> commandsForIndex = commandMap.get(index);
-        if (commandsForIndex == null) {
-            commandsForIndex = new ArrayList<Command>();
-            commandMap.put(index,commandsForIndex);
+    /**
+     * Downloads the content of several messages using a single 
+     * <code>ItemOperations</code> request with one <code>&lt;Fetch&gt;</code>
+     * per message. Each message is written to the {@link OutputStream} 
+     * mapped to its id as the multipart response is read, which saves one 
+     * round trip per message compared to 
+     * {@link #downloadMessageContent(IDeltaSyncSession, String, OutputStream)}.
+     * <p>
+     * Errors concerning a single message, e.g. a {@link NoSuchMessageException}
+     * or an {@link HU01Exception}, don't stop the other messages from being
+     * downloaded. They are returned keyed by the message id instead. The
+     * stream of a message which failed may have been partially written to.
+     * <p>
+     * Each <code>application/octet-stream</code> part of the response is 
+     * matched to its message through the <code>&lt;xop:Include&gt;</code>
+     * referring to its <code>Content-ID</code>. Parts which can't be matched,
+     * e.g. because they arrive before the <code>application/xop+xml</code>
+     * part, are skipped and the messages they belong to are reported as
+     * failed.
+     *
+     * @param session the session.
+     * @param outputs the streams to write the message contents to keyed by
+     *        the ids of the messages to download.
+     * @return the errors of the messages which couldn't be downloaded keyed
+     *         by message id. Empty if all messages were downloaded.
+     * @throws SessionExpiredException if the session has expired.
+     * @throws DeltaSyncException on errors returned by the server.
+     * @throws IOException on communication errors.
+     */
+	@Override
+    public Map<String, DeltaSyncException> downloadMessageContents(final IDeltaSyncSession session,
+            final Map<String, ? extends OutputStream> outputs) throws DeltaSyncException, IOException {
+
+        final List<String> messageIds = new ArrayList<String>(outputs.keySet());
+        final Map<String, DeltaSyncException> failures = new LinkedHashMap<String, DeltaSyncException>();
+        final Set<String> received = new HashSet<String>();
+        if (messageIds.isEmpty()) {
+            return failures;
         }
-        commandsForIndex.add(command);
-    }
+        XmlRequestEntity request = new ItemOperationsRequestEntity(messageIds);
 
-	@Override
-    public SyncResponse sync(IDeltaSyncSession session, SyncRequest syncRequest)
-            throws DeltaSyncException, IOException {
+        Document response = itemOperations(session, request, new UriCapturingResponseHandler<Document>() {
+            public Document handle(URI uri, HttpResponse response)
+                    throws DeltaSyncException, IOException {
 
-        StringBuilder request = new StringBuilder("<Sync xmlns=\"AirSync:\"><Collections>");
-        for (SyncRequest.Collection collection : syncRequest.getCollections()) {
-            request.append("<Collection>");
-            request.append("<Class>").append(collection.getClazz().getSyncName()).append("</Class>");
-            if (collection.getCollectionId() != null) {
-                request.append("<CollectionId>").append(collection.getCollectionId()).append("</CollectionId>");
-            }
-            request.append("<SyncKey>").append(collection.getSyncKey()).append("</SyncKey>");
-            if (collection.isGetChanges()) {
-                request.append("<GetChanges/>");
-            }
-            if (collection.getWindowSize() > 0) {
-                request.append("<WindowSize>").append(collection.getWindowSize()).append("</WindowSize>");
-            }
-            if (!collection.getCommands().isEmpty()) {
-                request.append("<Commands>");
-                for (Command command : collection.getCommands()) {
-                    request.append("<Delete>").append("<ServerId>");
-                    switch (collection.getClazz()) {
-                    case Email:
-						if (command instanceof MessageDeleteCommand) {
-							request.append(((MessageDeleteCommand) command).getId());
-						}
-                        break;
-                    case Folder:
-						if (command instanceof FolderDeleteCommand) {
-							request.append(((FolderDeleteCommand) command).getId());
-						}
-                        break;
+                session.setBaseUri(uri.getScheme() + "://" + uri.getHost());
+
+                Header contentType = response.getFirstHeader("Content-Type");
+                if (contentType == null || !contentType.getValue().equals("application/xop+xml")) {
+                    if (contentType != null && contentType.getValue().equals("text/xml")) {
+                        // If we receive a text/xml response it means an error has occurred
+                        return XmlUtil.parse(response.getEntity().getContent());
                     }
-                    request.append("</ServerId>").append("</Delete>");
+                    throw new DeltaSyncException("Unexpected Content-Type received: " + contentType);
                 }
-                request.append("</Commands>");
-            }
-            request.append("</Collection>");
-        }
-        request.append("</Collections></Sync>");
 
-        Document response = sync(session, request.toString());
+                final Object[] result = new Object[1];
+                final MimeStreamParser parser = new MimeStreamParser();
+                parser.setContentHandler(new SimpleContentHandler() {
+                    private String contentId;
+                    private Map<String, String> idsByContentId;
 
-        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                    @Override
+                    public void headers(org.apache.james.mime4j.message.Header header) {
+                        Field field = header.getField("Content-ID");
+                        contentId = field != null ? field.getBody().trim() : null;
+                    }
 
-        List<SyncResponse.Collection> collections = new ArrayList<SyncResponse.Collection>();
-        for (Element elCollection : XmlUtil.getElements(response, "//airsync:Collection")) {
-            String syncKey = XmlUtil.getTextContent(elCollection, "airsync:SyncKey");
-            Clazz clazz = Clazz.valueOf(XmlUtil.getTextContent(elCollection, "airsync:Class"));
-            int status = Integer.parseInt(XmlUtil.getTextContent(elCollection, "airsync:Status"));
-            boolean moreAvailable = XmlUtil.hasElement(elCollection, "airsync:MoreAvailable");
-            SortedMap<Integer,List<Command>> commandMap = new TreeMap<Integer,List<Command>>();
-
-            switch (clazz) {
-            case Email:
-                for (Element elAdd : XmlUtil.getElements(elCollection, "airsync:Commands/airsync:Add")) {
-                    try {
-                        String id = XmlUtil.getTextContent(elAdd, "airsync:ServerId");
-                        String folderId = XmlUtil.getTextContent(elAdd, "hmmail:FolderId");
-                        Element elAppData = XmlUtil.getElement(elAdd, "airsync:ApplicationData");
-                        Element elFlag = XmlUtil.getElement(elAppData, "hmmail:Flag");
-                        boolean hasFlag = Integer.parseInt(XmlUtil.getTextContent(elFlag, "hmmail:State")) != 0;
-                        long size = Long.parseLong(XmlUtil.getTextContent(elAppData, "hmmail:Size"));
-                        boolean read = Integer.parseInt(XmlUtil.getTextContent(elAppData, "email:Read")) == 1;
-                        boolean hasAttachments = Integer.parseInt(XmlUtil.getTextContent(elAppData, "hmmail:HasAttachments")) == 1;
-                        Date dateReceived = format.parse(XmlUtil.getTextContent(elAppData, "email:DateReceived"));
-                        String subject = XmlUtil.getTextContent(elAppData, "email:Subject");
-                        String from = XmlUtil.getTextContent(elAppData, "email:From");
-                        addCommand(commandMap,elAdd,new MessageAddCommand(id, folderId, dateReceived, size, read, subject, from, hasAttachments, hasFlag));
-                    } catch (ParseException e) {
-                        throw new DeltaSyncException(e);
+                    @Override
+                    public void bodyDecoded(BodyDescriptor bd, InputStream is)
+                            throws IOException {
+
+                        if ("application/xop+xml".equals(bd.getMimeType())) {
+                            try {
+                                result[0] = XmlUtil.parse(is);
+                            } catch (XmlException e) {
+                                result[0] = e;
+                            }
+                        } else if ("application/octet-stream".equals(bd.getMimeType())) {
+                            String messageId = getMessageId();
+                            OutputStream out = messageId != null ? outputs.get(messageId) : null;
+                            if (out == null || !received.add(messageId)) {
+                                session.getLogger().warn("Skipping unexpected part {} in ItemOperations response", 
+                                        contentId);
+                                return;
+                            }
+                            try {
+                                copyMessageContent(session, is, out, false, -1);
+                            } catch (IOException e) {
+                                if (e.getCause() != null && (e.getCause() instanceof HU01Exception)) {
+                                    session.getLogger().error("HU01 decompression failed for message " 
+                                            + messageId + ": ", e.getCause());
+                                    failures.put(messageId, (HU01Exception) e.getCause());
+                                } else {
+                                    throw e;
+                                }
+                            }
+                        }
                     }
-                }
-                for (Element elChange : XmlUtil.getElements(elCollection, "airsync:Commands/airsync:Change")) {
-                    try {
-                        String id = XmlUtil.getTextContent(elChange, "airsync:ServerId");
-                        String folderId = XmlUtil.getTextContent(elChange, "hmmail:FolderId");
-                        Element elAppData = XmlUtil.getElement(elChange, "airsync:ApplicationData");
-                        Element elFlag = XmlUtil.getElement(elAppData, "hmmail:Flag");
-                        boolean hasFlag = Integer.parseInt(XmlUtil.getTextContent(elFlag, "hmmail:State")) != 0;
-                        long size = Long.parseLong(XmlUtil.getTextContent(elAppData, "hmmail:Size"));
-                        boolean read = Integer.parseInt(XmlUtil.getTextContent(elAppData, "email:Read")) == 1;
-                        boolean hasAttachments = Integer.parseInt(XmlUtil.getTextContent(elAppData, "hmmail:HasAttachments")) == 1;
-                        Date dateReceived = format.parse(XmlUtil.getTextContent(elAppData, "email:DateReceived"));
-                        String subject = XmlUtil.getTextContent(elAppData, "email:Subject");
-                        String from = XmlUtil.getTextContent(elAppData, "email:From");
-                        addCommand(commandMap,elChange,new MessageChangeCommand(id, folderId, dateReceived, size, read, subject, from, hasAttachments, hasFlag));
-                    } catch (ParseException e) {
-                        throw new DeltaSyncException(e);
+
+                    /**
+                     * Maps the current <code>application/octet-stream</code> 
+                     * part to a message id using the 
+                     * <code>&lt;xop:Include&gt;</code> referring to its
+                     * <code>Content-ID</code>. Returns <code>null</code> if
+                     * the part has no <code>Content-ID</code> or if the
+                     * <code>application/xop+xml</code> part hasn't been 
+                     * received yet or doesn't refer to it.
+                     */
+                    private String getMessageId() {
+                        if (!(result[0] instanceof Document) || contentId == null) {
+                            return null;
+                        }
+                        if (idsByContentId == null) {
+                            idsByContentId = new HashMap<String, String>();
+                            List<Element> fetches = XmlUtil.getElements((Document) result[0], FETCHES);
+                            for (int i = 0; i < fetches.size(); i++) {
+                                Element fetch = fetches.get(i);
+                                if (!"1".equals(XmlUtil.getTextContent(fetch, FETCH_RESPONSE_STATUS))) {
+                                    continue;
+                                }
+                                Element include = XmlUtil.getElement(fetch, FETCH_INCLUDE);
+                                if (include != null && include.getAttribute("href").startsWith("cid:")) {
+                                    idsByContentId.put(include.getAttribute("href").substring(4), 
+                                            getFetchMessageId(fetch, i, messageIds));
+                                }
+                            }
+                        }
+                        String cid = contentId;
+                        if (cid.startsWith("<") && cid.endsWith(">")) {
+                            cid = cid.substring(1, cid.length() - 1);
+                        }
+                        return idsByContentId.get(cid);
                     }
-                }
-                for (Element elDelete : XmlUtil.getElements(elCollection, "airsync:Commands/airsync:Delete")) {
-                    String id = XmlUtil.getTextContent(elDelete, "airsync:ServerId");
-                    addCommand(commandMap,elDelete,new MessageDeleteCommand(id));
-                }
-                break;
-            case Folder:
-                for (Element elAdd : XmlUtil.getElements(elCollection, "airsync:Commands/airsync:Add")) {
-                    String id = XmlUtil.getTextContent(elAdd, "airsync:ServerId");
-                    String displayName = XmlUtil.getTextContent(elAdd, "airsync:ApplicationData/hmfolder:DisplayName");
-					String parentID = XmlUtil.getTextContent(elAdd, "airsync:ApplicationData/hmfolder:ParentId");
-                    addCommand(commandMap,elAdd,new FolderAddCommand(id, displayName, parentID));
+                });
 
+                try {
+                    parser.parse(response.getEntity().getContent());
+                } catch (MimeException e) {
+                    throw new DeltaSyncException("Failed to parse multipart xop+xml response", e);
                 }
-                for (Element elChange : XmlUtil.getElements(elCollection, "airsync:Commands/airsync:Change")) {
-                    String id = XmlUtil.getTextContent(elChange, "airsync:ServerId");
-                    String displayName = XmlUtil.getTextContent(elChange, "airsync:ApplicationData/hmfolder:DisplayName");
-					String parentID = XmlUtil.getTextContent(elChange, "airsync:ApplicationData/hmfolder:ParentId");
-                    addCommand(commandMap,elChange,new FolderChangeCommand(id, displayName, parentID));
-                }
-                for (Element elDelete : XmlUtil.getElements(elCollection, "airsync:Commands/airsync:Delete")) {
-                    String id = XmlUtil.getTextContent(elDelete, "airsync:ServerId");
-                    addCommand(commandMap,elDelete,new FolderDeleteCommand(id));
+
+                if (result[0] instanceof DeltaSyncException) {
+                    throw (DeltaSyncException) result[0];
                 }
+                return (Document) result[0];
             }
+        });
 
-            List<Command> commands = new ArrayList<Command>();
-            for (List<Command> commandsForIndex : commandMap.values()) {
-                commands.addAll(commandsForIndex);
-            }
+        if (response == null) {
+            throw new DeltaSyncException("No xop+xml part found in ItemOperations response");
+        }
+        if (session.getLogger().isDebugEnabled()) {
+            session.getLogger().debug("Received ItemOperations response: {}",
+                    XmlUtil.toString(response, false));
+        }
 
-            List<SyncResponse.Collection.Response> responses = new ArrayList<SyncResponse.Collection.Response>();
-            // TODO: Support for other types of responses
-            for (Element elDelete : XmlUtil.getElements(elCollection, "airsync:Responses/airsync:Delete")) {
-                String id = XmlUtil.getTextContent(elDelete, "airsync:ServerId");
-                int deleteStatus = Integer.parseInt(XmlUtil.getTextContent(elDelete, "airsync:Status"));
-                responses.add(new SyncResponse.Collection.EmailDeleteResponse(id, deleteStatus));
+        checkStatus(response);
+        // No general error in the response. Check for specific <Fetch> errors.
+        Set<String> found = new HashSet<String>();
+        List<Element> fetches = XmlUtil.getElements(response, FETCHES);
+        for (int i = 0; i < fetches.size(); i++) {
+            Element fetch = fetches.get(i);
+            String messageId = getFetchMessageId(fetch, i, messageIds);
+            found.add(messageId);
+            Element elStatus = XmlUtil.getElement(fetch, FETCH_RESPONSE_STATUS);
+            if (elStatus == null) {
+                failures.put(messageId, new DeltaSyncException("No <Status> element found in <Fetch> response"));
+                continue;
+            }
+            int code = Integer.parseInt(elStatus.getTextContent().trim());
+            if (code == 4403) {
+                failures.put(messageId, new NoSuchMessageException(messageId));
+            } else if (code != 1) {
+                failures.put(messageId, new UnrecognizedErrorCodeException(code,
+                        "Unrecognized error code in response for <Fetch> request"));
+            } else if (!received.contains(messageId)) {
+                failures.put(messageId, new DeltaSyncException("No content received for message " + messageId));
             }
+        }
+        for (String messageId : messageIds) {
+            if (!found.contains(messageId)) {
+                failures.put(messageId, new DeltaSyncException("No <Fetch> response for message " + messageId));
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Returns the <code>&lt;ServerId&gt;</code> of a <code>&lt;Fetch&gt;</code>
+     * response or, if it hasn't got one, the id requested by the 
+     * <code>&lt;Fetch&gt;</code> in the same position of the request.
+     */
+    private static String getFetchMessageId(Element fetch, int index, List<String> messageIds) {
+        String id = XmlUtil.getTextContent(fetch, FETCH_SERVER_ID);
+        if (id != null) {
+            return id.trim();
+        }
+        return index < messageIds.size() ? messageIds.get(index) : null;
+    }
 
-            collections.add(new SyncResponse.Collection(syncKey, clazz, status, commands, moreAvailable, responses));
+    /**
+     * Copies the <code>application/octet-stream</code> part of an 
+     * <code>ItemOperations</code> response holding the HU01 compressed 
+     * content of a message to the specified {@link OutputStream}, 
+     * decompressing it unless <code>raw</code> is <code>true</code>.
+     * 
+     * @return <code>true</code> if decompression stopped before the end of
+     *         the message because <code>maxBodyLines</code> body lines have 
+     *         been written, <code>false</code> if the entire message has been
+     *         copied.
+     */
+    private boolean copyMessageContent(IDeltaSyncSession session, InputStream is, OutputStream output, 
+            boolean raw, int maxBodyLines) throws IOException {
+
+        OutputStream out = output;
+        HU01Decompressor decompressor = null;
+        HU01PipelinedOutputStream pipeline = null;
+        HU01Stats stats = null;
+        if (!raw) {
+            stats = session.getDecompressionStats();
+            decompressor = decompressorPool.borrow();
+            decompressor.setMaxBodyLines(maxBodyLines);
+            decompressor.setStats(stats);
+            if (downloadExecutor != null) {
+                pipeline = new HU01PipelinedOutputStream(output, decompressor, 
+                        downloadExecutor, downloadBuffers, 4096);
+                out = pipeline;
+            } else {
+                out = new HU01DecompressorOutputStream(output, decompressor);
+            }
         }
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            long start = stats != null ? System.nanoTime() : 0;
+            while ((n = is.read(buffer)) != -1) {
+                if (stats != null) {
+                    // Time blocked on the network as opposed to decoding
+                    stats.addInputWaitNanos(System.nanoTime() - start);
+                }
+                out.write(buffer, 0, n);
+                boolean finished = pipeline != null ? pipeline.finished() 
+                        : decompressor != null && decompressor.finished();
+                if (finished) {
+                    break;
+                }
+                start = stats != null ? System.nanoTime() : 0;
+            }
+            if (pipeline != null) {
+                pipeline.finish();
+            } else {
+                out.flush();
+            }
+            return decompressor != null && decompressor.stopped();
+        } finally {
+            if (pipeline != null) {
+                // Make sure the decompressor is no longer used before it's released
+                pipeline.abort();
+            }
+            if (decompressor != null) {
+                decompressorPool.release(decompressor);
+            }
+        }
+    }
+
+	@Override
+    public SyncResponse sync(IDeltaSyncSession session, SyncRequest syncRequest)
+            throws DeltaSyncException, IOException {
 
-        SyncResponse syncResponse = new SyncResponse(collections);
+        SyncResponseParser.Collector collector = new SyncResponseParser.Collector();
+        sync(session, new SyncRequestEntity(syncRequest), collector);
+        SyncResponse syncResponse = collector.getSyncResponse();
 
         session.getLogger().debug("Got SyncResponse: {}", syncResponse);
 
         return syncResponse;
     }
 
-    private Document sync(final IDeltaSyncSession session, String request) throws DeltaSyncException, IOException {
-        return call("Sync", session, request, new UriCapturingResponseHandler<Document>() {
+    /**
+     * Sends a <code>Sync</code> request and passes the {@link Command}s in the
+     * response to the specified {@link ISyncResponseVisitor} as soon as they
+     * have been read instead of building a {@link SyncResponse}. How much of
+     * the response is kept in memory is up to the 
+     * {@link ISyncResponseVisitor}.
+     *
+     * @param session the session.
+     * @param syncRequest the request.
+     * @param visitor the {@link ISyncResponseVisitor}.
+     * @throws DeltaSyncException on errors returned by the server or if
+     *         thrown by <code>visitor</code>.
+     * @throws IOException on communication errors.
+     */
+	@Override
+    public void sync(IDeltaSyncSession session, SyncRequest syncRequest, ISyncResponseVisitor visitor)
+            throws DeltaSyncException, IOException {
+
+        sync(session, new SyncRequestEntity(syncRequest), visitor);
+    }
+
+    private void sync(final IDeltaSyncSession session, XmlRequestEntity request, final ISyncResponseVisitor visitor)
+            throws DeltaSyncException, IOException {
 
-            public Document handle(URI uri, HttpResponse response)
+        call("Sync", session, request, new UriCapturingResponseHandler<Object>() {
+
+            public Object handle(URI uri, HttpResponse response)
                     throws DeltaSyncException, IOException {
 
                 session.setBaseUri(uri.getScheme() + "://" + uri.getHost());
-                Document doc = XmlUtil.parse(response.getEntity().getContent());
-                checkStatus(doc);
+                InputStream content;
+                byte[] data = null;
                 if (session.getLogger().isDebugEnabled()) {
-                    session.getLogger().debug("Received Sync response: {}",
-                            XmlUtil.toString(doc, false));
+                    data = EntityUtils.toByteArray(response.getEntity());
+                    content = new ByteArrayInputStream(data);
+                    session.getLogger().debug("Received Sync response: {}", new String(data, "UTF-8"));
+                } else {
+                    content = response.getEntity().getContent();
                 }
-                return doc;
+                SyncResponseParser parser = SyncResponseParser.parse(content, visitor);
+                if (parser.getStatus() == -1) {
+                    // All responses should have a <Status> element
+                    throw new DeltaSyncException("No <Status> element found in Sync response"
+                            + (data != null ? ": " + new String(data, "UTF-8") : ""));
+                }
+                if (parser.getStatus() != 1) {
+                    String message = parser.getFaultString();
+                    if (message == null) {
+                        message = "No Faultstring provided in Sync response";
+                    }
+                    throw createStatusException(parser.getStatus(), message);
+                }
+                return null;
             }
 
         });
     }
 
-    private <T> T itemOperations(final IDeltaSyncSession session, String request,
+    private <T> T itemOperations(final IDeltaSyncSession session, XmlRequestEntity request,
             UriCapturingResponseHandler<T> handler) throws DeltaSyncException, IOException {
 
         return call("ItemOperations", session, request, handler);
     }
 
-    private <T> T call(final String cmd, final IDeltaSyncSession session, String request,
+    private <T> T call(final String cmd, final IDeltaSyncSession session, XmlRequestEntity request,
             UriCapturingResponseHandler<T> handler) throws DeltaSyncException, IOException {
 
         if (session.getLogger().isDebugEnabled()) {
             try {
-                Document document = XmlUtil.parse(new ByteArrayInputStream(request.getBytes()));
+                Document document = XmlUtil.parse(request.getContent());
                 session.getLogger().debug("Sending {} request: {}", cmd, XmlUtil.toString(document,false));
             } catch (XmlException e) {
                 session.getLogger().debug("Sending {} request: {}", cmd, request);
@@ -621,49 +876,51 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
     }
 
     private void checkStatus(Document doc) throws DeltaSyncException {
-        Element status = XmlUtil.getElement(doc.getDocumentElement(), "*:Status");
+        Element status = XmlUtil.getElement(doc.getDocumentElement(), STATUS);
         if (status == null) {
             // All responses should have a <Status> element
             throw new DeltaSyncException("No <Status> element found in response: " + XmlUtil.toString(doc, true));
         }
         int code = Integer.parseInt(status.getTextContent().trim());
         if (code != 1) {
-            String message = XmlUtil.getTextContent(doc.getDocumentElement(), "*:Fault/*:Faultstring");
+            String message = XmlUtil.getTextContent(doc.getDocumentElement(), FAULT_STRING);
             if (message == null) {
                 message = "No Faultstring provided in response. Response was: " + XmlUtil.toString(doc, true);
             }
-            switch (code) {
-            case 3204:
-                // Authentication failure. We assume this means that the session has expired.
-                throw new SessionExpiredException(message);
-            case 4102:
-                // The server failed to understand the request due to a syntax error or an error in the parameters.
-                throw new BadRequestException(message);
-            case 4104:
-                // Invalid sync key.
-                throw new InvalidSyncKeyException(message);
-            case 4402:
-                throw new NoSuchFolderException(message);
-            default:
-                throw new UnrecognizedErrorCodeException(code, message);
-            }
+            throw createStatusException(code, message);
         }
     }
 
-    private <T> T post(IDeltaSyncSession session, String uri, String userAgent, String contentType, Document doc,
-            UriCapturingResponseHandler<T> handler) throws DeltaSyncException, IOException {
-
-        return post(session, uri, userAgent, contentType, XmlUtil.toByteArray(doc), handler);
+    private DeltaSyncException createStatusException(int code, String message) {
+        switch (code) {
+        case 3204:
+            // Authentication failure. We assume this means that the session has expired.
+            return new SessionExpiredException(message);
+        case 4102:
+            // The server failed to understand the request due to a syntax error or an error in the parameters.
+            return new BadRequestException(message);
+        case 4104:
+            // Invalid sync key.
+            return new InvalidSyncKeyException(message);
+        case 4402:
+            return new NoSuchFolderException(message);
+        default:
+            return new UnrecognizedErrorCodeException(code, message);
+        }
     }
 
-    private <T> T post(IDeltaSyncSession session, String uri, String userAgent,String contentType, String s,
+    private <T> T post(IDeltaSyncSession session, String uri, String userAgent, String contentType, Document doc,
             UriCapturingResponseHandler<T> handler) throws DeltaSyncException, IOException {
 
-        return post(session, uri, userAgent, contentType, s.getBytes("UTF-8"), handler);
+        return post(session, uri, userAgent, contentType, new ByteArrayEntity(XmlUtil.toByteArray(doc)), handler);
     }
 
+    /**
+     * Posts the specified {@link AbstractHttpEntity}. The entity is sent again
+     * if the server redirects so it has to be repeatable.
+     */
     private <T> T post(final IDeltaSyncSession session, String uri, final String userAgent, final String contentType,
-            final byte[] data, final UriCapturingResponseHandler<T> handler) throws DeltaSyncException, IOException {
+            final AbstractHttpEntity data, final UriCapturingResponseHandler<T> handler) throws DeltaSyncException, IOException {
 
         final HttpPost post = createHttpPost(uri, userAgent, contentType, data);
         final HttpContext context = new BasicHttpContext();
@@ -720,8 +977,7 @@ public class DeltaSyncClient implements IDeltaSyncClient, ILegacyDeltaSyncClient
         }
     }
 
-    private HttpPost createHttpPost(String uri, String userAgent, String contentType, byte[] data) {
-        ByteArrayEntity entity = new ByteArrayEntity(data);
+    private HttpPost createHttpPost(String uri, String userAgent, String contentType, AbstractHttpEntity entity) {
         entity.setContentType(contentType);
         HttpPost post = new HttpPost(uri);
         post.setHeader("User-Agent", userAgent);
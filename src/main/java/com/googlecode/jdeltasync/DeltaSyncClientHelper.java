@@ -32,8 +32,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class DeltaSyncClientHelper implements IDeltaSyncClientHelper, ILegacyDeltaSyncClientHelper {
     /**
@@ -47,6 +50,13 @@ public class DeltaSyncClientHelper implements IDeltaSyncClientHelper, ILegacyDel
      */
     public static final int DEFAULT_WINDOW_SIZE = 256;
 
+    /**
+     * The maximum number of message changes read from a <code>Sync</code>
+     * response before they are applied to the {@link IStore} in
+     * {@link #getMessages(IFolder)}.
+     */
+    private static final int STORE_BATCH_SIZE = 64;
+
     private final IDeltaSyncClient client;
     private final IStore store;
     private final String username;
@@ -237,7 +247,11 @@ public class DeltaSyncClientHelper implements IDeltaSyncClientHelper, ILegacyDel
 
 
     /**
-     * Returns all messages in the specified {@link Folder}.
+     * Returns all messages in the specified {@link Folder}. The changes in
+     * each <code>Sync</code> response are applied to the {@link IStore} in
+     * small batches while the response is read, using the folder's current
+     * sync key. The new sync key is stored once the whole response has been
+     * read.
      *
      * @param folder the {@link Folder}.
      * @return all messages in the specified {@link Folder}.
@@ -270,47 +284,66 @@ public class DeltaSyncClientHelper implements IDeltaSyncClientHelper, ILegacyDel
         }
     }
 
-    private Collection<IMessage> doGetMessages(IFolder folder) throws DeltaSyncException, IOException {
+    private Collection<IMessage> doGetMessages(final IFolder folder) throws DeltaSyncException, IOException {
 
         while (true) {
 
+            final String syncKey = store.getMessagesSyncKey(username, folder);
             SyncRequest syncRequest = new SyncRequest(new SyncRequest.Collection(
-                    store.getMessagesSyncKey(username, folder), Clazz.Email, folder.getId(), true, windowSize));
-            SyncResponse response = client.sync(session, syncRequest);
+                    syncKey, Clazz.Email, folder.getId(), true, windowSize));
 
-            if (response.getCollections().isEmpty()) {
+            /*
+             * Apply the commands to the store while the response is being 
+             * read, at most STORE_BATCH_SIZE at a time, so memory use doesn't
+             * grow with the window size. The changes are stored with the 
+             * current sync key. If the request fails the server sends the
+             * same changes again for that key and applying them twice does no
+             * harm. The new sync key is stored once the whole collection has
+             * been read.
+             */
+            final SyncResponse.Collection[] result = new SyncResponse.Collection[1];
+            client.sync(session, syncRequest, new ISyncResponseVisitor() {
+                private List<IMessage> added = new ArrayList<IMessage>();
+                private List<IMessage> changed = new ArrayList<IMessage>();
+                private List<String> deleted = new ArrayList<String>();
+
+                public void command(Clazz clazz, Command cmd) {
+                    if (result[0] != null) {
+                        // Only the first collection is used
+                        return;
+                    }
+                    addCommand(cmd, added, changed, deleted);
+                    if (added.size() + changed.size() + deleted.size() >= STORE_BATCH_SIZE) {
+                        update(syncKey);
+                    }
+                }
+
+                public void endCollection(SyncResponse.Collection collection) {
+                    if (result[0] == null) {
+                        result[0] = collection;
+                        if (collection.getStatus() == 1) {
+                            update(collection.getSyncKey());
+                        }
+                    }
+                }
+
+                private void update(String key) {
+                    store.updateMessages(username, folder, key, added, changed, deleted);
+                    added = new ArrayList<IMessage>();
+                    changed = new ArrayList<IMessage>();
+                    deleted = new ArrayList<String>();
+                }
+            });
+
+            if (result[0] == null) {
                 throw new DeltaSyncException("No <Collection> in Sync response");
             }
-            SyncResponse.Collection collection = response.getCollections().get(0);
+            SyncResponse.Collection collection = result[0];
             if (collection.getStatus() != 1) {
                 throw new DeltaSyncException("Sync request failed with status "
                         + collection.getStatus());
             }
 
-            List<IMessage> added = new ArrayList<IMessage>();
-			List<IMessage> changed = new ArrayList<IMessage>();
-            List<String> deleted = new ArrayList<String>();
-            for (Command cmd : collection.getCommands()) {
-                if (cmd instanceof MessageAddCommand) {
-                    MessageAddCommand addCmd = (MessageAddCommand) cmd;
-                    added.add(new Message(addCmd.getId(),
-                            addCmd.getDateReceived(), addCmd.getSize(), addCmd.isRead(),
-                            addCmd.getSubject(), addCmd.getFrom(), addCmd.hasAttachments()));
-				}
-				else if (cmd instanceof MessageChangeCommand) {
-                    MessageChangeCommand changeCmd = (MessageChangeCommand) cmd;
-                    changed.add(new Message(changeCmd.getId(),
-                            changeCmd.getDateReceived(), changeCmd.getSize(), changeCmd.isRead(),
-                            changeCmd.getSubject(), changeCmd.getFrom(), changeCmd.hasAttachments()));
-				}
-                else if (cmd instanceof MessageDeleteCommand) {
-                    MessageDeleteCommand delCmd = (MessageDeleteCommand) cmd;
-                    deleted.add(delCmd.getId());
-                }
-            }
-
-            store.updateMessages(username, folder, collection.getSyncKey(), added, changed, deleted);
-
             if (!collection.isMoreAvailable()) {
                 break;
             }
@@ -319,6 +352,146 @@ public class DeltaSyncClientHelper implements IDeltaSyncClientHelper, ILegacyDel
         return Collections.unmodifiableCollection(new ArrayList<IMessage>(store.getMessages(username, folder)));
     }
 
+    /**
+     * Synchronizes the messages of several {@link Folder}s using one 
+     * <code>Sync</code> request with one <code>&lt;Collection&gt;</code> per
+     * folder in each round instead of one request per folder. Folders which 
+     * report <code>&lt;MoreAvailable&gt;</code> are included in the next 
+     * round until all folders are up to date. The changes of each collection
+     * are applied to the {@link IStore} as soon as the collection has been
+     * read.
+     * <p>
+     * Folders for which the server returns an error status are synchronized
+     * individually afterwards using {@link #getMessagesCollection(IFolder)}
+     * which starts over with an empty sync key if needed.
+     *
+     * @param folders the {@link Folder}s.
+     * @return all messages in each of the specified {@link Folder}s.
+     * @throws SessionExpiredException if the session has expired and couldn't
+     *         be renewed.
+     * @throws DeltaSyncException on errors returned by the server.
+     * @throws IOException on communication errors.
+     * @throws IllegalStateException if not logged in.
+     */
+    public Map<IFolder, Collection<IMessage>> syncFolders(Collection<IFolder> folders) 
+            throws DeltaSyncException, IOException {
+        
+        checkLoggedIn();
+        List<IFolder> failed;
+        try {
+            failed = doSyncFolders(folders);
+        } catch (SessionExpiredException e) {
+            session = client.renew(session);
+            failed = doSyncFolders(folders);
+        } catch (InvalidSyncKeyException e) {
+            // Not known which of the sync keys was rejected
+            session.getLogger().warn("Invalid messages sync key. Folders "
+                    + "will be synchronized one by one.");
+            failed = new ArrayList<IFolder>(folders);
+        }
+        for (IFolder folder : failed) {
+            getMessagesCollection(folder);
+        }
+        
+        Map<IFolder, Collection<IMessage>> result = new LinkedHashMap<IFolder, Collection<IMessage>>();
+        for (IFolder folder : folders) {
+            result.put(folder, Collections.unmodifiableCollection(
+                    new ArrayList<IMessage>(store.getMessages(username, folder))));
+        }
+        return result;
+    }
+
+    /**
+     * Synchronizes the specified folders until none of them has more 
+     * changes available.
+     * 
+     * @return the folders which failed and have to be synchronized 
+     *         individually.
+     */
+    private List<IFolder> doSyncFolders(Collection<IFolder> folders) throws DeltaSyncException, IOException {
+        final List<IFolder> failed = new ArrayList<IFolder>();
+        List<IFolder> pending = new ArrayList<IFolder>(folders);
+
+        while (!pending.isEmpty()) {
+
+            List<SyncRequest.Collection> collections = new ArrayList<SyncRequest.Collection>();
+            final Map<String, IFolder> foldersById = new HashMap<String, IFolder>();
+            for (IFolder folder : pending) {
+                collections.add(new SyncRequest.Collection(store.getMessagesSyncKey(username, folder), 
+                        Clazz.Email, folder.getId(), true, windowSize));
+                foldersById.put(folder.getId(), folder);
+            }
+
+            final List<IFolder> requested = pending;
+            final List<IFolder> done = new ArrayList<IFolder>();
+            final List<IFolder> more = new ArrayList<IFolder>();
+            client.sync(session, new SyncRequest(collections), new ISyncResponseVisitor() {
+                private List<IMessage> added = new ArrayList<IMessage>();
+                private List<IMessage> changed = new ArrayList<IMessage>();
+                private List<String> deleted = new ArrayList<String>();
+                private int index;
+
+                public void command(Clazz clazz, Command cmd) {
+                    addCommand(cmd, added, changed, deleted);
+                }
+
+                public void endCollection(SyncResponse.Collection collection) {
+                    // Collections without an id are in the same order as in the request
+                    IFolder folder = collection.getCollectionId() != null 
+                            ? foldersById.get(collection.getCollectionId()) 
+                            : index < requested.size() ? requested.get(index) : null;
+                    index++;
+                    if (folder == null || done.contains(folder) || failed.contains(folder)) {
+                        session.getLogger().warn("Ignoring unexpected <Collection> in Sync response: {}", 
+                                collection.getCollectionId());
+                    } else if (collection.getStatus() != 1) {
+                        session.getLogger().warn("Sync request for folder {} failed with status {}", 
+                                folder.getId(), collection.getStatus());
+                        failed.add(folder);
+                    } else {
+                        store.updateMessages(username, folder, collection.getSyncKey(), added, changed, deleted);
+                        done.add(folder);
+                        if (collection.isMoreAvailable()) {
+                            more.add(folder);
+                        }
+                    }
+                    added = new ArrayList<IMessage>();
+                    changed = new ArrayList<IMessage>();
+                    deleted = new ArrayList<String>();
+                }
+            });
+
+            for (IFolder folder : requested) {
+                if (!done.contains(folder) && !failed.contains(folder)) {
+                    session.getLogger().warn("No <Collection> in Sync response for folder {}", folder.getId());
+                    failed.add(folder);
+                }
+            }
+            pending = more;
+        }
+        
+        return failed;
+    }
+
+    private static void addCommand(Command cmd, List<IMessage> added, List<IMessage> changed, List<String> deleted) {
+        if (cmd instanceof MessageAddCommand) {
+            MessageAddCommand addCmd = (MessageAddCommand) cmd;
+            added.add(new Message(addCmd.getId(),
+                    addCmd.getDateReceived(), addCmd.getSize(), addCmd.isRead(),
+                    addCmd.getSubject(), addCmd.getFrom(), addCmd.hasAttachments()));
+        }
+        else if (cmd instanceof MessageChangeCommand) {
+            MessageChangeCommand changeCmd = (MessageChangeCommand) cmd;
+            changed.add(new Message(changeCmd.getId(),
+                    changeCmd.getDateReceived(), changeCmd.getSize(), changeCmd.isRead(),
+                    changeCmd.getSubject(), changeCmd.getFrom(), changeCmd.hasAttachments()));
+        }
+        else if (cmd instanceof MessageDeleteCommand) {
+            MessageDeleteCommand delCmd = (MessageDeleteCommand) cmd;
+            deleted.add(delCmd.getId());
+        }
+    }
+
     /**
      * Deletes the specified {@link Email}s from the specified {@link Folder}.
      *
@@ -473,6 +646,32 @@ public class DeltaSyncClientHelper implements IDeltaSyncClientHelper, ILegacyDel
         }
     }
 
+    /**
+     * Downloads the header of the specified {@link Email} followed by the 
+     * first {@code bodyLines} lines of the body and writes them to the 
+     * specified {@link OutputStream}.
+     *
+     * @param message the {@link Email} to download the header for.
+     * @param bodyLines the number of body lines to download after the header.
+     * @param out the stream to write the message header to.
+     * @throws SessionExpiredException if the session has expired and couldn't
+     *         be renewed.
+     * @throws DeltaSyncException on errors returned by the server.
+     * @throws IOException on communication errors.
+     * @throws IllegalStateException if not logged in.
+     */
+    public void downloadMessageHeader(IMessage message, int bodyLines, OutputStream out)
+            throws DeltaSyncException, IOException {
+
+        checkLoggedIn();
+        try {
+            client.downloadMessageHeader(session, message.getId(), bodyLines, out);
+        } catch (SessionExpiredException e) {
+            session = client.renew(session);
+            client.downloadMessageHeader(session, message.getId(), bodyLines, out);
+        }
+    }
+
 	public IFolder getSpecialFolder(SpecialFolder sfFolder) throws DeltaSyncException, IOException {
 		return getFolderByName(sfFolder.getDisplayName());
 	}
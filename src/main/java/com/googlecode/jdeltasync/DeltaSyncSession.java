@@ -20,6 +20,8 @@ import org.apache.http.impl.client.BasicCookieStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.googlecode.jdeltasync.hu01.HU01Stats;
+
 /**
  * Represents a particular user's session.
  */
@@ -30,6 +32,7 @@ public class DeltaSyncSession implements IDeltaSyncSession {
     private String ticket;
     private String dsBaseUri = null;
     private CookieStore cookies = new BasicCookieStore();
+    private final HU01Stats decompressionStats = new HU01Stats();
 
     /**
      * Creates a new {@link DeltaSyncSession}.
@@ -125,4 +128,8 @@ public class DeltaSyncSession implements IDeltaSyncSession {
 	public CookieStore getCookieStore() {
 		return this.cookies;
 	}
+
+	public HU01Stats getDecompressionStats() {
+		return this.decompressionStats;
+	}
 }
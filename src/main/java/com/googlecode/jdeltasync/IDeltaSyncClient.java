@@ -19,15 +19,19 @@ import com.googlecode.jdeltasync.message.SyncRequest;
 import com.googlecode.jdeltasync.message.SyncResponse;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Map;
 import org.apache.http.conn.ClientConnectionManager;
 
 public interface IDeltaSyncClient {
 	public void downloadMessageContent(IDeltaSyncSession session, String messageId, OutputStream out) throws DeltaSyncException, IOException;
 	public void downloadRawMessageContent(IDeltaSyncSession session, String messageId, OutputStream out) throws DeltaSyncException, IOException;
+	public Map<String, DeltaSyncException> downloadMessageContents(IDeltaSyncSession session, Map<String, ? extends OutputStream> outputs) throws DeltaSyncException, IOException;
+	public void downloadMessageHeader(IDeltaSyncSession session, String messageId, int bodyLines, OutputStream out) throws DeltaSyncException, IOException;
 	@Deprecated public ClientConnectionManager getConnectionManager();
 	public IDeltaSyncSession login(String username, String password) throws AuthenticationException, DeltaSyncException, IOException;
 	public IDeltaSyncSession renew(IDeltaSyncSession session) throws AuthenticationException, DeltaSyncException, IOException;
 	public void setConnectionTimeout(int timeout);
 	public void setSoTimeout(int timeout);
 	public SyncResponse sync(IDeltaSyncSession session, SyncRequest syncRequest) throws DeltaSyncException, IOException;
+	public void sync(IDeltaSyncSession session, SyncRequest syncRequest, ISyncResponseVisitor visitor) throws DeltaSyncException, IOException;
 }
@@ -18,6 +18,7 @@ package com.googlecode.jdeltasync;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collection;
+import java.util.Map;
 
 public interface IDeltaSyncClientHelper {
 	public static final int DEFAULT_WINDOW_SIZE = 256;
@@ -25,6 +26,7 @@ public interface IDeltaSyncClientHelper {
 	public Collection<String> deleteMessages(IFolder folder, Collection<IMessage> messages) throws DeltaSyncException, IOException;
 	public void downloadMessageContent(IMessage message, OutputStream out) throws DeltaSyncException, IOException;
 	public void downloadRawMessageContent(IMessage message, OutputStream out) throws DeltaSyncException, IOException;
+	public void downloadMessageHeader(IMessage message, int bodyLines, OutputStream out) throws DeltaSyncException, IOException;
 	public Collection<IFolder> getFoldersCollection() throws DeltaSyncException, IOException;
 	public IFolder getInbox() throws DeltaSyncException, IOException;
 	public IFolder getSpecialFolder(SpecialFolder sfFolder) throws DeltaSyncException, IOException;
@@ -32,6 +34,7 @@ public interface IDeltaSyncClientHelper {
 	public IFolder getFolderByRawName(String strName) throws DeltaSyncException, IOException;
 	public IFolder getFolderByID(String strName) throws DeltaSyncException, IOException;
 	public Collection<IMessage> getMessagesCollection(IFolder folder) throws DeltaSyncException, IOException;
+	public Map<IFolder, Collection<IMessage>> syncFolders(Collection<IFolder> folders) throws DeltaSyncException, IOException;
 	public IDeltaSyncSession getSession();
 	public void login() throws AuthenticationException, DeltaSyncException, IOException;
 	public void logout();
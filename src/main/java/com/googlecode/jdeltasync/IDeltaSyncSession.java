@@ -17,6 +17,9 @@ package com.googlecode.jdeltasync;
 
 import org.apache.http.client.CookieStore;
 import org.slf4j.Logger;
+
+import com.googlecode.jdeltasync.hu01.HU01Stats;
+
 public interface IDeltaSyncSession {
 
 	/**
@@ -66,4 +69,12 @@ public interface IDeltaSyncSession {
 	public void setBaseUri(String dsBaseUri);
 
 	public CookieStore getCookieStore();
+
+	/**
+	 * Returns the {@link HU01Stats} updated by {@link DeltaSyncClient} when
+	 * downloading and decompressing messages for this session.
+	 *
+	 * @return the {@link HU01Stats}.
+	 */
+	public HU01Stats getDecompressionStats();
 }
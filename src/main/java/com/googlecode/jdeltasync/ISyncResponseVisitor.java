@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import com.googlecode.jdeltasync.message.Clazz;
+import com.googlecode.jdeltasync.message.Command;
+import com.googlecode.jdeltasync.message.SyncRequest;
+import com.googlecode.jdeltasync.message.SyncResponse;
+
+/**
+ * Receives the contents of a <code>Sync</code> response while it's being
+ * read using {@link IDeltaSyncClient#sync(IDeltaSyncSession, SyncRequest, ISyncResponseVisitor)}.
+ * Each {@link Command} is passed to {@link #command(Clazz, Command)} as soon
+ * as it has been parsed, in the order it appears in the response. Once a
+ * collection has ended {@link #endCollection(SyncResponse.Collection)} is
+ * called.
+ */
+public interface ISyncResponseVisitor {
+	/**
+	 * Called for each {@link Command} in a collection.
+	 *
+	 * @param clazz the {@link Clazz} of the collection.
+	 * @param command the {@link Command}.
+	 * @throws DeltaSyncException to stop reading the response. The exception
+	 *         is rethrown by <code>sync()</code>.
+	 */
+	void command(Clazz clazz, Command command) throws DeltaSyncException;
+
+	/**
+	 * Called at the end of each collection, after all its {@link Command}s.
+	 * {@link SyncResponse.Collection#getCommands()} of <code>collection</code>
+	 * is always empty.
+	 *
+	 * @param collection the collection.
+	 * @throws DeltaSyncException to stop reading the response. The exception
+	 *         is rethrown by <code>sync()</code>.
+	 */
+	void endCollection(SyncResponse.Collection collection) throws DeltaSyncException;
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link XmlRequestEntity} writing an <code>ItemOperations</code> request
+ * which fetches the compressed content of one or more messages using one
+ * <code>&lt;Fetch&gt;</code> per message.
+ */
+class ItemOperationsRequestEntity extends XmlRequestEntity {
+
+    private static final byte[] ITEM_OPERATIONS_START = bytes(
+            "<ItemOperations xmlns=\"ItemOperations:\" xmlns:A=\"HMMAIL:\">");
+    private static final byte[] FETCH_START = bytes(
+                "<Fetch>"
+            +     "<Class>Email</Class>"
+            +     "<A:ServerId>");
+    private static final byte[] FETCH_END = bytes(
+                  "</A:ServerId>"
+            +     "<A:Compression>hm-compression</A:Compression>"
+            +     "<A:ResponseContentType>mtom</A:ResponseContentType>"
+            +   "</Fetch>");
+    private static final byte[] ITEM_OPERATIONS_END = bytes("</ItemOperations>");
+
+    private final List<String> messageIds;
+
+    ItemOperationsRequestEntity(String messageId) {
+        this(Collections.singletonList(messageId));
+    }
+
+    ItemOperationsRequestEntity(List<String> messageIds) {
+        this.messageIds = messageIds;
+    }
+
+    @Override
+    protected void write(OutputStream out) throws IOException {
+        out.write(ITEM_OPERATIONS_START);
+        for (String messageId : messageIds) {
+            out.write(FETCH_START);
+            writeText(out, String.valueOf(messageId));
+            out.write(FETCH_END);
+        }
+        out.write(ITEM_OPERATIONS_END);
+    }
+}
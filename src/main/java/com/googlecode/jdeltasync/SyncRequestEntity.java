@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.googlecode.jdeltasync.message.Command;
+import com.googlecode.jdeltasync.message.FolderDeleteCommand;
+import com.googlecode.jdeltasync.message.MessageDeleteCommand;
+import com.googlecode.jdeltasync.message.SyncRequest;
+
+/**
+ * {@link XmlRequestEntity} writing a <code>Sync</code> request.
+ */
+class SyncRequestEntity extends XmlRequestEntity {
+
+    private static final byte[] SYNC_START = bytes("<Sync xmlns=\"AirSync:\"><Collections>");
+    private static final byte[] SYNC_END = bytes("</Collections></Sync>");
+    private static final byte[] COLLECTION_START = bytes("<Collection>");
+    private static final byte[] COLLECTION_END = bytes("</Collection>");
+    private static final byte[] CLASS_START = bytes("<Class>");
+    private static final byte[] CLASS_END = bytes("</Class>");
+    private static final byte[] COLLECTION_ID_START = bytes("<CollectionId>");
+    private static final byte[] COLLECTION_ID_END = bytes("</CollectionId>");
+    private static final byte[] SYNC_KEY_START = bytes("<SyncKey>");
+    private static final byte[] SYNC_KEY_END = bytes("</SyncKey>");
+    private static final byte[] GET_CHANGES = bytes("<GetChanges/>");
+    private static final byte[] WINDOW_SIZE_START = bytes("<WindowSize>");
+    private static final byte[] WINDOW_SIZE_END = bytes("</WindowSize>");
+    private static final byte[] COMMANDS_START = bytes("<Commands>");
+    private static final byte[] COMMANDS_END = bytes("</Commands>");
+    private static final byte[] DELETE_START = bytes("<Delete><ServerId>");
+    private static final byte[] DELETE_END = bytes("</ServerId></Delete>");
+
+    private final SyncRequest syncRequest;
+
+    SyncRequestEntity(SyncRequest syncRequest) {
+        this.syncRequest = syncRequest;
+    }
+
+    @Override
+    protected void write(OutputStream out) throws IOException {
+        out.write(SYNC_START);
+        for (SyncRequest.Collection collection : syncRequest.getCollections()) {
+            out.write(COLLECTION_START);
+            out.write(CLASS_START);
+            writeText(out, collection.getClazz().getSyncName());
+            out.write(CLASS_END);
+            if (collection.getCollectionId() != null) {
+                out.write(COLLECTION_ID_START);
+                writeText(out, collection.getCollectionId());
+                out.write(COLLECTION_ID_END);
+            }
+            out.write(SYNC_KEY_START);
+            writeText(out, String.valueOf(collection.getSyncKey()));
+            out.write(SYNC_KEY_END);
+            if (collection.isGetChanges()) {
+                out.write(GET_CHANGES);
+            }
+            if (collection.getWindowSize() > 0) {
+                out.write(WINDOW_SIZE_START);
+                writeText(out, String.valueOf(collection.getWindowSize()));
+                out.write(WINDOW_SIZE_END);
+            }
+            if (!collection.getCommands().isEmpty()) {
+                out.write(COMMANDS_START);
+                for (Command command : collection.getCommands()) {
+                    out.write(DELETE_START);
+                    switch (collection.getClazz()) {
+                    case Email:
+                        if (command instanceof MessageDeleteCommand) {
+                            writeText(out, ((MessageDeleteCommand) command).getId());
+                        }
+                        break;
+                    case Folder:
+                        if (command instanceof FolderDeleteCommand) {
+                            writeText(out, ((FolderDeleteCommand) command).getId());
+                        }
+                        break;
+                    }
+                    out.write(DELETE_END);
+                }
+                out.write(COMMANDS_END);
+            }
+            out.write(COLLECTION_END);
+        }
+        out.write(SYNC_END);
+    }
+}
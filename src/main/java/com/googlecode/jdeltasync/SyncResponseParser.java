@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.googlecode.jdeltasync.message.Clazz;
+import com.googlecode.jdeltasync.message.Command;
+import com.googlecode.jdeltasync.message.FolderAddCommand;
+import com.googlecode.jdeltasync.message.FolderChangeCommand;
+import com.googlecode.jdeltasync.message.FolderDeleteCommand;
+import com.googlecode.jdeltasync.message.MessageAddCommand;
+import com.googlecode.jdeltasync.message.MessageChangeCommand;
+import com.googlecode.jdeltasync.message.MessageDeleteCommand;
+import com.googlecode.jdeltasync.message.SyncResponse;
+
+/**
+ * Parses <code>Sync</code> responses in a single pass over the XML without
+ * building a DOM. The commands of each collection are passed to an
+ * {@link ISyncResponseVisitor} in the order they appear in the response or
+ * collected into a {@link SyncResponse}.
+ * <p>
+ * Elements are identified by their qualified names using the namespace
+ * prefixes of {@link XmlUtil}, e.g. <code>airsync:ServerId</code>. The text
+ * content of the elements of a command is collected keyed by the path
+ * relative to the command element. The command is created as soon as the
+ * command element has ended, or at the end of the collection if the
+ * <code>&lt;Class&gt;</code> of the collection comes after its commands.
+ */
+class SyncResponseParser extends DefaultHandler {
+
+    private final SimpleDateFormat format;
+    private final List<String> path = new ArrayList<String>();
+    private final StringBuilder text = new StringBuilder();
+
+    private final ISyncResponseVisitor visitor;
+    private int status = -1;
+    private String faultString;
+
+    // The current <Collection> if collectionDepth != -1
+    private int collectionDepth = -1;
+    private Map<String, String> collection;
+    private List<Map<String, String>> commands;
+    private List<SyncResponse.Collection.Response> responses;
+    private boolean moreAvailable;
+
+    // The current <Commands> or <Responses> child if itemDepth != -1
+    private int itemDepth = -1;
+    private boolean itemIsResponse;
+    private Map<String, String> item;
+
+    private SyncResponseParser(ISyncResponseVisitor visitor) {
+        this.visitor = visitor;
+        format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Parses a <code>Sync</code> response into a {@link SyncResponse}
+     * returned by {@link #getSyncResponse()}.
+     *
+     * @param input the stream to read from.
+     * @return the {@link SyncResponseParser} holding the result.
+     * @throws XmlException on parse errors.
+     * @throws DeltaSyncException if the response contains invalid values.
+     * @throws IOException on I/O errors.
+     */
+    public static SyncResponseParser parse(InputStream input) throws DeltaSyncException, IOException {
+        return parse(input, new Collector());
+    }
+
+    /**
+     * Parses a <code>Sync</code> response and passes its contents to the 
+     * specified {@link ISyncResponseVisitor} while reading. Nothing is passed
+     * to the {@link ISyncResponseVisitor} once a top level 
+     * <code>&lt;Status&gt;</code> other than 1 has been seen.
+     *
+     * @param input the stream to read from.
+     * @param visitor the {@link ISyncResponseVisitor}.
+     * @return the {@link SyncResponseParser} holding the status.
+     * @throws XmlException on parse errors.
+     * @throws DeltaSyncException if the response contains invalid values or
+     *         if thrown by <code>visitor</code>.
+     * @throws IOException on I/O errors.
+     */
+    public static SyncResponseParser parse(InputStream input, ISyncResponseVisitor visitor) 
+            throws DeltaSyncException, IOException {
+        
+        SyncResponseParser parser = new SyncResponseParser(visitor);
+        XmlUtil.parse(input, parser);
+        return parser;
+    }
+
+    /**
+     * Returns the value of the top level <code>&lt;Status&gt;</code> element.
+     *
+     * @return the status or <code>-1</code> if the response doesn't have a
+     *         <code>&lt;Status&gt;</code> element.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the <code>&lt;Faultstring&gt;</code> of an error response.
+     *
+     * @return the fault string or <code>null</code>.
+     */
+    public String getFaultString() {
+        return faultString;
+    }
+
+    /**
+     * Returns the parsed {@link SyncResponse}.
+     *
+     * @return the {@link SyncResponse}.
+     * @throws IllegalStateException if parsed using an
+     *         {@link ISyncResponseVisitor}.
+     */
+    public SyncResponse getSyncResponse() {
+        if (!(visitor instanceof Collector)) {
+            throw new IllegalStateException();
+        }
+        return ((Collector) visitor).getSyncResponse();
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        String name = XmlUtil.getPrefix(uri) + ":" + localName;
+        path.add(name);
+        text.setLength(0);
+        int depth = path.size();
+
+        if (collectionDepth == -1) {
+            if ("airsync:Collection".equals(name)) {
+                collectionDepth = depth;
+                collection = new HashMap<String, String>();
+                commands = new ArrayList<Map<String, String>>();
+                responses = new ArrayList<SyncResponse.Collection.Response>();
+                moreAvailable = false;
+            }
+        } else if (itemDepth == -1) {
+            if (depth == collectionDepth + 1 && "airsync:MoreAvailable".equals(name)) {
+                moreAvailable = true;
+            } else if (depth == collectionDepth + 2) {
+                String parent = path.get(depth - 2);
+                if ("airsync:Commands".equals(parent) && ("airsync:Add".equals(name)
+                        || "airsync:Change".equals(name) || "airsync:Delete".equals(name))) {
+                    itemDepth = depth;
+                    itemIsResponse = false;
+                } else if ("airsync:Responses".equals(parent) && "airsync:Delete".equals(name)) {
+                    itemDepth = depth;
+                    itemIsResponse = true;
+                }
+                if (itemDepth != -1) {
+                    item = new HashMap<String, String>();
+                    item.put("", localName);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        text.append(ch, start, length);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        int depth = path.size();
+        String name = path.get(depth - 1);
+
+        if (itemDepth != -1) {
+            if (depth == itemDepth) {
+                if (itemIsResponse) {
+                    int deleteStatus = Integer.parseInt(item.get("airsync:Status"));
+                    responses.add(new SyncResponse.Collection.EmailDeleteResponse(item.get("airsync:ServerId"), deleteStatus));
+                } else if (collection.containsKey("airsync:Class") && (status == -1 || status == 1)) {
+                    try {
+                        // Commands seen before the <Class> go first
+                        flushCommands();
+                        Clazz clazz = Clazz.valueOf(collection.get("airsync:Class"));
+                        visitor.command(clazz, createCommand(clazz, item));
+                    } catch (DeltaSyncException e) {
+                        throw new SAXException(e);
+                    }
+                } else {
+                    commands.add(item);
+                }
+                itemDepth = -1;
+                item = null;
+            } else {
+                StringBuilder key = new StringBuilder(path.get(itemDepth));
+                for (int i = itemDepth + 1; i < depth; i++) {
+                    key.append('/').append(path.get(i));
+                }
+                // Like XmlUtil.getTextContent() the first matching element wins
+                if (!item.containsKey(key.toString())) {
+                    item.put(key.toString(), text.toString().trim());
+                }
+            }
+        } else if (collectionDepth != -1) {
+            if (depth == collectionDepth) {
+                if (status == -1 || status == 1) {
+                    try {
+                        endCollection();
+                    } catch (DeltaSyncException e) {
+                        throw new SAXException(e);
+                    }
+                }
+                collectionDepth = -1;
+                collection = null;
+                commands = null;
+                responses = null;
+            } else if (depth == collectionDepth + 1 && !collection.containsKey(name)) {
+                collection.put(name, text.toString().trim());
+                if ("airsync:Class".equals(name) && !commands.isEmpty() && (status == -1 || status == 1)) {
+                    try {
+                        flushCommands();
+                    } catch (DeltaSyncException e) {
+                        throw new SAXException(e);
+                    }
+                }
+            }
+        } else if (depth == 2 && localName.equals("Status") && status == -1) {
+            status = Integer.parseInt(text.toString().trim());
+        } else if (depth == 3 && localName.equals("Faultstring") && path.get(1).endsWith(":Fault")
+                && faultString == null) {
+            faultString = text.toString().trim();
+        }
+
+        path.remove(depth - 1);
+        text.setLength(0);
+    }
+
+    /**
+     * Passes the commands buffered because they came before the 
+     * <code>&lt;Class&gt;</code> of the collection to the visitor.
+     */
+    private void flushCommands() throws DeltaSyncException {
+        if (commands.isEmpty()) {
+            return;
+        }
+        Clazz clazz = Clazz.valueOf(collection.get("airsync:Class"));
+        for (Map<String, String> command : commands) {
+            visitor.command(clazz, createCommand(clazz, command));
+        }
+        commands.clear();
+    }
+
+    private void endCollection() throws DeltaSyncException {
+        String syncKey = collection.get("airsync:SyncKey");
+        Clazz clazz = Clazz.valueOf(collection.get("airsync:Class"));
+        int collectionStatus = Integer.parseInt(collection.get("airsync:Status"));
+        flushCommands();
+        visitor.endCollection(new SyncResponse.Collection(syncKey, collection.get("airsync:CollectionId"), 
+                clazz, collectionStatus, Collections.<Command>emptyList(), moreAvailable, responses));
+    }
+
+    private Command createCommand(Clazz clazz, Map<String, String> command) throws DeltaSyncException {
+        String type = command.get("");
+        String id = command.get("airsync:ServerId");
+        switch (clazz) {
+        case Email:
+            if ("Delete".equals(type)) {
+                return new MessageDeleteCommand(id);
+            }
+            try {
+                String folderId = command.get("hmmail:FolderId");
+                boolean hasFlag = Integer.parseInt(command.get("airsync:ApplicationData/hmmail:Flag/hmmail:State")) != 0;
+                long size = Long.parseLong(command.get("airsync:ApplicationData/hmmail:Size"));
+                boolean read = Integer.parseInt(command.get("airsync:ApplicationData/email:Read")) == 1;
+                boolean hasAttachments = Integer.parseInt(command.get("airsync:ApplicationData/hmmail:HasAttachments")) == 1;
+                Date dateReceived = format.parse(command.get("airsync:ApplicationData/email:DateReceived"));
+                String subject = command.get("airsync:ApplicationData/email:Subject");
+                String from = command.get("airsync:ApplicationData/email:From");
+                if ("Add".equals(type)) {
+                    return new MessageAddCommand(id, folderId, dateReceived, size, read, subject, from, hasAttachments, hasFlag);
+                }
+                return new MessageChangeCommand(id, folderId, dateReceived, size, read, subject, from, hasAttachments, hasFlag);
+            } catch (ParseException e) {
+                throw new DeltaSyncException(e);
+            }
+        default:
+            if ("Delete".equals(type)) {
+                return new FolderDeleteCommand(id);
+            }
+            String displayName = command.get("airsync:ApplicationData/hmfolder:DisplayName");
+            String parentId = command.get("airsync:ApplicationData/hmfolder:ParentId");
+            if ("Add".equals(type)) {
+                return new FolderAddCommand(id, displayName, parentId);
+            }
+            return new FolderChangeCommand(id, displayName, parentId);
+        }
+    }
+
+    /**
+     * {@link ISyncResponseVisitor} collecting everything into 
+     * {@link SyncResponse.Collection}s.
+     */
+    static class Collector implements ISyncResponseVisitor {
+        private final List<SyncResponse.Collection> collections = new ArrayList<SyncResponse.Collection>();
+        private List<Command> commands = new ArrayList<Command>();
+
+        public void command(Clazz clazz, Command command) {
+            commands.add(command);
+        }
+
+        public void endCollection(SyncResponse.Collection collection) {
+            collections.add(new SyncResponse.Collection(collection.getSyncKey(), collection.getCollectionId(), 
+                    collection.getClazz(), collection.getStatus(), commands, collection.isMoreAvailable(), collection.getResponses()));
+            commands = new ArrayList<Command>();
+        }
+        
+        SyncResponse getSyncResponse() {
+            return new SyncResponse(collections);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Repeatable {@link org.apache.http.HttpEntity} which serializes an XML
+ * request directly to the connection's {@link OutputStream} each time it's
+ * sent instead of building it as a {@link String} and then as a byte array
+ * first. Subclasses write the fixed tags of the request using pre-encoded
+ * byte arrays created with {@link #bytes(String)} and the variable parts
+ * using {@link #writeText(OutputStream, String)}.
+ * <p>
+ * The request is written once more to count its length the first time
+ * {@link #getContentLength()} is called so the request can be sent with a
+ * <code>Content-Length</code> header as before.
+ */
+abstract class XmlRequestEntity extends AbstractHttpEntity {
+
+    private long contentLength = -1;
+
+    XmlRequestEntity() {
+        setContentType("text/xml");
+    }
+
+    /**
+     * Writes the request.
+     *
+     * @param out the stream to write to.
+     * @throws IOException on I/O errors.
+     */
+    protected abstract void write(OutputStream out) throws IOException;
+
+    /**
+     * Encodes a fixed part of a request as UTF-8.
+     *
+     * @param s the {@link String}.
+     * @return the encoded bytes.
+     */
+    protected static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * Writes a variable part of a request as UTF-8 escaping any characters
+     * which aren't allowed in XML character data.
+     *
+     * @param out the stream to write to.
+     * @param s the text.
+     * @throws IOException on I/O errors.
+     */
+    protected static void writeText(OutputStream out, String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '&' || c == '<' || c == '>') {
+                s = s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+                break;
+            }
+        }
+        out.write(s.getBytes("UTF-8"));
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+    public long getContentLength() {
+        if (contentLength == -1) {
+            final long[] count = new long[1];
+            try {
+                write(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        count[0]++;
+                    }
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        count[0] += len;
+                    }
+                });
+            } catch (IOException e) {
+                return -1;
+            }
+            contentLength = count[0];
+        }
+        return contentLength;
+    }
+
+    public InputStream getContent() throws IOException {
+        return new ByteArrayInputStream(toByteArray());
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        write(out);
+        out.flush();
+    }
+
+    private byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        write(baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Returns the request as a {@link String}. Used for logging.
+     */
+    @Override
+    public String toString() {
+        try {
+            return new String(toByteArray(), "UTF-8");
+        } catch (IOException e) {
+            return super.toString();
+        }
+    }
+}
@@ -22,15 +22,18 @@ import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -41,8 +44,8 @@ import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * Utility methods for working with XML {@link Document}s.
@@ -90,15 +93,35 @@ import org.xml.sax.SAXException;
  *     <td>hmsync</td><td>HMSYNC:</td>
  *   </tr>
  * </table>
+ * <p>
+ * Paths are compiled into {@link Path}s the first time they are used and
+ * the compiled {@link Path}s are cached. Code looking up the same path 
+ * over and over again can hold on to the {@link Path} returned by 
+ * {@link #compile(String)} to skip the cache lookup.
+ * <p>
+ * The {@link DocumentBuilder}s, {@link SAXParser}s and {@link Transformer}s
+ * used by this class are kept per thread and reset after each use instead of
+ * being created anew every time. A thread which is already using one, e.g.
+ * a {@link DefaultHandler} which parses another document, gets a new one.
  */
 class XmlUtil {
 
     private static final DocumentBuilderFactory DOM_FACTORY;
+    private static final SAXParserFactory SAX_FACTORY;
+    private static final TransformerFactory TRANSFORMER_FACTORY;
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDERS = new ThreadLocal<DocumentBuilder>();
+    private static final ThreadLocal<SAXParser> SAX_PARSERS = new ThreadLocal<SAXParser>();
+    private static final ThreadLocal<Transformer> TRANSFORMERS = new ThreadLocal<Transformer>();
     private static final Map<String, String> NAMESPACES;
+    private static final Map<String, String> PREFIXES;
+    private static final ConcurrentMap<String, Path> PATHS = new ConcurrentHashMap<String, Path>();
     
     static {
         DOM_FACTORY = DocumentBuilderFactory.newInstance();
         DOM_FACTORY.setNamespaceAware(true); 
+        SAX_FACTORY = SAXParserFactory.newInstance();
+        SAX_FACTORY.setNamespaceAware(true);
+        TRANSFORMER_FACTORY = TransformerFactory.newInstance();
         
         NAMESPACES = new HashMap<String, String>();
         NAMESPACES.put("s", "http://www.w3.org/2003/05/soap-envelope");
@@ -112,6 +135,22 @@ class XmlUtil {
         NAMESPACES.put("hmmail", "HMMAIL:");
         NAMESPACES.put("email", "EMAIL:");
         NAMESPACES.put("hmsync", "HMSYNC:");
+        
+        PREFIXES = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : NAMESPACES.entrySet()) {
+            PREFIXES.put(entry.getValue(), entry.getKey());
+        }
+    }
+    
+    /**
+     * Returns the prefix listed above for the specified namespace URI.
+     * 
+     * @param nsUri the namespace URI.
+     * @return the prefix or <code>nsUri</code> itself if it has no prefix.
+     */
+    static String getPrefix(String nsUri) {
+        String prefix = PREFIXES.get(nsUri);
+        return prefix != null ? prefix : nsUri;
     }
     
     /**
@@ -123,12 +162,59 @@ class XmlUtil {
      * @throws IOException on I/O errors.
      */
     public static Document parse(InputStream input) throws XmlException, IOException {
+        DocumentBuilder builder = DOCUMENT_BUILDERS.get();
+        try {
+            if (builder == null) {
+                builder = DOM_FACTORY.newDocumentBuilder();
+            } else {
+                DOCUMENT_BUILDERS.set(null);
+            }
+            return builder.parse(input);
+        } catch (SAXException e) {
+            throw new XmlException(e);
+        } catch (ParserConfigurationException e) {
+            throw new XmlException(e);
+        } finally {
+            if (builder != null) {
+                builder.reset();
+                DOCUMENT_BUILDERS.set(builder);
+            }
+        }
+    }
+    
+    /**
+     * Parses XML data from a stream using SAX and passes it to the specified
+     * {@link DefaultHandler}. The parser is namespace aware. 
+     * {@link DeltaSyncException}s thrown by the {@link DefaultHandler} 
+     * wrapped in a {@link SAXException} are unwrapped and rethrown.
+     * 
+     * @param input the stream to read from.
+     * @param handler the {@link DefaultHandler}.
+     * @throws XmlException on parse errors.
+     * @throws DeltaSyncException if thrown by <code>handler</code>.
+     * @throws IOException on I/O errors.
+     */
+    public static void parse(InputStream input, DefaultHandler handler) throws DeltaSyncException, IOException {
+        SAXParser parser = SAX_PARSERS.get();
         try {
-            return DOM_FACTORY.newDocumentBuilder().parse(input);
+            if (parser == null) {
+                parser = SAX_FACTORY.newSAXParser();
+            } else {
+                SAX_PARSERS.set(null);
+            }
+            parser.parse(input, handler);
         } catch (SAXException e) {
+            if (e.getException() instanceof DeltaSyncException) {
+                throw (DeltaSyncException) e.getException();
+            }
             throw new XmlException(e);
         } catch (ParserConfigurationException e) {
             throw new XmlException(e);
+        } finally {
+            if (parser != null) {
+                parser.reset();
+                SAX_PARSERS.set(parser);
+            }
         }
     }
 
@@ -141,6 +227,128 @@ class XmlUtil {
         return parts;
     }
     
+    /**
+     * A compiled path. The namespace prefixes of a {@link Path} are resolved
+     * once when it's compiled. Instances are immutable and thread-safe.
+     */
+    static final class Path {
+        private final String path;
+        private final String[] nsUris;
+        private final String[] localNames;
+        private final boolean[] recursive;
+        
+        private Path(String path) {
+            List<String> nsUriList = new ArrayList<String>();
+            List<String> localNameList = new ArrayList<String>();
+            List<Boolean> recursiveList = new ArrayList<Boolean>();
+            int slashes = 0;
+            for (String part : split(path, "/", true)) {
+                if (part.equals("/")) {
+                    slashes++;
+                    continue;
+                }
+                String[] qname = split(part, ":", false);
+                String nsUri = null;
+                if (qname.length > 1) {
+                    if ("*".equals(qname[0])) {
+                        nsUri = "*";
+                    } else {
+                        nsUri = NAMESPACES.get(qname[0]);
+                        if (nsUri == null) {
+                            throw new IllegalArgumentException("Unbound prefix " + qname[0]);
+                        }
+                    }
+                }
+                nsUriList.add(nsUri);
+                localNameList.add(qname.length > 1 ? qname[1] : qname[0]);
+                recursiveList.add(slashes > 1);
+                slashes = 0;
+            }
+            if (localNameList.isEmpty()) {
+                throw new IllegalArgumentException("Empty path");
+            }
+            this.path = path;
+            this.nsUris = nsUriList.toArray(new String[nsUriList.size()]);
+            this.localNames = localNameList.toArray(new String[localNameList.size()]);
+            this.recursive = new boolean[recursiveList.size()];
+            for (int i = 0; i < recursive.length; i++) {
+                recursive[i] = recursiveList.get(i);
+            }
+        }
+        
+        private boolean matches(Node node, int step) {
+            String nsUri = nsUris[step];
+            String childUri = node.getNamespaceURI();
+            return ("*".equals(nsUri) || nsUri == null && childUri == null || nsUri != null && nsUri.equals(childUri)) 
+                    && localNames[step].equals(node.getLocalName());
+        }
+        
+        /**
+         * Returns the first match of the steps from <code>step</code> and 
+         * on without looking any further.
+         */
+        private Element first(Node root, int step) {
+            for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child instanceof Element) {
+                    if (matches(child, step)) {
+                        if (step == localNames.length - 1) {
+                            return (Element) child;
+                        }
+                        Element match = first(child, step + 1);
+                        if (match != null) {
+                            return match;
+                        }
+                    } else if (recursive[step]) {
+                        Element match = first(child, step);
+                        if (match != null) {
+                            return match;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+        
+        private void all(Node root, int step, List<Element> result) {
+            for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child instanceof Element) {
+                    if (matches(child, step)) {
+                        if (step == localNames.length - 1) {
+                            result.add((Element) child);
+                        } else {
+                            all(child, step + 1, result);
+                        }
+                    } else if (recursive[step]) {
+                        all(child, step, result);
+                    }
+                }
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return path;
+        }
+    }
+    
+    /**
+     * Returns the compiled {@link Path} for the specified <code>path</code>.
+     * Compiled {@link Path}s are cached for the lifetime of the JVM so only
+     * a fixed set of paths should be used.
+     * 
+     * @param path the path.
+     * @return the {@link Path}.
+     * @throws IllegalArgumentException if the path uses an unknown prefix.
+     */
+    public static Path compile(String path) {
+        Path compiled = PATHS.get(path);
+        if (compiled == null) {
+            compiled = new Path(path);
+            PATHS.putIfAbsent(path, compiled);
+        }
+        return compiled;
+    }
+    
     /**
      * Returns the first {@link Element} which matches the specified
      * <code>path</code>. The search starts at the specified root {@link Node}.
@@ -151,11 +359,21 @@ class XmlUtil {
      *         <code>null</code> if no match could be found.
      */
     public static Element getElement(Node root, String path) {
-        List<Element> l = getElements(root, path);
-        if (l.isEmpty()) {
-            return null;
-        }
-        return l.get(0);
+        return getElement(root, compile(path));
+    }
+    
+    /**
+     * Returns the first {@link Element} which matches the specified
+     * {@link Path}. The search starts at the specified root {@link Node} and
+     * stops at the first match.
+     * 
+     * @param root the {@link Node} where the search will start.
+     * @param path the {@link Path} to search for.
+     * @return the first {@link Element} that matches the path or 
+     *         <code>null</code> if no match could be found.
+     */
+    public static Element getElement(Node root, Path path) {
+        return path.first(root, 0);
     }
     
     /**
@@ -167,69 +385,23 @@ class XmlUtil {
      * @return the {@link Element}s that matches the path.
      */
     public static List<Element> getElements(Node root, String path) {
-        return getElements(root, new LinkedList<String>(Arrays.asList(split(path, "/", true))));
+        return getElements(root, compile(path));
     }
     
-    private static List<Element> find(Node root, String nsUri, String localName, boolean recursive) {
+    /**
+     * Returns all {@link Element}s which matches the specified
+     * {@link Path}. The search starts at the specified root {@link Node}.
+     * 
+     * @param root the {@link Node} where the search will start.
+     * @param path the {@link Path} to search for.
+     * @return the {@link Element}s that matches the path.
+     */
+    public static List<Element> getElements(Node root, Path path) {
         List<Element> result = new ArrayList<Element>();
-        NodeList nl = root.getChildNodes();
-        if (nl != null) {
-            int len = nl.getLength();
-            for (int i = 0; i < len; i++) {
-                Node child = nl.item(i);
-                if (child instanceof Element) {
-                    String childUri = child.getNamespaceURI();
-                    String childLocalName = child.getLocalName();
-                    if (("*".equals(nsUri) || nsUri == null && childUri == null || nsUri.equals(childUri)) 
-                            && localName.equals(childLocalName)) {
-                        result.add((Element) child);
-                    } else if (recursive) {
-                        result.addAll(find(child, nsUri, localName, recursive));
-                    }
-                }
-            }
-        }
+        path.all(root, 0, result);
         return result;
     }
     
-    private static List<Element> getElements(Node root, LinkedList<String> parts) {
-        boolean recursive = false;
-        if (parts.getFirst().equals("/")) {
-            parts.removeFirst();
-            if (parts.getFirst().equals("/")) {
-                parts.removeFirst();
-                recursive = true;
-            }
-        }
-        
-        String[] qname = split(parts.removeFirst(), ":", false);
-        String nsUri = null;
-        if (qname.length > 1) {
-            if ("*".equals(qname[0])) {
-                nsUri = "*";
-            } else {
-                nsUri = NAMESPACES.get(qname[0]);
-                if (nsUri == null) {
-                    throw new IllegalArgumentException("Unbound prefix " + qname[0]);
-                }
-            }
-        }
-        String localName = qname.length > 1 ? qname[1] : qname[0];
-        List<Element> matches = find(root, nsUri, localName, recursive);
-        if (!matches.isEmpty()) {
-            if (parts.isEmpty()) {
-                return matches;
-            } else {
-                List<Element> result = new ArrayList<Element>(); 
-                for (Element match : matches) {
-                    result.addAll(getElements(match, new LinkedList<String>(parts)));
-                }
-                return result;
-            }
-        }
-        return new ArrayList<Element>();
-    }
-    
     /**
      * Returns <code>true</code> if there is at least one {@link Element} which 
      * matches the specified <code>path</code>. The search starts at the 
@@ -241,6 +413,20 @@ class XmlUtil {
      *         otherwise.
      */
     public static boolean hasElement(Node root, String path) {
+        return hasElement(root, compile(path));
+    }
+    
+    /**
+     * Returns <code>true</code> if there is at least one {@link Element} which 
+     * matches the specified {@link Path}. The search starts at the 
+     * specified root {@link Node}.
+     * 
+     * @param root the {@link Node} where the search will start.
+     * @param path the {@link Path} to search for.
+     * @return <code>true</code> if a match was found. <code>false</code>
+     *         otherwise.
+     */
+    public static boolean hasElement(Node root, Path path) {
         return getElement(root, path) != null;
     }
     
@@ -255,6 +441,20 @@ class XmlUtil {
      *         path or <code>null</code> if no match could be found.
      */
     public static String getTextContent(Node root, String path) {
+        return getTextContent(root, compile(path));
+    }
+    
+    /**
+     * Returns the text content of the first {@link Element} which matches the 
+     * specified {@link Path}. The search starts at the specified root 
+     * {@link Node}.
+     * 
+     * @param root the {@link Node} where the search will start.
+     * @param path the {@link Path} to search for.
+     * @return the text content of the first {@link Element} that matches the 
+     *         path or <code>null</code> if no match could be found.
+     */
+    public static String getTextContent(Node root, Path path) {
         Element el = getElement(root, path);
         String s = el == null ? null : el.getTextContent();
         return s != null ? s.trim() : null;
@@ -270,6 +470,19 @@ class XmlUtil {
      * @param value the new text content.
      */
     public static void setTextContent(Node root, String path, String value) {
+        setTextContent(root, compile(path), value);
+    }
+    
+    /**
+     * Sets the text content of the first {@link Element} which matches the 
+     * specified {@link Path}. The search starts at the specified root 
+     * {@link Node}.
+     * 
+     * @param root the {@link Node} where the search will start.
+     * @param path the {@link Path} to search for.
+     * @param value the new text content.
+     */
+    public static void setTextContent(Node root, Path path, String value) {
         Element el = getElement(root, path);
         el.setTextContent(value);
     }
@@ -297,15 +510,7 @@ class XmlUtil {
      * @throws XmlException on XML errors.
      */
     public static void writeDocument(Document doc, OutputStream out, boolean compact) throws XmlException {
-        try {
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer serializer = tf.newTransformer();
-            serializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            serializer.setOutputProperty(OutputKeys.INDENT, compact ? "no" : "yes");
-            serializer.transform(new DOMSource(doc), new StreamResult(out));
-        } catch (TransformerException e) {
-            throw new XmlException(e);
-        }
+        transform(doc, new StreamResult(out), compact);
     }
     
     /**
@@ -331,14 +536,30 @@ class XmlUtil {
      * @throws XmlException on XML errors.
      */
     public static void writeDocument(Document doc, Writer writer, boolean compact) throws XmlException {
+        transform(doc, new StreamResult(writer), compact);
+    }
+    
+    private static void transform(Document doc, StreamResult result, boolean compact) throws XmlException {
+        Transformer serializer = TRANSFORMERS.get();
         try {
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer serializer = tf.newTransformer();
+            if (serializer == null) {
+                // TransformerFactory isn't thread-safe
+                synchronized (TRANSFORMER_FACTORY) {
+                    serializer = TRANSFORMER_FACTORY.newTransformer();
+                }
+            } else {
+                TRANSFORMERS.set(null);
+            }
             serializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
             serializer.setOutputProperty(OutputKeys.INDENT, compact ? "no" : "yes");
-            serializer.transform(new DOMSource(doc), new StreamResult(writer));
+            serializer.transform(new DOMSource(doc), result);
         } catch (TransformerException e) {
             throw new XmlException(e);
+        } finally {
+            if (serializer != null) {
+                serializer.reset();
+                TRANSFORMERS.set(serializer);
+            }
         }
     }
     
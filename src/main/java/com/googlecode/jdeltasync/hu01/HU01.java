@@ -18,7 +18,6 @@ import java.util.Arrays;
  */
 class HU01 {
 
-    private static final boolean DEBUG = false;
     private static final boolean DEBUG_TABLE_GEN = false;
 
     static boolean build_decompression_table(ByteBuffer source_ptr, short[] table) {
@@ -202,32 +201,172 @@ class HU01 {
         return (value>>places)|(value<<(WORD_LENGTH-places)); 
     } 
 
-    static void decompress_hu01_block(ByteBuffer source_ptr, short[] table, ByteBuffer destination_ptr) throws HU01Exception {
-        ByteBuffer source = source_ptr.duplicate().order(ByteOrder.LITTLE_ENDIAN);
-        ByteBuffer destination = destination_ptr.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Copies {@code n} bytes from {@code from} to {@code to} within {@code b}. 
+     * Overlapping copies are done byte by byte since a match may repeat bytes
+     * it produces itself.
+     */
+    private static void copy(byte[] b, int from, int to, int n) {
+        if (to - from >= n) {
+            System.arraycopy(b, from, b, to, n);
+        } else {
+            for (int i = 0; i < n; i++) {
+                b[to + i] = b[from + i];
+            }
+        }
+    }
+    
+    private static int getShort(byte[] b, int i) {
+        return (short) ((b[i] & 0xff) | (b[i + 1] << 8));
+    }
+    
+    /**
+     * Input bytes the fast loop in 
+     * {@link #decompress_hu01_block(byte[], int, int, short[], byte[], int, int)}
+     * may consume per symbol: a word after the code, 3 bytes of match length
+     * and a word after the extra offset bits.
+     */
+    private static final int FAST_INPUT_MARGIN = 7;
+    
+    /**
+     * Same as {@link #decompress_hu01_block(ByteBuffer, short[], ByteBuffer)} but
+     * works directly on arrays instead of going through {@link ByteBuffer} views.
+     * <p>
+     * Symbols are decoded by a tight loop as long as there's enough input 
+     * left that none of the end of input checks of the original code can 
+     * trigger. The last few symbols are decoded by 
+     * {@link #decompress_hu01_block_tail(byte[], int, int, short[], byte[], int, int, int, int, int)}
+     * which follows the original code step by step so the output is 
+     * identical.
+     * 
+     * @return the number of bytes written to {@code destination}.
+     */
+    static int decompress_hu01_block(byte[] source, int source_off, int source_len, short[] table, 
+            byte[] destination, int destination_off, int destination_len) throws HU01Exception {
+        
+        int sp = source_off;
+        int source_end = source_off + source_len;
+        int dp = destination_off;
+        int destination_end = destination_off + destination_len;
+        
+        if (source_len < 4) {
+            return 0;
+        }
         
         // 1BA35
-        int esi = (source.getShort() << 16) | (source.getShort() &  0xffff);
-        int ch = 0,cl = 0;
+        int esi = (getShort(source, sp) << 16) | (getShort(source, sp + 2) &  0xffff);
+        sp += 4;
+        int ch = 0x10;
+        
+        // 1BA44
+        if (sp >= source_end || dp >= destination_end) {
+            return dp - destination_off;
+        }
+        
+        int fast_source_end = source_end - FAST_INPUT_MARGIN;
+        while (sp <= fast_source_end && dp < destination_end) {
+            // 1BA56
+            int eax = table[esi >>> 0x16];
+            if (eax >= 0) {
+                esi = esi << (eax & 0x0f);
+            } else {
+                // 1BB55
+                esi = esi << 10;
+                do {
+                    eax = eax + (esi >>> 31);
+                    esi = esi + esi;
+                    eax = table[0x8000 + eax];
+                } while (eax < 0);
+            }
+            ch = ch - (eax & 0x0f);
+            eax = (eax >>> 4) - 0x100;
+            if (ch < 0) {
+                // 1BAFA
+                esi = esi + ((getShort(source, sp) & 0xffff) << -ch);
+                sp += 2;
+                ch = ch + 0x10;
+            }
+            
+            if (eax < 0) {
+                // 1BB2B
+                destination[dp++] = (byte) eax;
+                continue;
+            }
+            
+            // 1BA84
+            int bits = eax >>> 4;
+            int distance = (0x80000000 | (esi >>> 1)) >>> (0x1f - bits);
+            esi = esi << bits;
+            ch = ch - bits;
+            int length = eax & 0x0f;
+            if (length == 0x0f) {
+                // 1B9C5
+                length = source[sp++] & 0xff;
+                if (length == 0xff) {
+                    length = getShort(source, sp) & 0xffff;
+                    sp += 2;
+                    if (length < 0x10e) {
+                        throw new HU01Exception();
+                    }
+                } else {
+                    length += 0x0f;
+                }
+            }
+            
+            // 1B9E6
+            int from = dp - distance;
+            if (from < destination_off) {
+                throw new HU01Exception();
+            }
+            /*
+             * The original C code sometimes writes after the end of the destination buffer.
+             * C does no bounds checking so that code appears to work fine. Here the copy 
+             * is truncated at the end of the destination instead.
+             */
+            int n = Math.min(length + 3, destination_end - dp);
+            copy(destination, from, dp, n);
+            dp += n;
+            
+            if (dp >= destination_end && (eax & 0x0f) > 5) {
+                // We're done
+                return dp - destination_off;
+            }
+            if (ch < 0) {
+                // 1BAD0
+                if (dp >= destination_end) {
+                    // We're done
+                    return dp - destination_off;
+                }
+                esi = esi + ((getShort(source, sp) & 0xffff) << -ch);
+                sp += 2;
+                ch = ch + 0x10;
+            }
+        }
+        
+        return decompress_hu01_block_tail(source, sp, source_end, table, 
+                destination, destination_off, dp, destination_end, esi, ch);
+    }
+    
+    /**
+     * Decodes the remaining symbols of a block starting at 1BA56 in the 
+     * original code. Used for the last bytes of input where any symbol may 
+     * hit the end of input.
+     * 
+     * @return the number of bytes written to {@code destination} in total.
+     */
+    static int decompress_hu01_block_tail(byte[] source, int sp, int source_end, short[] table, 
+            byte[] destination, int destination_off, int dp, int destination_end, 
+            int esi, int ch) throws HU01Exception {
+        
+        int cl = 0;
         int eax = 0, edx = 0;
         int saved_esi = 0;
         int esi_ptr_pos = 0;
-        int edi_ptr_pos = 0;
-        
-        ch = 0x10; // 1BA42
+        int n = 0;
         
-        int pc = 0x1BA44;
+        int pc = 0x1BA56;
         loop: while (true) {
             switch (pc) {
-            case 0x1BA44:
-                if (source.hasRemaining() && destination.hasRemaining()) {
-                    pc = 0x1BA56;
-                    continue loop;
-                } else {
-                    // We're done
-                    return;
-                }
-                
             case 0x1BA56:
                 edx = esi; // 1BA56
                 cl = 0x0f;
@@ -274,39 +413,21 @@ class HU01 {
                     pc = 0x1B9E1;
                     continue loop;
                 }
-                // 1BAA8
-                esi_ptr_pos = destination.position() + edx;
-                if (edx<=-3) {
-                    pc = 0x36670;
-                    continue loop;
-                }
-            
-                if (esi_ptr_pos < destination_ptr.position()) {
+                // 1BAA8 and 36670
+                esi_ptr_pos = dp + edx;
+                if (esi_ptr_pos < destination_off) {
                     throw new HU01Exception();
                 }
-            
-                try {
-                    for (int i = 0; i < eax + 3; i++) {
-                        destination.put(destination.position() + i, destination.get(esi_ptr_pos + i));
-                    }
-                } catch (IndexOutOfBoundsException e) {
-                    /*
-                     * The original C code sometimes writes after the end of the destination buffer.
-                     * C does no bounds checking so that code appears to work fine. However, in Java an 
-                     * exception will be thrown.
-                     */
-                }
-                if (DEBUG) {
-                    try {
-                        for (int i = 0; i < eax + 3; i++) {
-                            System.out.printf("%c", (char) destination.get(destination.position() + i));                   
-                        }
-                    } catch (IndexOutOfBoundsException e) {
-                    }
-                }
-            
+                
+                /*
+                 * The original C code sometimes writes after the end of the destination buffer.
+                 * C does no bounds checking so that code appears to work fine. Here the copy 
+                 * is truncated at the end of the destination instead.
+                 */
+                n = Math.min(eax + 3, destination_end - dp);
+                copy(destination, esi_ptr_pos, dp, n);
+                dp += n;
                 esi = saved_esi;
-                destination.position(Math.min(destination.limit(), destination.position() + eax + 3));
             
                 // 1BAC8
                 if (ch>=0) {
@@ -315,12 +436,13 @@ class HU01 {
                 }
             
             case 0x1BAD0:
-                if (!source.hasRemaining() || !destination.hasRemaining()) {
+                if (source_end - sp < 2 || dp >= destination_end) {
                     // We're done
-                    return;
+                    return dp - destination_off;
                 }
                 cl = ch;
-                edx = source.getShort() & 0xffff;
+                edx = getShort(source, sp) & 0xffff;
+                sp += 2;
                 cl = -cl;
                 edx = edx << cl;
                 ch = ch + 0x10;
@@ -328,49 +450,15 @@ class HU01 {
                 pc = 0x1BA56;
                 continue loop;
             
-            case 0x36670:
-                if (esi_ptr_pos < destination_ptr.position()) {
-                    throw new HU01Exception();
-                }
-            
-                try {
-                    for (int i = 0; i < eax + 3; i++) {
-                        destination.put(destination.position() + i, destination.get(esi_ptr_pos + i));
-                    }
-                } catch (IndexOutOfBoundsException e) {
-                    /*
-                     * The original C code sometimes writes after the end of the destination buffer.
-                     * C does no bounds checking so that code appears to work fine. However, in Java an 
-                     * exception will be thrown.
-                     */
-                }
-                if (DEBUG) {
-                    try {
-                        for (int i = 0; i < eax + 3; i++) {
-                            System.out.printf("%c", (char) destination.get(destination.position()+i));                   
-                        }
-                    } catch (IndexOutOfBoundsException e) {
-                    }
-                }
-            
-                esi = saved_esi;
-                destination.position(Math.min(destination.limit(), destination.position() + eax + 3));
-                if (ch>=0) {
-                    pc = 0x1BA56;
-                    continue loop;
-                }
-            
-                pc = 0x1BAD0;
-                continue loop;
-            
             case 0x1BAFA:
-                if(!source.hasRemaining() || !destination.hasRemaining()) {
+                if (source_end - sp < 2 || dp >= destination_end) {
                     // We're done
-                    return;
+                    return dp - destination_off;
                 }
                 // 1BB0C
                 cl = ch;
-                edx = source.getShort() & 0xffff;
+                edx = getShort(source, sp) & 0xffff;
+                sp += 2;
                 cl = -cl;
                 // 1BB15
                 edx = edx << cl;
@@ -389,17 +477,8 @@ class HU01 {
             case 0x1BB2B:
                 edx = esi;
             
-                if (destination.hasRemaining()) {
-                    /*
-                     * Guard against buffer overflow.
-                     * The original C code sometimes writes after the end of the destination buffer.
-                     * C does no bounds checking so that code appears to work fine. However, in Java an 
-                     * exception will be thrown.
-                     */
-                    if (DEBUG) {
-                        System.out.printf("%c", (char) (eax & 0xff));
-                    }
-                    destination.put((byte) (eax & 0xff));    // decompressed byte written here
+                if (dp < destination_end) {
+                    destination[dp++] = (byte) (eax & 0xff);    // decompressed byte written here
                 }
                 edx = edx >>> 0x16;
             
@@ -432,18 +511,22 @@ class HU01 {
                 continue loop;
                 
             case 0x1B9C5:
-                if (!source.hasRemaining()) {
+                if (sp >= source_end) {
                     // We're done
-                    return;
+                    return dp - destination_off;
                 }
-                eax = source.get() & 0xff;
+                eax = source[sp++] & 0xff;
                 // 1B9CC
                 eax += 0x0f;
                 if (eax!=0x10e) {
                     pc = 0x1B9E6;
                     continue loop;
                 } else {
-                    eax = source.getShort() & 0xffff;
+                    if (source_end - sp < 2) {
+                        return dp - destination_off;
+                    }
+                    eax = getShort(source, sp) & 0xffff;
+                    sp += 2;
                 
                     if (eax>=0x10e) {
                         pc = 0x1B9E6;
@@ -461,43 +544,20 @@ class HU01 {
             
             case 0x1B9E6:
                 // let's get ready to copy some bytes
-                esi_ptr_pos = destination.position() + edx;
+                esi_ptr_pos = dp + edx;
                 eax = eax + 3;
-                edi_ptr_pos = destination.position() + eax;
-                if (esi_ptr_pos<0) {
+                if (esi_ptr_pos < destination_off) {
                     throw new HU01Exception();
                 }
             
-//                if (edi_ptr_pos>=destination.limit()) {
-//                    // We're done
-//                    return;
-//                }
-            
-                try {
-                    for (int i = 0; i < eax; i++) {
-                        destination.put(destination.position() + i, destination.get(esi_ptr_pos + i));
-                    }
-                } catch (IndexOutOfBoundsException e) {
-                    /*
-                     * The original C code sometimes writes after the end of the destination buffer.
-                     * C does no bounds checking so that code appears to work fine. However, in Java an 
-                     * exception will be thrown.
-                     */
-                }
-                if (DEBUG) {
-                    try {
-                        for (int i = 0; i < eax; i++) {
-                            System.out.printf("%c", (char) destination.get(destination.position()+i));                   
-                        }
-                    } catch (IndexOutOfBoundsException e) {
-                    }
-                }
-                destination.position(Math.min(destination.limit(), edi_ptr_pos));
+                n = Math.min(eax, destination_end - dp);
+                copy(destination, esi_ptr_pos, dp, n);
+                dp += n;
             
                 esi = saved_esi;
-                if (!destination.hasRemaining()) {
+                if (dp >= destination_end) {
                     // We're done
-                    return;
+                    return dp - destination_off;
                 }
                 if (ch<0) {
                     pc = 0x1BAD0;
@@ -537,5 +597,25 @@ class HU01 {
             }
         }
     }
+
+    static void decompress_hu01_block(ByteBuffer source_ptr, short[] table, ByteBuffer destination_ptr) throws HU01Exception {
+        if (source_ptr.hasArray() && destination_ptr.hasArray()) {
+            decompress_hu01_block(source_ptr.array(), source_ptr.arrayOffset() + source_ptr.position(), source_ptr.remaining(), 
+                    table, destination_ptr.array(), destination_ptr.arrayOffset() + destination_ptr.position(), destination_ptr.remaining());
+            return;
+        }
+        
+        /*
+         * Direct buffers are decoded through temporary arrays rather than 
+         * through absolute get() and put() calls which relied on catching 
+         * IndexOutOfBoundsException at the end of the destination.
+         */
+        byte[] source = new byte[source_ptr.remaining()];
+        source_ptr.duplicate().get(source);
+        byte[] destination = new byte[destination_ptr.remaining()];
+        int n = decompress_hu01_block(source, 0, source.length, table, destination, 0, destination.length);
+        ByteBuffer d = destination_ptr.duplicate();
+        d.put(destination, 0, n);
+    }
     
 }
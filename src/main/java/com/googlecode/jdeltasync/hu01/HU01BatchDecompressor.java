@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decompresses large numbers of HU01 streams, e.g. raw message content
+ * saved using {@code DeltaSyncClient.downloadRawMessageContent()}, using
+ * several threads. Each thread pulls the next {@link Task} from a shared
+ * {@link Iterator} as soon as it's done with the previous one so threads
+ * never sit idle while there's work left, no matter how the sizes of the
+ * streams vary. Each thread reuses the same {@link HU01Decompressor} and
+ * buffers for all the streams it decompresses.
+ * <p>
+ * Typical usage:
+ * <pre>
+ * ExecutorService executor = Executors.newFixedThreadPool(4);
+ * HU01BatchDecompressor batch = new HU01BatchDecompressor(executor, 4);
+ * HU01BatchDecompressor.Result result = batch.run(tasks.iterator());
+ * System.out.println(result.getDecompressedBytesPerSecond() + " bytes/s");
+ * </pre>
+ * <p>
+ * This class is thread-safe.
+ */
+public class HU01BatchDecompressor {
+
+    /**
+     * A single stream to be decompressed. The streams are only opened
+     * when the {@link Task} is about to be processed and are always closed
+     * afterwards.
+     */
+    public interface Task {
+        /**
+         * Returns the id of this {@link Task} used when reporting failures.
+         *
+         * @return the id.
+         */
+        String getId();
+
+        /**
+         * Opens the HU01 stream to decompress.
+         *
+         * @return the compressed stream.
+         * @throws IOException on errors opening the stream.
+         */
+        InputStream openSource() throws IOException;
+
+        /**
+         * Opens the stream the decompressed data is written to.
+         *
+         * @return the destination stream.
+         * @throws IOException on errors opening the stream.
+         */
+        OutputStream openSink() throws IOException;
+    }
+
+    /**
+     * The outcome of {@link HU01BatchDecompressor#run(Iterator)}.
+     */
+    public static class Result {
+        private final int tasks;
+        private final long compressedBytes;
+        private final long decompressedBytes;
+        private final long elapsedNanos;
+        private final Map<String, Exception> failures;
+
+        Result(int tasks, long compressedBytes, long decompressedBytes, long elapsedNanos,
+                Map<String, Exception> failures) {
+            this.tasks = tasks;
+            this.compressedBytes = compressedBytes;
+            this.decompressedBytes = decompressedBytes;
+            this.elapsedNanos = elapsedNanos;
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * Returns the number of {@link Task}s processed, including failed ones.
+         *
+         * @return the number of {@link Task}s.
+         */
+        public int getTasks() {
+            return tasks;
+        }
+
+        /**
+         * Returns the number of compressed bytes read by all {@link Task}s.
+         *
+         * @return the number of bytes.
+         */
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        /**
+         * Returns the number of decompressed bytes written by all
+         * {@link Task}s.
+         *
+         * @return the number of bytes.
+         */
+        public long getDecompressedBytes() {
+            return decompressedBytes;
+        }
+
+        /**
+         * Returns the wall-clock time it took to process all {@link Task}s.
+         *
+         * @return the time in seconds.
+         */
+        public double getElapsedSeconds() {
+            return elapsedNanos / 1000000000.0;
+        }
+
+        /**
+         * Returns the aggregate throughput of all workers.
+         *
+         * @return the number of decompressed bytes written per second.
+         */
+        public double getDecompressedBytesPerSecond() {
+            return elapsedNanos > 0 ? decompressedBytes / getElapsedSeconds() : 0;
+        }
+
+        /**
+         * Returns the exceptions thrown by failed {@link Task}s in the
+         * order they failed keyed by {@link Task#getId()}.
+         *
+         * @return the failures.
+         */
+        public Map<String, Exception> getFailures() {
+            return failures;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Executor executor;
+    private final int threads;
+
+    /**
+     * Creates a new {@link HU01BatchDecompressor} which runs {@code threads}
+     * workers on the specified {@link Executor}. The {@link Executor} should
+     * be able to run all workers concurrently.
+     *
+     * @param executor the {@link Executor}.
+     * @param threads the number of workers.
+     * @throws IllegalArgumentException if {@code threads} is 0 or negative.
+     */
+    public HU01BatchDecompressor(Executor executor, int threads) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads");
+        }
+        this.executor = executor;
+        this.threads = threads;
+    }
+
+    /**
+     * Processes all {@link Task}s returned by {@code tasks} and waits for
+     * them to finish. {@code tasks} is only accessed by one thread at a time.
+     * A {@link Task} which fails doesn't stop the other {@link Task}s. Its
+     * exception is reported in {@link Result#getFailures()}.
+     *
+     * @param tasks the {@link Task}s.
+     * @return the {@link Result}.
+     * @throws InterruptedException if interrupted while waiting for the
+     *         workers. The workers stop after their current {@link Task}.
+     * @throws RejectedExecutionException if the {@link Executor} rejects a
+     *         worker. The workers already started stop after their current
+     *         {@link Task} and are waited for before this is thrown.
+     * @throws RuntimeException if thrown by {@code tasks}.
+     */
+    public Result run(Iterator<? extends Task> tasks) throws InterruptedException {
+        if (tasks == null) {
+            throw new NullPointerException("tasks");
+        }
+        Batch batch = new Batch(tasks);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            try {
+                executor.execute(batch);
+            } catch (RejectedExecutionException e) {
+                batch.stop();
+                // Workers which never started won't count down themselves
+                for (int j = i; j < threads; j++) {
+                    batch.done.countDown();
+                }
+                batch.done.await();
+                throw e;
+            }
+        }
+        try {
+            batch.done.await();
+        } catch (InterruptedException e) {
+            batch.stop();
+            throw e;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (batch.error != null) {
+            throw batch.error;
+        }
+        return new Result(batch.tasks, batch.compressedBytes, batch.decompressedBytes, elapsed, batch.failures);
+    }
+
+    /**
+     * Creates the {@link HU01Decompressor} used by a worker. Override to
+     * configure the {@link HU01Decompressor}s, e.g. to use
+     * {@link HU01Decompressor.CrcCheck#OFF} for streams known to be intact.
+     *
+     * @return the new {@link HU01Decompressor}.
+     */
+    protected HU01Decompressor createDecompressor() {
+        return new HU01Decompressor(BUFFER_SIZE);
+    }
+
+    /**
+     * Shared state of a single call to {@link #run(Iterator)}. The same
+     * instance is run by all workers.
+     */
+    private class Batch implements Runnable {
+        private final Iterator<? extends Task> iterator;
+        private final CountDownLatch done = new CountDownLatch(threads);
+        private final Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+        // Guarded by this
+        private boolean stopped = false;
+        private RuntimeException error;
+        private int tasks = 0;
+        private long compressedBytes = 0;
+        private long decompressedBytes = 0;
+
+        Batch(Iterator<? extends Task> iterator) {
+            this.iterator = iterator;
+        }
+
+        synchronized void stop() {
+            stopped = true;
+        }
+
+        private synchronized Task next() {
+            if (stopped) {
+                return null;
+            }
+            try {
+                if (iterator.hasNext()) {
+                    return iterator.next();
+                }
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            stopped = true;
+            return null;
+        }
+
+        private synchronized void completed(Task task, long compressed, long decompressed, Exception e) {
+            tasks++;
+            compressedBytes += compressed;
+            decompressedBytes += decompressed;
+            if (e != null) {
+                failures.put(task.getId(), e);
+            }
+        }
+
+        public void run() {
+            try {
+                HU01Decompressor decompressor = createDecompressor();
+                byte[] in = new byte[BUFFER_SIZE];
+                byte[] out = new byte[BUFFER_SIZE];
+                Task task;
+                while ((task = next()) != null) {
+                    long[] counts = new long[2];
+                    Exception failure = null;
+                    try {
+                        decompress(task, decompressor, in, out, counts);
+                    } catch (Exception e) {
+                        failure = e;
+                    } finally {
+                        decompressor.reset();
+                    }
+                    completed(task, counts[0], counts[1], failure);
+                }
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    if (error == null) {
+                        error = e;
+                    }
+                    stopped = true;
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    private static void decompress(Task task, HU01Decompressor decompressor, byte[] in, byte[] out,
+            long[] counts) throws IOException, HU01Exception {
+
+        InputStream source = task.openSource();
+        try {
+            OutputStream sink = task.openSink();
+            try {
+                int n;
+                while (!decompressor.finished() && (n = source.read(in)) != -1) {
+                    counts[0] += n;
+                    decompressor.addInput(in, 0, n);
+                    while ((n = decompressor.decompress(out)) > 0) {
+                        sink.write(out, 0, n);
+                        counts[1] += n;
+                    }
+                }
+                if (!decompressor.finished()) {
+                    throw new HU01Exception("Unexpected end of HU01 stream");
+                }
+            } finally {
+                sink.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Compresses data using the <i>HU01</i> format understood by
+ * {@link HU01Decompressor}. Each block is LZ77 compressed using hash chains
+ * and the resulting literals and matches are Huffman coded using a table
+ * which {@link HU01#build_decompression_table(ByteBuffer, short[])} accepts.
+ * The output is not byte for byte identical to what the DeltaSync servers
+ * produce but it decompresses to the original data. This is mainly useful
+ * for generating test and benchmark data and for serving compressed content
+ * from a local stand-in for a DeltaSync server.
+ * <p>
+ * Instances of this class are not thread-safe.
+ */
+public class HU01Compressor {
+
+    /**
+     * The default and maximum size of the uncompressed data in each block.
+     */
+    public static final int MAX_BLOCK_SIZE = 65536;
+
+    private static final int HU01_MAGIC = 0x31305548; // HU01 (LE)
+    private static final int SCBH_MAGIC = 0x48424353; // SCBH (LE)
+    private static final int HEADER_SIZE = 0x28;
+    private static final int BLOCK_HEADER_SIZE = 20;
+    private static final int TABLE_SIZE = 256;
+    private static final int SYMBOLS = 512;
+    private static final int MAX_CODE_LENGTH = 15;
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_BITS = 15;
+    private static final int DEFAULT_MAX_CHAIN = 64;
+    /**
+     * Blocks smaller than this with equal compressed and decompressed sizes
+     * are treated as stored blocks by the decompressor.
+     */
+    private static final int MAX_STORED_BLOCK_SIZE = 2048;
+
+    private int blockSize = MAX_BLOCK_SIZE;
+    private int maxChain = DEFAULT_MAX_CHAIN;
+
+    // Per block state reused between blocks
+    private final int[] head = new int[1 << HASH_BITS];
+    private int[] prev = new int[0];
+    private int[] symbols = new int[0];
+    private int[] distances = new int[0];
+    private int[] lengths = new int[0];
+    private int tokens;
+    private final int[] freqs = new int[SYMBOLS];
+    private final int[] codeLengths = new int[SYMBOLS];
+    private final int[] codes = new int[SYMBOLS];
+
+    /**
+     * Returns the maximum number of uncompressed bytes in each block.
+     *
+     * @return the block size.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the maximum number of uncompressed bytes in each block. The
+     * default is {@link #MAX_BLOCK_SIZE}.
+     *
+     * @param blockSize the block size.
+     * @throws IllegalArgumentException if {@code blockSize} is not between 1
+     *         and {@link #MAX_BLOCK_SIZE}.
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("blockSize");
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Returns the maximum number of earlier positions examined when looking
+     * for a match.
+     *
+     * @return the maximum hash chain length.
+     */
+    public int getMaxChain() {
+        return maxChain;
+    }
+
+    /**
+     * Sets the maximum number of earlier positions examined when looking for
+     * a match. Higher values give better compression at the cost of speed.
+     * 0 disables matching and only Huffman codes the data. The default is
+     * 64.
+     *
+     * @param maxChain the maximum hash chain length.
+     * @throws IllegalArgumentException if {@code maxChain} is negative.
+     */
+    public void setMaxChain(int maxChain) {
+        if (maxChain < 0) {
+            throw new IllegalArgumentException("maxChain");
+        }
+        this.maxChain = maxChain;
+    }
+
+    /**
+     * Compresses the specified data.
+     *
+     * @param data the data to compress.
+     * @return the HU01 stream.
+     */
+    public byte[] compress(byte[] data) {
+        return compress(data, 0, data.length);
+    }
+
+    /**
+     * Compresses {@code len} bytes of {@code data} starting at {@code off}.
+     *
+     * @param data the data to compress.
+     * @param off the offset of the first byte to compress.
+     * @param len the number of bytes to compress.
+     * @return the HU01 stream.
+     */
+    public byte[] compress(byte[] data, int off, int len) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len / 2 + HEADER_SIZE);
+        try {
+            compress(data, off, len, baos);
+        } catch (IOException e) {
+            // Never thrown by ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Compresses {@code len} bytes of {@code data} starting at {@code off}
+     * and writes the HU01 stream to {@code out}.
+     *
+     * @param data the data to compress.
+     * @param off the offset of the first byte to compress.
+     * @param len the number of bytes to compress.
+     * @param out the stream to write the HU01 stream to.
+     * @throws IOException on errors writing to {@code out}.
+     */
+    public void compress(byte[] data, int off, int len, OutputStream out) throws IOException {
+        if (off < 0 || len < 0 || off > data.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, HU01_MAGIC);
+        header.putInt(4, HEADER_SIZE);
+        // The meaning of this field is unknown. All streams seen so far use 3 in the high word.
+        header.putInt(28, 0x00030000);
+        header.putInt(32, len);
+        out.write(header.array());
+
+        for (int pos = off; pos < off + len; pos += blockSize) {
+            block(data, pos, Math.min(blockSize, off + len - pos), out);
+        }
+    }
+
+    private void block(byte[] data, int off, int len, OutputStream out) throws IOException {
+        byte[] compressed = compressBlock(data, off, len);
+        if (len < MAX_STORED_BLOCK_SIZE && compressed.length >= len) {
+            // Not worth it. Store the block instead.
+            compressed = null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(SCBH_MAGIC);
+        header.putInt(BLOCK_HEADER_SIZE);
+        header.putInt(len);
+        header.putInt((int) crc.getValue());
+        header.putInt(compressed != null ? compressed.length : len);
+        out.write(header.array());
+        if (compressed != null) {
+            out.write(compressed);
+        } else {
+            out.write(data, off, len);
+        }
+    }
+
+    /**
+     * Returns the table followed by the bit stream for the specified block.
+     */
+    private byte[] compressBlock(byte[] data, int off, int len) {
+        findMatches(data, off, len);
+
+        Arrays.fill(freqs, 0);
+        for (int i = 0; i < tokens; i++) {
+            freqs[symbols[i]]++;
+        }
+        // The padding after the last symbol needs a literal and the table needs at least 2 symbols
+        if (!hasLiteral()) {
+            freqs[0]++;
+        }
+        if (countSymbols() < 2) {
+            freqs[freqs[0] == 0 ? 0 : 1]++;
+        }
+        buildCodeLengths();
+        buildCodes();
+
+        int padding = 0;
+        for (int sym = 0; sym < 0x100; sym++) {
+            if (codeLengths[sym] != 0 && (codeLengths[padding] == 0 || codeLengths[sym] < codeLengths[padding])) {
+                padding = sym;
+            }
+        }
+
+        /*
+         * First write all codes and extra offset bits to a bit stream of 16-bit
+         * words. The stream is followed by at least 64 bits of padding literals
+         * which the reference decoder may decode past the end of the block
+         * before it runs out of input.
+         */
+        BitWriter bits = new BitWriter(tokens);
+        for (int i = 0; i < tokens; i++) {
+            int sym = symbols[i];
+            bits.write(codes[sym], codeLengths[sym]);
+            if (sym >= 0x100) {
+                int n = (sym >> 4) & 0xf;
+                bits.write(distances[i] - (1 << n), n);
+            }
+        }
+        for (int i = 0; i < 64 / codeLengths[padding] + 1; i++) {
+            bits.write(codes[padding], codeLengths[padding]);
+        }
+        bits.flush();
+
+        /*
+         * Now interleave the words with the extra match length bytes in the
+         * exact order the decoder reads them. The decoder keeps a 32 bit
+         * buffer and loads a new word after a symbol or a match whenever
+         * fewer than 16 bits remain. Extra length bytes are read right after
+         * the extra offset bits.
+         */
+        ByteArrayOutputStream out = new ByteArrayOutputStream(TABLE_SIZE + bits.size() * 2 + 64);
+        writeTable(out);
+        int word = 0;
+        writeWord(out, bits.get(word++));
+        writeWord(out, bits.get(word++));
+        int avail = 16;
+        for (int i = 0; i < tokens; i++) {
+            int sym = symbols[i];
+            avail -= codeLengths[sym];
+            if (avail < 0) {
+                writeWord(out, bits.get(word++));
+                avail += 16;
+            }
+            if (sym < 0x100) {
+                continue;
+            }
+            avail -= (sym >> 4) & 0xf;
+            if ((sym & 0xf) == 0xf) {
+                int length = lengths[i];
+                if (length - 18 < 0xff) {
+                    out.write(length - 18);
+                } else {
+                    out.write(0xff);
+                    writeWord(out, length - 3);
+                }
+            }
+            if (avail < 0) {
+                writeWord(out, bits.get(word++));
+                avail += 16;
+            }
+        }
+        // The padding literals remaining in the loaded words are decoded past
+        // the end of the block until the next refill finds no more input.
+        return out.toByteArray();
+    }
+
+    private boolean hasLiteral() {
+        for (int sym = 0; sym < 0x100; sym++) {
+            if (freqs[sym] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int countSymbols() {
+        int n = 0;
+        for (int sym = 0; sym < SYMBOLS; sym++) {
+            if (freqs[sym] != 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Greedy LZ77 parse of the block using hash chains. Fills
+     * {@link #symbols}, {@link #distances} and {@link #lengths}.
+     */
+    private void findMatches(byte[] data, int off, int len) {
+        if (symbols.length < len) {
+            symbols = new int[len];
+            distances = new int[len];
+            lengths = new int[len];
+            prev = new int[len];
+        }
+        Arrays.fill(head, -1);
+        tokens = 0;
+        int end = off + len;
+        int pos = off;
+        while (pos < end) {
+            int bestLength = 0;
+            int bestDistance = 0;
+            if (pos + MIN_MATCH <= end) {
+                int h = hash(data, pos);
+                int candidate = head[h];
+                int maxLength = end - pos;
+                for (int chain = 0; chain < maxChain && candidate >= 0 && pos - (candidate + off) <= MAX_DISTANCE; chain++) {
+                    int c = candidate + off;
+                    if (data[c + bestLength] == data[pos + bestLength]) {
+                        int n = 0;
+                        while (n < maxLength && data[c + n] == data[pos + n]) {
+                            n++;
+                        }
+                        if (n > bestLength) {
+                            bestLength = n;
+                            bestDistance = pos - c;
+                            if (n == maxLength) {
+                                break;
+                            }
+                        }
+                    }
+                    candidate = prev[candidate];
+                }
+            }
+
+            if (bestLength >= MIN_MATCH) {
+                int n = 31 - Integer.numberOfLeadingZeros(bestDistance);
+                int l = Math.min(bestLength - MIN_MATCH, 0xf);
+                symbols[tokens] = 0x100 | (n << 4) | l;
+                distances[tokens] = bestDistance;
+                lengths[tokens] = bestLength;
+                tokens++;
+                for (int i = 0; i < bestLength; i++) {
+                    insert(data, off, end, pos + i);
+                }
+                pos += bestLength;
+            } else {
+                symbols[tokens++] = data[pos] & 0xff;
+                insert(data, off, end, pos);
+                pos++;
+            }
+        }
+    }
+
+    private void insert(byte[] data, int off, int end, int pos) {
+        if (pos + MIN_MATCH <= end) {
+            int h = hash(data, pos);
+            prev[pos - off] = head[h];
+            head[h] = pos - off;
+        }
+    }
+
+    private static int hash(byte[] data, int pos) {
+        int h = ((data[pos] & 0xff) << 16) | ((data[pos + 1] & 0xff) << 8) | (data[pos + 2] & 0xff);
+        return (h * 0x9e3779b1) >>> (32 - HASH_BITS);
+    }
+
+    /**
+     * Builds Huffman code lengths from {@link #freqs}. Frequencies are
+     * halved until no code is longer than {@value #MAX_CODE_LENGTH} bits.
+     */
+    private void buildCodeLengths() {
+        int[] f = freqs.clone();
+        while (huffman(f) > MAX_CODE_LENGTH) {
+            for (int sym = 0; sym < SYMBOLS; sym++) {
+                if (f[sym] != 0) {
+                    f[sym] = (f[sym] + 1) >> 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the Huffman code lengths for the specified frequencies into
+     * {@link #codeLengths} and returns the longest length.
+     */
+    private int huffman(int[] f) {
+        int n = 0;
+        long[] leaves = new long[SYMBOLS];
+        for (int sym = 0; sym < SYMBOLS; sym++) {
+            if (f[sym] != 0) {
+                leaves[n++] = ((long) f[sym] << 16) | sym;
+            }
+        }
+        Arrays.sort(leaves, 0, n);
+
+        // Leaves are nodes 0..n-1, internal nodes n..2n-2 in creation order
+        long[] weights = new long[2 * n - 1];
+        int[] parents = new int[2 * n - 1];
+        for (int i = 0; i < n; i++) {
+            weights[i] = leaves[i] >>> 16;
+        }
+        int nextLeaf = 0;
+        int nextInternal = n;
+        for (int node = n; node < 2 * n - 1; node++) {
+            int[] children = new int[2];
+            for (int c = 0; c < 2; c++) {
+                if (nextLeaf < n && (nextInternal >= node || weights[nextLeaf] <= weights[nextInternal])) {
+                    children[c] = nextLeaf++;
+                } else {
+                    children[c] = nextInternal++;
+                }
+            }
+            weights[node] = weights[children[0]] + weights[children[1]];
+            parents[children[0]] = node;
+            parents[children[1]] = node;
+        }
+
+        int[] depths = new int[2 * n - 1];
+        int max = 0;
+        Arrays.fill(codeLengths, 0);
+        for (int node = 2 * n - 3; node >= 0; node--) {
+            depths[node] = depths[parents[node]] + 1;
+            if (node < n) {
+                codeLengths[(int) (leaves[node] & 0xffff)] = depths[node];
+                max = Math.max(max, depths[node]);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Assigns canonical codes: shorter codes are numerically smaller and
+     * codes of the same length are assigned in symbol order.
+     */
+    private void buildCodes() {
+        int code = 0;
+        for (int len = 1; len <= MAX_CODE_LENGTH; len++) {
+            for (int sym = 0; sym < SYMBOLS; sym++) {
+                if (codeLengths[sym] == len) {
+                    codes[sym] = code++;
+                }
+            }
+            code <<= 1;
+        }
+    }
+
+    /**
+     * Writes the code lengths as nibbles. Even symbols use the low nibble
+     * and odd symbols the high nibble.
+     */
+    private void writeTable(ByteArrayOutputStream out) {
+        for (int sym = 0; sym < SYMBOLS; sym += 2) {
+            out.write(codeLengths[sym] | (codeLengths[sym + 1] << 4));
+        }
+    }
+
+    private static void writeWord(ByteArrayOutputStream out, int word) {
+        out.write(word & 0xff);
+        out.write((word >> 8) & 0xff);
+    }
+
+    /**
+     * Collects bits MSB first into 16-bit words.
+     */
+    private static class BitWriter {
+        private int[] words;
+        private int size = 0;
+        private int acc = 0;
+        private int count = 0;
+
+        BitWriter(int capacity) {
+            words = new int[capacity / 2 + 16];
+        }
+
+        void write(int value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                acc = (acc << 1) | ((value >>> i) & 1);
+                if (++count == 16) {
+                    add(acc);
+                    acc = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        void flush() {
+            if (count > 0) {
+                add(acc << (16 - count));
+                acc = 0;
+                count = 0;
+            }
+        }
+
+        private void add(int word) {
+            if (size == words.length) {
+                int[] w = new int[size * 2];
+                System.arraycopy(words, 0, w, 0, size);
+                words = w;
+            }
+            words[size++] = word;
+        }
+
+        int get(int i) {
+            return words[i];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -17,6 +17,11 @@ package com.googlecode.jdeltasync.hu01;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.zip.CRC32;
 import java.util.zip.Inflater;
 
@@ -26,20 +31,113 @@ import java.util.zip.Inflater;
  * for info on the compression). This class resembles the {@link Inflater} class 
  * and is used in a similar manner.
  * <p>
+ * Each block in a HU01 stream carries its own table and CRC so blocks can be
+ * decoded independently of each other. If an {@link Executor} has been set 
+ * using {@link #setExecutor(Executor, int)} complete blocks will be decoded
+ * concurrently using that {@link Executor} while the decompressed data is
+ * still returned in order by {@link #decompress(byte[], int, int)}.
+ * <p>
+ * By default each block is decoded once it has been added in full which 
+ * means that the entire compressed block and the entire decompressed block
+ * are held in memory. If a memory limit has been set using
+ * {@link #setMemoryLimit(int)} blocks are instead decoded incrementally as
+ * compressed input is added and blocks which wouldn't fit within the limit
+ * are rejected.
+ * <p>
+ * How the CRC of each block is verified is controlled by 
+ * {@link #setCrcCheck(CrcCheck)}.
+ * <p>
+ * Callers only interested in the RFC 822 header of a message can use
+ * {@link #setMaxBodyLines(int)} to stop decompression right after the 
+ * header or after a number of body lines.
+ * <p>
  * Some of the JavaDoc comments have been copied from Apache Harmony's 
  * {@code java.util.zip.Inflater} code.
  */
 public class HU01Decompressor {
-    private static final int HU01_MAGIC = 0x31305548; // HU01 (LE)
-    private static final int SCBH_MAGIC = 0x48424353; // SCBH (LE)
+    
+    /**
+     * The decoders which can be used to decode the compressed blocks.
+     */
+    public enum Decoder {
+        /**
+         * Direct port of the original hu01_decompressor.c code. Decodes one
+         * symbol per table lookup.
+         */
+        REFERENCE,
+        /**
+         * Builds a wider lookup table for each block which lets several 
+         * literals or an entire match be decoded per table lookup.
+         */
+        MULTI_SYMBOL
+    }
+    
+    /**
+     * The ways the CRC of each decoded block can be verified.
+     */
+    public enum CrcCheck {
+        /**
+         * The CRC of a block is verified right after the block has been 
+         * decoded, before any of its bytes are returned.
+         */
+        STRICT,
+        /**
+         * The CRC of a block is computed as its bytes are returned by 
+         * {@link HU01Decompressor#decompress(byte[], int, int)} and verified
+         * by the first call after the last byte of the block has been 
+         * returned. Bytes of a corrupt block may thus be returned before the
+         * error is reported, at the latest when the end of the stream is 
+         * reached. When blocks are decoded by an {@link Executor} the CRC 
+         * is verified by the {@link Executor} as with {@link #STRICT}.
+         */
+        PIPELINED,
+        /**
+         * CRCs aren't verified at all. Only use this for streams known to be
+         * intact, e.g. streams read back from a local cache.
+         */
+        OFF
+    }
+    
+    static final int HU01_MAGIC = 0x31305548; // HU01 (LE)
+    static final int SCBH_MAGIC = 0x48424353; // SCBH (LE)
     private static final int TABLE_SIZE = 256;
 
+    private final int initialBufferSize;
     private boolean inHeader = true;
     private long decompressedSize = 0;
     private long decompressedBytes = 0;
     private ByteBuffer buffer;
     private ByteBuffer decoded;
-    private short[] table = new short[0x8000];
+    private short[] table = new short[HU01TableCache.TABLE_ENTRIES];
+    private int[] multiTable;
+    private byte[] blockIn;
+    private HU01Stats stats;
+    private long blockTableNanos;
+    private long blockDecodeNanos;
+    private byte[] blockOut;
+    private Decoder decoder = Decoder.REFERENCE;
+    private CrcCheck crcCheck = CrcCheck.STRICT;
+    private final CRC32 crc32 = new CRC32();
+    private boolean crcPending = false;
+    private long pendingCrc;
+    private HU01TableCache tableCache;
+    private Executor executor;
+    private int maxPendingBlocks;
+    private final LinkedList<FutureTask<byte[]>> pending = new LinkedList<FutureTask<byte[]>>();
+    private final LinkedList<BlockTables> freeTables = new LinkedList<BlockTables>();
+    private long scheduledBytes = 0;
+    private int memoryLimit = 0;
+    private final HU01StreamingBlockDecoder streamingDecoder = new HU01StreamingBlockDecoder();
+    private boolean inBlock = false;
+    private boolean blockCompressed;
+    private int blockRemaining;
+    private int blockSize;
+    private long blockCrc;
+    private int maxBodyLines = -1;
+    private boolean stopped = false;
+    private boolean inBody = false;
+    private boolean emptyLine = true;
+    private int bodyLines = 0;
     
     /**
      * Creates a new instance using an initial buffer size of 4096 bytes.
@@ -54,10 +152,201 @@ public class HU01Decompressor {
      * @param initialBufferSize the initail buffer size.
      */
     public HU01Decompressor(int initialBufferSize) {
+        this.initialBufferSize = initialBufferSize;
         buffer = allocateBuffer(initialBufferSize);
         buffer.flip();
     }
     
+    /**
+     * Returns the {@link Decoder} used to decode compressed blocks.
+     * 
+     * @return the {@link Decoder}.
+     */
+    public Decoder getDecoder() {
+        return decoder;
+    }
+    
+    /**
+     * Sets the {@link Decoder} used to decode compressed blocks. The default
+     * is {@link Decoder#REFERENCE}.
+     * 
+     * @param decoder the {@link Decoder}.
+     */
+    public void setDecoder(Decoder decoder) {
+        if (decoder == null) {
+            throw new NullPointerException("decoder");
+        }
+        this.decoder = decoder;
+    }
+    
+    /**
+     * Returns how the CRC of each decoded block is verified.
+     * 
+     * @return the {@link CrcCheck}.
+     */
+    public CrcCheck getCrcCheck() {
+        return crcCheck;
+    }
+    
+    /**
+     * Sets how the CRC of each decoded block is verified. The default is
+     * {@link CrcCheck#STRICT}. This should only be called before 
+     * decompression starts or right after {@link #reset()}.
+     * 
+     * @param crcCheck the {@link CrcCheck}.
+     */
+    public void setCrcCheck(CrcCheck crcCheck) {
+        if (crcCheck == null) {
+            throw new NullPointerException("crcCheck");
+        }
+        this.crcCheck = crcCheck;
+    }
+    
+    /**
+     * Returns the {@link HU01Stats} updated by this {@code HU01Decompressor}.
+     * 
+     * @return the {@link HU01Stats} or {@code null} if no statistics are 
+     *         collected.
+     */
+    public HU01Stats getStats() {
+        return stats;
+    }
+    
+    /**
+     * Sets the {@link HU01Stats} updated by this {@code HU01Decompressor}. 
+     * The same {@link HU01Stats} can be used by several 
+     * {@link HU01Decompressor}s. If {@code null} (the default) no statistics
+     * are collected and no time is spent measuring.
+     * 
+     * @param stats the {@link HU01Stats} or {@code null}.
+     */
+    public void setStats(HU01Stats stats) {
+        this.stats = stats;
+    }
+    
+    /**
+     * Returns the {@link HU01TableCache} used to look up block tables.
+     * 
+     * @return the {@link HU01TableCache} or {@code null} if tables aren't cached.
+     */
+    public HU01TableCache getTableCache() {
+        return tableCache;
+    }
+    
+    /**
+     * Sets the {@link HU01TableCache} used to look up block tables. If 
+     * {@code null} (the default) the table is rebuilt for every block.
+     * 
+     * @param tableCache the {@link HU01TableCache} or {@code null}.
+     */
+    public void setTableCache(HU01TableCache tableCache) {
+        this.tableCache = tableCache;
+    }
+    
+    /**
+     * Returns the {@link Executor} used to decode blocks concurrently.
+     * 
+     * @return the {@link Executor} or {@code null} if blocks are decoded on
+     *         the calling thread.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+    
+    /**
+     * Returns the maximum number of blocks scheduled on the {@link Executor}
+     * at any time.
+     * 
+     * @return the maximum number of pending blocks.
+     */
+    public int getMaxPendingBlocks() {
+        return maxPendingBlocks;
+    }
+    
+    /**
+     * Sets the {@link Executor} used to decode blocks concurrently. Up to 
+     * {@code maxPendingBlocks} complete blocks will be scheduled ahead of the
+     * block currently being returned by {@link #decompress(byte[], int, int)}.
+     * Pass {@code null} to decode blocks on the calling thread (the default).
+     * This should only be called before decompression starts or right after
+     * {@link #reset()}.
+     * 
+     * @param executor the {@link Executor} or {@code null}.
+     * @param maxPendingBlocks the maximum number of blocks scheduled at any time.
+     * @throws IllegalArgumentException if {@code maxPendingBlocks} is 0 or negative.
+     */
+    public void setExecutor(Executor executor, int maxPendingBlocks) {
+        if (executor != null && maxPendingBlocks <= 0) {
+            throw new IllegalArgumentException("maxPendingBlocks");
+        }
+        this.executor = executor;
+        this.maxPendingBlocks = maxPendingBlocks;
+    }
+    
+    /**
+     * Returns the maximum number of bytes used for buffering compressed and
+     * decompressed data.
+     * 
+     * @return the memory limit in bytes or 0 if there's no limit.
+     */
+    public int getMemoryLimit() {
+        return memoryLimit;
+    }
+    
+    /**
+     * Sets the maximum number of bytes used for buffering compressed and
+     * decompressed data. If set, blocks are decoded incrementally as 
+     * compressed input is added, always on the calling thread (any 
+     * {@link Executor} is ignored) and using a {@link Decoder#REFERENCE}
+     * style decoder. A block which is too big to be decoded within the limit
+     * causes {@link #decompress(byte[], int, int)} to throw a 
+     * {@link HU01Exception}. Since the compressed input is consumed as it's 
+     * added {@link #addInput(byte[], int, int)} should only be called with
+     * small chunks of input when {@link #decompress(byte[], int, int)} 
+     * returns 0. It throws an {@link IllegalStateException} if the added 
+     * input doesn't fit within the limit. Blocks are never bigger than 65536
+     * bytes so a limit of 65536 + 276 bytes plus the size of the input chunks
+     * is enough for any valid stream. This should only be called before decompression starts or 
+     * right after {@link #reset()}.
+     * 
+     * @param memoryLimit the limit in bytes or 0 for no limit (the default).
+     * @throws IllegalArgumentException if {@code memoryLimit} is negative.
+     */
+    public void setMemoryLimit(int memoryLimit) {
+        if (memoryLimit < 0) {
+            throw new IllegalArgumentException("memoryLimit");
+        }
+        this.memoryLimit = memoryLimit;
+    }
+    
+    /**
+     * Returns the number of body lines after which decompression stops.
+     * 
+     * @return the number of lines or -1 if the entire stream is decompressed.
+     */
+    public int getMaxBodyLines() {
+        return maxBodyLines;
+    }
+    
+    /**
+     * Makes decompression stop once the blank line ending the RFC 822 header
+     * and {@code maxBodyLines} lines of the body have been returned, like
+     * the POP3 {@code TOP} command. After that {@link #finished()} returns
+     * {@code true} and no more input has to be added. Lines are terminated 
+     * by LF (optionally preceded by CR). Pass -1 (the default) to decompress
+     * the entire stream. This should only be called before decompression 
+     * starts or right after {@link #reset()}.
+     * 
+     * @param maxBodyLines the number of body lines or -1.
+     * @throws IllegalArgumentException if {@code maxBodyLines} is less than -1.
+     */
+    public void setMaxBodyLines(int maxBodyLines) {
+        if (maxBodyLines < -1) {
+            throw new IllegalArgumentException("maxBodyLines");
+        }
+        this.maxBodyLines = maxBodyLines;
+    }
+    
     /**
      * Resets the {@code HU01Decompressor}. Should be called prior to inflating a new
      * set of data.
@@ -66,6 +355,14 @@ public class HU01Decompressor {
         inHeader = true;
         decompressedSize = 0;
         decompressedBytes = 0;
+        scheduledBytes = 0;
+        inBlock = false;
+        stopped = false;
+        inBody = false;
+        emptyLine = true;
+        bodyLines = 0;
+        crcPending = false;
+        cancelPending();
         buffer.position(0);
         buffer.limit(0);
         if (decoded != null) {
@@ -74,17 +371,107 @@ public class HU01Decompressor {
         }
     }
     
+    /**
+     * Resets the {@code HU01Decompressor} like {@link #reset()} and also 
+     * restores every setting to its default, i.e. the {@link Decoder}, 
+     * {@link CrcCheck}, {@link HU01Stats}, {@link HU01TableCache}, 
+     * {@link Executor}, memory limit and max body lines. Afterwards the 
+     * {@code HU01Decompressor} behaves like a new instance apart from the
+     * buffers it has already allocated.
+     */
+    public void restoreDefaults() {
+        reset();
+        decoder = Decoder.REFERENCE;
+        crcCheck = CrcCheck.STRICT;
+        stats = null;
+        tableCache = null;
+        executor = null;
+        maxPendingBlocks = 0;
+        memoryLimit = 0;
+        maxBodyLines = -1;
+        synchronized (freeTables) {
+            freeTables.clear();
+        }
+    }
+    
+    /**
+     * Releases the buffers which have grown bigger than {@code maxSize} bytes
+     * while decompressing, e.g. a stream with large blocks or input added in
+     * large chunks. The input buffer shrinks back to its initial size and 
+     * the other buffers are allocated again when needed. This should only be
+     * called before decompression starts or right after {@link #reset()}.
+     * 
+     * @param maxSize the maximum size of a buffer to keep.
+     */
+    public void trimBuffers(int maxSize) {
+        if (buffer.capacity() > maxSize) {
+            buffer = allocateBuffer(initialBufferSize);
+            buffer.flip();
+        }
+        if (decoded != null && decoded.capacity() > maxSize) {
+            decoded = null;
+        }
+        if (blockIn != null && blockIn.length > maxSize) {
+            blockIn = null;
+        }
+        if (blockOut != null && blockOut.length > maxSize) {
+            blockOut = null;
+        }
+    }
+    
+    /**
+     * Returns the size of the largest buffer currently held.
+     */
+    int largestBuffer() {
+        int max = buffer.capacity();
+        if (decoded != null) {
+            max = Math.max(max, decoded.capacity());
+        }
+        if (blockIn != null) {
+            max = Math.max(max, blockIn.length);
+        }
+        if (blockOut != null) {
+            max = Math.max(max, blockOut.length);
+        }
+        return max;
+    }
+    
+    private void cancelPending() {
+        for (FutureTask<byte[]> task : pending) {
+            task.cancel(false);
+        }
+        pending.clear();
+    }
+    
     /**
      * Indicates if the {@code HU01Decompressor} has decompressed the entire compressed
      * stream. If compressed bytes remain this method will return {@code false}. This 
      * method should be called after all compressed input is supplied to the 
-     * {@code HU01Decompressor}.
+     * {@code HU01Decompressor}. With {@link CrcCheck#PIPELINED} the stream
+     * isn't finished until the CRC of the last block has been verified by
+     * a final call to {@link #decompress(byte[], int, int)}. If 
+     * {@link #setMaxBodyLines(int)} has been 
+     * used this method returns {@code true} as soon as the requested lines 
+     * have been decompressed.
      *
      * @return {@code true} if all input has been decompressed, {@code false}
      *         otherwise.
      */
     public boolean finished() {
-        return !inHeader && decompressedBytes == decompressedSize;
+        return stopped || !inHeader && decompressedBytes == decompressedSize && !crcPending;
+    }
+    
+    /**
+     * Indicates if decompression has stopped before the end of the stream
+     * because the number of body lines set using {@link #setMaxBodyLines(int)}
+     * has been returned. Unlike {@link #finished()} this is {@code false} 
+     * when the entire stream has been decompressed.
+     *
+     * @return {@code true} if decompression stopped early, {@code false}
+     *         otherwise.
+     */
+    public boolean stopped() {
+        return stopped;
     }
     
     /**
@@ -113,33 +500,261 @@ public class HU01Decompressor {
      *         has to be called to provide more compressed data.
      */
     public int decompress(byte[] buf, int off, int nbytes) throws HU01Exception {
+        checkPendingCrc();
         if (finished()) {
             return -1;
         }
-        
+        if (!prepareDecoded()) {
+            return 0;
+        }
+        int n = limitLines(Math.min(nbytes, decoded.remaining()));
+        updatePendingCrc(n);
+        decoded.get(buf, off, n);
+        decompressedBytes += n;
+        if (stats != null) {
+            stats.addDecompressedBytes(n);
+        }
+        return n;
+    }
+    
+    /**
+     * Decompresses bytes from the current input and stores them in 
+     * {@code dst}, which may be a direct buffer. At most 
+     * {@code dst.remaining()} bytes are written and the position of 
+     * {@code dst} is advanced by the number of bytes written.
+     *
+     * @param dst the buffer to write decompressed bytes to.
+     * @throws HU01Exception if the underlying stream is corrupted.
+     * @return the number of bytes decompressed. Returns 0 if more data is needed.
+     *         If 0 is returned {@link #addInput(ByteBuffer)} has to be called 
+     *         to provide more compressed data.
+     */
+    public int decompress(ByteBuffer dst) throws HU01Exception {
+        checkPendingCrc();
+        if (finished()) {
+            return -1;
+        }
+        if (!prepareDecoded()) {
+            return 0;
+        }
+        int n = limitLines(Math.min(dst.remaining(), decoded.remaining()));
+        updatePendingCrc(n);
+        int limit = decoded.limit();
+        decoded.limit(decoded.position() + n);
+        dst.put(decoded);
+        decoded.limit(limit);
+        decompressedBytes += n;
+        if (stats != null) {
+            stats.addDecompressedBytes(n);
+        }
+        return n;
+    }
+    
+    /**
+     * Returns the total decompressed size of the HU01 stream starting at the
+     * position of {@code src}, as stated in the stream header. The position 
+     * of {@code src} isn't changed.
+     *
+     * @param src the buffer containing the HU01 stream.
+     * @return the decompressed size in bytes.
+     * @throws HU01Exception if {@code src} doesn't start with a valid header.
+     */
+    public static long getDecompressedSize(ByteBuffer src) throws HU01Exception {
+        ByteBuffer b = src.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (b.remaining() < 0x28) {
+            throw new HU01Exception("Bad header: Stream too short");
+        }
+        checkHeader(b);
+        return b.getInt(32) & 0xffffffffL;
+    }
+    
+    /**
+     * Decompresses the entire HU01 stream starting at the position of 
+     * {@code src} into {@code dst} in one go. This is meant for streams 
+     * which are already in memory, e.g. a {@link java.nio.MappedByteBuffer}
+     * of a file containing raw message content:
+     * <pre>
+     * MappedByteBuffer src = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+     * ByteBuffer dst = ByteBuffer.allocate((int) HU01Decompressor.getDecompressedSize(src));
+     * decompressor.decompress(src, dst);
+     * </pre>
+     * The block headers and tables are read in place. The blocks of a heap 
+     * buffer are decoded in place while the blocks of a direct buffer are 
+     * copied into a buffer holding a single block first since the decoders 
+     * work on arrays. Likewise blocks are decoded straight into {@code dst}
+     * if it's a heap buffer. The {@link Decoder}, {@link HU01TableCache} 
+     * and {@link CrcCheck} settings of this {@code HU01Decompressor} are 
+     * used ({@link CrcCheck#PIPELINED} behaves like {@link CrcCheck#STRICT})
+     * but the input added using {@link #addInput(byte[], int, int)} and the
+     * state of the current stream aren't affected. The position of 
+     * {@code src} is advanced past the end of the stream and the position of
+     * {@code dst} past the decompressed data.
+     *
+     * @param src the buffer containing the HU01 stream.
+     * @param dst the buffer to write the decompressed data to.
+     * @return the number of bytes written to {@code dst}.
+     * @throws HU01Exception if the stream is corrupted or truncated.
+     * @throws IllegalArgumentException if the decompressed stream doesn't 
+     *         fit in {@code dst}.
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst) throws HU01Exception {
+        long size = getDecompressedSize(src);
+        if (size > dst.remaining()) {
+            throw new IllegalArgumentException("Decompressed stream of " + size 
+                    + " bytes doesn't fit in " + dst.remaining() + " bytes");
+        }
+        if (multiTable == null && decoder == Decoder.MULTI_SYMBOL) {
+            multiTable = new int[HU01MultiSymbolDecoder.TABLE_SIZE];
+        }
+        ByteBuffer b = src.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int pos = b.getInt(4);
+        int written = 0;
+        while (written < size) {
+            if (b.limit() - pos < 20) {
+                throw new HU01Exception("Unexpected end of HU01 stream");
+            }
+            long blockLength = checkBlockHeader(b, pos, size - written);
+            if (blockLength > b.limit() - pos) {
+                throw new HU01Exception("Unexpected end of HU01 stream");
+            }
+            int length = (int) blockLength;
+            int decompressedBlockSize = b.getInt(pos + 8);
+            
+            byte[] blockSrc;
+            int blockOff;
+            if (b.hasArray()) {
+                blockSrc = b.array();
+                blockOff = b.arrayOffset() + pos;
+            } else {
+                if (blockIn == null || blockIn.length < length) {
+                    blockIn = new byte[length];
+                }
+                b.position(pos);
+                b.get(blockIn, 0, length);
+                blockSrc = blockIn;
+                blockOff = 0;
+            }
+            if (dst.hasArray()) {
+                decodeBlock(decoder, tableCache, blockSrc, blockOff, table, multiTable, 
+                        dst.array(), dst.arrayOffset() + dst.position(), crcCheck != CrcCheck.OFF, stats);
+                dst.position(dst.position() + decompressedBlockSize);
+            } else {
+                if (blockOut == null || blockOut.length < decompressedBlockSize) {
+                    blockOut = new byte[decompressedBlockSize];
+                }
+                decodeBlock(decoder, tableCache, blockSrc, blockOff, table, multiTable, 
+                        blockOut, 0, crcCheck != CrcCheck.OFF, stats);
+                dst.put(blockOut, 0, decompressedBlockSize);
+            }
+            pos += length;
+            written += decompressedBlockSize;
+        }
+        src.position(src.position() + pos);
+        return written;
+    }
+    
+    /**
+     * Adds the next {@code n} bytes in {@code decoded} to the CRC of the 
+     * current block if its CRC is verified as it's returned.
+     */
+    private void updatePendingCrc(int n) {
+        if (crcPending) {
+            long start = now(stats);
+            crc32.update(decoded.array(), decoded.arrayOffset() + decoded.position(), n);
+            if (stats != null) {
+                stats.addCrcNanos(now(stats) - start);
+            }
+        }
+    }
+    
+    /**
+     * Verifies the CRC of the previous block once all of its bytes have been
+     * returned.
+     */
+    private void checkPendingCrc() throws HU01Exception {
+        if (crcPending && !decoded.hasRemaining()) {
+            // Keeps failing like STRICT does if called again after a failure
+            checkCrc(pendingCrc, crc32.getValue());
+            crcPending = false;
+        }
+    }
+    
+    /**
+     * Starts computing the CRC of the block just decoded into 
+     * {@code decoded} as it's returned.
+     */
+    private void startPendingCrc(long crc) {
+        crc32.reset();
+        pendingCrc = crc;
+        crcPending = true;
+    }
+    
+    /**
+     * Scans the next {@code n} bytes in {@code decoded} for line endings if
+     * {@link #setMaxBodyLines(int)} has been used and stops decompression 
+     * after the last requested line.
+     * 
+     * @return the number of bytes to return.
+     */
+    private int limitLines(int n) {
+        if (maxBodyLines < 0) {
+            return n;
+        }
+        byte[] b = decoded.array();
+        int start = decoded.arrayOffset() + decoded.position();
+        for (int i = start; i < start + n; i++) {
+            if (b[i] == '\n') {
+                if (inBody) {
+                    bodyLines++;
+                } else if (emptyLine) {
+                    inBody = true;
+                }
+                if (inBody && bodyLines == maxBodyLines) {
+                    stopped = true;
+                    // The rest of the block won't be returned so its CRC can't be verified
+                    crcPending = false;
+                    cancelPending();
+                    return i + 1 - start;
+                }
+                emptyLine = true;
+            } else if (b[i] != '\r') {
+                emptyLine = false;
+            }
+        }
+        return n;
+    }
+    
+    /**
+     * Parses the stream header and decodes the next block if needed.
+     * 
+     * @return {@code true} if there are decoded bytes in {@code decoded}, 
+     *         {@code false} if more input is needed.
+     */
+    private boolean prepareDecoded() throws HU01Exception {
         if (inHeader) {
             long ret = header();
             if (ret == -1) {
-                return 0;
+                return false;
             }
             inHeader = false;
             decompressedSize = ret;
         }
         
         if (decoded == null || !decoded.hasRemaining()) {
-            if (block() == 0) {
-                return 0;
+            int n;
+            if (memoryLimit > 0) {
+                n = streamingBlock();
+            } else if (executor != null) {
+                n = scheduledBlock();
+            } else {
+                n = block();
+            }
+            if (n == 0) {
+                return false;
             }
         }
         
-        if (decoded.hasRemaining()) {
-            int n = Math.min(nbytes, decoded.remaining());
-            decoded.get(buf, off, n);
-            decompressedBytes += n;
-            return n;
-        }
-
-        return 0;
+        return decoded.hasRemaining();
     }
     
     /**
@@ -170,6 +785,9 @@ public class HU01Decompressor {
             throw new ArrayIndexOutOfBoundsException();
         }
         ensureCapacity(len);
+        if (stats != null) {
+            stats.addCompressedBytes(len);
+        }
         int position = buffer.position();
         int limit = buffer.limit();
         buffer.limit(buffer.capacity());
@@ -179,6 +797,28 @@ public class HU01Decompressor {
         buffer.limit(limit + len);
     }
     
+    /**
+     * Adds the remaining bytes of {@code src} as input to be decompressed. 
+     * The position of {@code src} is advanced to its limit. This method 
+     * should be called if {@link #decompress(ByteBuffer)} returns 0.
+     *
+     * @param src the input buffer.
+     */
+    public void addInput(ByteBuffer src) {
+        int len = src.remaining();
+        ensureCapacity(len);
+        if (stats != null) {
+            stats.addCompressedBytes(len);
+        }
+        int position = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(buffer.capacity());
+        buffer.position(limit);
+        buffer.put(src);
+        buffer.position(position);
+        buffer.limit(limit + len);
+    }
+    
     private ByteBuffer allocateBuffer(int len) {
         ByteBuffer b = ByteBuffer.wrap(new byte[len]);
         b.order(ByteOrder.LITTLE_ENDIAN);
@@ -198,6 +838,14 @@ public class HU01Decompressor {
                 while (newCapacity < buffer.remaining() + n) {
                     newCapacity *= 2;
                 }
+                if (memoryLimit > 0) {
+                    int decodedCapacity = decoded != null ? decoded.capacity() : 0;
+                    newCapacity = Math.min(newCapacity, memoryLimit - decodedCapacity);
+                    if (newCapacity < buffer.remaining() + n) {
+                        throw new IllegalStateException("Memory limit of " + memoryLimit 
+                                + " bytes exceeded when adding " + n + " bytes of input");
+                    }
+                }
                 ByteBuffer newBuffer = allocateBuffer(newCapacity);
                 newBuffer.put(buffer);
                 newBuffer.flip();
@@ -213,16 +861,7 @@ public class HU01Decompressor {
             // We need at least 36 bytes
             return -1;
         }
-        int magic = b.getInt(0);
-        if (magic != HU01_MAGIC) {
-            char[] chars = new char[] {(char) (magic & 0xff), (char) ((magic >> 8) & 0xff), (char) ((magic >> 16) & 0xff), (char) ((magic >> 24) & 0xff)};
-            throw new HU01Exception("Bad header: 'HU01' expected at beginning of header (was " + new String(chars) + ")");
-        }
-        int headerSize = b.getInt(4);
-        if (headerSize < 0x28) {
-            throw new HU01Exception("Bad header: Header size must be at least 0x28 bytes (was 0x" + Integer.toHexString(headerSize) + ")");
-        }
-        
+        int headerSize = checkHeader(b);
         if (b.remaining() < headerSize) {
             return -1;
         }
@@ -232,65 +871,409 @@ public class HU01Decompressor {
         return size;
     }
     
-    private int block() throws HU01Exception {
-        ByteBuffer b = buffer.slice(); // slice to prevent changing buffer until we now we've got a full block 
-        b.order(buffer.order());
-        if (b.remaining() < 20) {
+    /**
+     * Returns the total size of the block at the current position of 
+     * {@code buffer} or 0 if the entire block hasn't been added yet. The 
+     * block header is checked as soon as it's available.
+     * 
+     * @param maxDecompressedBlockSize the number of bytes of the stream 
+     *        which haven't been decoded yet.
+     */
+    private int peekBlock(long maxDecompressedBlockSize) throws HU01Exception {
+        if (buffer.remaining() < 20) {
             // We need at least 20 bytes for the header
             return 0;
         }
+        long length = checkBlockHeader(buffer, buffer.position(), maxDecompressedBlockSize);
+        if (buffer.remaining() < length) {
+            // We need at least headerSize+compressedBlockSize bytes for the entire block
+            return 0;
+        }
+        return (int) length;
+    }
+    
+    /**
+     * Checks the magic and size of the stream header at position 0 of
+     * {@code b} and returns the header size.
+     */
+    static int checkHeader(ByteBuffer b) throws HU01Exception {
         int magic = b.getInt(0);
-        if (magic != SCBH_MAGIC) {
-            char[] chars = new char[] {(char) (magic & 0xff), (char) ((magic >> 8) & 0xff), (char) ((magic >> 16) & 0xff), (char) ((magic >> 24) & 0xff)};
-            throw new HU01Exception("Bad block header: 'SCBH' expected at beginning of block header (was " + new String(chars) + ")");
+        if (magic != HU01_MAGIC) {
+            throw new HU01Exception("Bad header: 'HU01' expected at beginning of header (was " + toString(magic) + ")");
         }
         int headerSize = b.getInt(4);
-        int decompressedBlockSize = b.getInt(8);
-        long crc = b.getInt(12) & 0xffffffffL;
-        int compressedBlockSize = b.getInt(16);
-        if (b.remaining() < headerSize + compressedBlockSize) {
-            // We need at least headerSize+compressedBlockSize bytes for the entire block
+        if (headerSize < 0x28) {
+            throw new HU01Exception("Bad header: Header size must be at least 0x28 bytes (was 0x" + Integer.toHexString(headerSize) + ")");
+        }
+        return headerSize;
+    }
+    
+    /**
+     * Checks the block header at {@code pos} in {@code b}, of which at least
+     * 20 bytes must be available, and returns the total size of the block 
+     * including its header. The size may exceed the bytes available.
+     * 
+     * @param maxDecompressedBlockSize the maximum decompressed size of the 
+     *        block, i.e. the number of bytes of the stream which haven't been
+     *        decoded yet.
+     */
+    static long checkBlockHeader(ByteBuffer b, int pos, long maxDecompressedBlockSize) throws HU01Exception {
+        checkBlockMagic(b, pos);
+        int headerSize = b.getInt(pos + 4);
+        int decompressedBlockSize = b.getInt(pos + 8);
+        int compressedBlockSize = b.getInt(pos + 16);
+        if (headerSize < 20 || decompressedBlockSize < 0 || compressedBlockSize < 0 
+                || decompressedBlockSize > maxDecompressedBlockSize) {
+            throw new HU01Exception("Bad block header");
+        }
+        if (!isStored(compressedBlockSize, decompressedBlockSize) && compressedBlockSize < TABLE_SIZE) {
+            throw new HU01Exception("Bad block header: Compressed block too short");
+        }
+        return (long) headerSize + compressedBlockSize;
+    }
+    
+    /**
+     * Returns {@code true} if a block with the specified sizes is stored 
+     * uncompressed. We don't know how to properly check for uncompressed 
+     * blocks. For now this seems to work.
+     */
+    static boolean isStored(int compressedBlockSize, int decompressedBlockSize) {
+        return compressedBlockSize == decompressedBlockSize && decompressedBlockSize < 2048;
+    }
+    
+    private static void checkBlockMagic(ByteBuffer b, int pos) throws HU01Exception {
+        int magic = b.getInt(pos);
+        if (magic != SCBH_MAGIC) {
+            throw new HU01Exception("Bad block header: 'SCBH' expected at beginning of block header (was " + toString(magic) + ")");
+        }
+    }
+    
+    private static String toString(int magic) {
+        char[] chars = new char[] {(char) (magic & 0xff), (char) ((magic >> 8) & 0xff), (char) ((magic >> 16) & 0xff), (char) ((magic >> 24) & 0xff)};
+        return new String(chars);
+    }
+    
+    private int block() throws HU01Exception {
+        int length = peekBlock(decompressedSize - decompressedBytes);
+        if (length == 0) {
             return 0;
         }
-        
+        int pos = buffer.position();
+        int decompressedBlockSize = buffer.getInt(pos + 8);
+        long crc = buffer.getInt(pos + 12) & 0xffffffffL;
         if (decoded == null || decoded.capacity() < decompressedBlockSize) {
             decoded = allocateBuffer(decompressedBlockSize);
         }
-        decoded.clear();
+        if (multiTable == null && decoder == Decoder.MULTI_SYMBOL) {
+            multiTable = new int[HU01MultiSymbolDecoder.TABLE_SIZE];
+        }
+        
+        /*
+         * Both buffers are always heap buffers (see allocateBuffer()) so the 
+         * block is decoded directly on the backing arrays.
+         */
+        decodeBlock(decoder, tableCache, buffer.array(), buffer.arrayOffset() + pos, table, multiTable, 
+                decoded.array(), decoded.arrayOffset(), crcCheck == CrcCheck.STRICT, stats);
+        if (crcCheck == CrcCheck.PIPELINED) {
+            startPendingCrc(crc);
+        }
         
-        if (compressedBlockSize == decompressedBlockSize && decompressedBlockSize < 2048) {
+        decoded.position(0);
+        decoded.limit(decompressedBlockSize);
+        buffer.position(pos + length);
+        return decompressedBlockSize;
+    }
+    
+    /**
+     * The decoding tables used by a block scheduled on the {@link Executor}.
+     * At most {@link #maxPendingBlocks} blocks are decoded at once so that 
+     * many sets of tables are kept in {@link #freeTables} and reused by later
+     * blocks instead of allocating new ones for every block.
+     */
+    private static class BlockTables {
+        final short[] table = new short[HU01TableCache.TABLE_ENTRIES];
+        int[] multiTable;
+    }
+    
+    private BlockTables borrowTables() {
+        synchronized (freeTables) {
+            if (!freeTables.isEmpty()) {
+                return freeTables.removeFirst();
+            }
+        }
+        return new BlockTables();
+    }
+    
+    private void returnTables(BlockTables tables, int max) {
+        synchronized (freeTables) {
+            if (freeTables.size() < max) {
+                freeTables.addFirst(tables);
+            }
+        }
+    }
+    
+    /**
+     * Schedules all complete blocks in {@code buffer} on the {@link Executor}
+     * and makes the next block in order available in {@code decoded}. Waits 
+     * for the next block only if no more blocks can be scheduled.
+     */
+    private int scheduledBlock() throws HU01Exception {
+        int length;
+        while (pending.size() < maxPendingBlocks && (length = peekBlock(decompressedSize - scheduledBytes)) != 0) {
+            final int decompressedBlockSize = buffer.getInt(buffer.position() + 8);
+            final byte[] block = new byte[length];
+            buffer.get(block);
+            scheduledBytes += decompressedBlockSize;
+            final Decoder blockDecoder = decoder;
+            final HU01TableCache blockTableCache = tableCache;
+            final boolean blockCheckCrc = crcCheck != CrcCheck.OFF;
+            final HU01Stats blockStats = stats;
+            final int blockMaxPending = maxPendingBlocks;
+            FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                public byte[] call() throws HU01Exception {
+                    BlockTables tables = borrowTables();
+                    try {
+                        if (blockDecoder == Decoder.MULTI_SYMBOL && tables.multiTable == null) {
+                            tables.multiTable = new int[HU01MultiSymbolDecoder.TABLE_SIZE];
+                        }
+                        byte[] dst = new byte[decompressedBlockSize];
+                        decodeBlock(blockDecoder, blockTableCache, block, 0, tables.table, 
+                                blockDecoder == Decoder.MULTI_SYMBOL ? tables.multiTable : null, 
+                                dst, 0, blockCheckCrc, blockStats);
+                        return dst;
+                    } finally {
+                        returnTables(tables, blockMaxPending);
+                    }
+                }
+            });
+            pending.add(task);
+            executor.execute(task);
+        }
+        
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        FutureTask<byte[]> next = pending.getFirst();
+        if (!next.isDone() && pending.size() < maxPendingBlocks && scheduledBytes < decompressedSize) {
             /*
-             * Block isn't compressed. Just copy the bytes. We don't know how to properly check for 
-             * uncompressed blocks. For now the check above seems to work.
+             * Let the caller add more input while the scheduled blocks are 
+             * being decoded. We'll wait for the block once there's nothing 
+             * more to schedule.
              */
-            b.position(headerSize);
-            b.limit(headerSize + compressedBlockSize);
-            decoded.put(b);
-        } else {
-            // Compressed block
-            b.position(headerSize);
-            b.limit(b.position() + TABLE_SIZE);
-            if (!HU01.build_decompression_table(b.slice(), table)) {
-                throw new HU01Exception("Bad block table");
+            return 0;
+        }
+        pending.removeFirst();
+        byte[] block;
+        try {
+            block = next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HU01Exception("Interrupted while waiting for block to be decoded", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof HU01Exception) {
+                throw (HU01Exception) e.getCause();
+            }
+            throw new HU01Exception(e.getCause());
+        }
+        decoded = ByteBuffer.wrap(block);
+        decoded.order(ByteOrder.LITTLE_ENDIAN);
+        return block.length;
+    }
+    
+    /**
+     * Decodes as much of the current block as possible from the input in 
+     * {@code buffer} without requiring the entire block to be present. 
+     * Consumed input is removed from {@code buffer} right away.
+     * 
+     * @return the decompressed size of the block once it has been decoded
+     *         completely, 0 if more input is needed.
+     */
+    private int streamingBlock() throws HU01Exception {
+        if (!inBlock) {
+            if (buffer.remaining() < 20) {
+                // We need at least 20 bytes for the header
+                return 0;
+            }
+            int pos = buffer.position();
+            checkBlockHeader(buffer, pos, decompressedSize - decompressedBytes);
+            int headerSize = buffer.getInt(pos + 4);
+            int decompressedBlockSize = buffer.getInt(pos + 8);
+            int compressedBlockSize = buffer.getInt(pos + 16);
+            boolean compressed = !isStored(compressedBlockSize, decompressedBlockSize);
+            int headerAndTableSize = headerSize + (compressed ? TABLE_SIZE : 0);
+            if ((long) decompressedBlockSize + headerAndTableSize > memoryLimit) {
+                throw new HU01Exception("Block of " + decompressedBlockSize 
+                        + " bytes exceeds memory limit of " + memoryLimit + " bytes");
             }
+            if (buffer.remaining() < headerAndTableSize) {
+                return 0;
+            }
+            if (decoded == null || decoded.capacity() < decompressedBlockSize) {
+                decoded = null;
+                if (buffer.capacity() + decompressedBlockSize > memoryLimit) {
+                    // Shrink buffer to make room for the decoded block
+                    ByteBuffer newBuffer = allocateBuffer(
+                            Math.max(buffer.remaining(), memoryLimit - decompressedBlockSize));
+                    newBuffer.put(buffer);
+                    newBuffer.flip();
+                    buffer = newBuffer;
+                    pos = 0;
+                }
+                decoded = allocateBuffer(decompressedBlockSize);
+            }
+            
+            long start = now(stats);
+            if (compressed) {
+                int tableOff = buffer.arrayOffset() + pos + headerSize;
+                short[] blockTable = table;
+                if (tableCache != null) {
+                    blockTable = tableCache.get(buffer.array(), tableOff).table;
+                } else if (!HU01.build_decompression_table(
+                        ByteBuffer.wrap(buffer.array(), tableOff, TABLE_SIZE).slice(), table)) {
+                    throw new HU01Exception("Bad block table");
+                }
+                streamingDecoder.reset(blockTable);
+            }
+            blockTableNanos = now(stats) - start;
+            blockDecodeNanos = 0;
+            
+            buffer.position(pos + headerAndTableSize);
+            inBlock = true;
+            blockCompressed = compressed;
+            blockSize = decompressedBlockSize;
+            blockRemaining = compressedBlockSize - (compressed ? TABLE_SIZE : 0);
+            blockCrc = buffer.getInt(pos + 12) & 0xffffffffL;
+            decoded.position(0);
+            decoded.limit(0);
+        }
         
-            b.position(headerSize + TABLE_SIZE);
-            b.limit(headerSize + compressedBlockSize);
-            HU01.decompress_hu01_block(b.slice(), table, decoded);
+        long start = now(stats);
+        int n = Math.min(buffer.remaining(), blockRemaining);
+        int off = buffer.arrayOffset() + buffer.position();
+        if (!blockCompressed) {
+            System.arraycopy(buffer.array(), off, decoded.array(), 
+                    decoded.arrayOffset() + blockSize - blockRemaining, n);
+        } else if (!streamingDecoder.isDone()) {
+            int consumed = streamingDecoder.decode(buffer.array(), off, n, n == blockRemaining, 
+                    decoded.array(), decoded.arrayOffset(), blockSize);
+            if (!streamingDecoder.isDone()) {
+                n = consumed;
+            }
+            // else skip whatever remains of the block
+        }
+        buffer.position(buffer.position() + n);
+        blockRemaining -= n;
+        long end = now(stats);
+        blockDecodeNanos += end - start;
+        if (blockRemaining > 0) {
+            return 0;
         }
         
+        inBlock = false;
+        if (crcCheck == CrcCheck.STRICT) {
+            checkCrc(blockCrc, decoded.array(), decoded.arrayOffset(), blockSize);
+        } else if (crcCheck == CrcCheck.PIPELINED) {
+            startPendingCrc(blockCrc);
+        }
+        if (stats != null) {
+            stats.addBlock(!blockCompressed, blockTableNanos, blockDecodeNanos, now(stats) - end);
+        }
         decoded.position(0);
-        decoded.limit(decompressedBlockSize);
+        decoded.limit(blockSize);
+        return blockSize;
+    }
+    
+    /**
+     * Decodes the entire block starting with the block header at 
+     * {@code src[off]} into {@code dst} and checks its CRC if 
+     * {@code checkCrc} is {@code true}. The tables are 
+     * taken from {@code tableCache} if not {@code null}. Otherwise they are
+     * built into {@code table} and {@code multiTable}. The block is 
+     * recorded in {@code stats} if not {@code null}.
+     * 
+     * @return the decompressed size of the block.
+     */
+    static int decodeBlock(Decoder decoder, HU01TableCache tableCache, byte[] src, int off, 
+            short[] table, int[] multiTable, byte[] dst, int dstOff, boolean checkCrc, 
+            HU01Stats stats) throws HU01Exception {
         
-        buffer.position(buffer.position() + headerSize + compressedBlockSize);
+        long start = now(stats);
+        long tableBuilt = start;
         
-        CRC32 crc32 = new CRC32();
-        crc32.update(decoded.array(), decoded.position(), decoded.limit());
-        if (crc32.getValue() != crc) {
-            throw new HU01Exception("CRC check failed for block. Expected " + Long.toHexString(crc) 
-                    + ". Was " + Long.toHexString(crc32.getValue()) + ".");
+        ByteBuffer b = ByteBuffer.wrap(src, off, src.length - off).slice();
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        if (b.remaining() < 20) {
+            throw new HU01Exception("Unexpected end of HU01 block");
+        }
+        // Check the header before anything is read or hashed using its sizes
+        if (checkBlockHeader(b, 0, dst.length - dstOff) > b.remaining()) {
+            throw new HU01Exception("Unexpected end of HU01 block");
+        }
+        int headerSize = b.getInt(4);
+        int decompressedBlockSize = b.getInt(8);
+        long crc = b.getInt(12) & 0xffffffffL;
+        int compressedBlockSize = b.getInt(16);
+        off += headerSize;
+        
+        if (isStored(compressedBlockSize, decompressedBlockSize)) {
+            // Block isn't compressed. Just copy the bytes.
+            System.arraycopy(src, off, dst, dstOff, compressedBlockSize);
+        } else {
+            // Compressed block
+            if (tableCache != null) {
+                HU01TableCache.CachedTable entry = tableCache.get(src, off);
+                table = entry.table;
+                if (decoder == Decoder.MULTI_SYMBOL) {
+                    multiTable = entry.getMultiTable();
+                }
+            } else {
+                b.position(headerSize);
+                b.limit(b.position() + TABLE_SIZE);
+                if (!HU01.build_decompression_table(b.slice(), table)) {
+                    throw new HU01Exception("Bad block table");
+                }
+                if (decoder == Decoder.MULTI_SYMBOL) {
+                    HU01MultiSymbolDecoder.buildTable(table, multiTable);
+                }
+            }
+            tableBuilt = now(stats);
+        
+            off += TABLE_SIZE;
+            int len = compressedBlockSize - TABLE_SIZE;
+            if (decoder == Decoder.MULTI_SYMBOL) {
+                HU01MultiSymbolDecoder.decompress(src, off, len, table, multiTable, dst, dstOff, decompressedBlockSize);
+            } else {
+                HU01.decompress_hu01_block(src, off, len, table, dst, dstOff, decompressedBlockSize);
+            }
         }
         
+        long decoded = now(stats);
+        if (checkCrc) {
+            checkCrc(crc, dst, dstOff, decompressedBlockSize);
+        }
+        if (stats != null) {
+            stats.addBlock(isStored(compressedBlockSize, decompressedBlockSize), tableBuilt - start, decoded - tableBuilt, now(stats) - decoded);
+        }
         return decompressedBlockSize;
     }
+    
+    /**
+     * Returns {@link System#nanoTime()} if statistics are collected.
+     */
+    private static long now(HU01Stats stats) {
+        return stats != null ? System.nanoTime() : 0;
+    }
+    
+    private static void checkCrc(long crc, byte[] b, int off, int len) throws HU01Exception {
+        CRC32 crc32 = new CRC32();
+        crc32.update(b, off, len);
+        checkCrc(crc, crc32.getValue());
+    }
+    
+    private static void checkCrc(long expected, long actual) throws HU01Exception {
+        if (actual != expected) {
+            throw new HU01Exception("CRC check failed for block. Expected " + Long.toHexString(expected) 
+                    + ". Was " + Long.toHexString(actual) + ".");
+        }
+    }
 }
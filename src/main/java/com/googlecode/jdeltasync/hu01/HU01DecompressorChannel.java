@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * {@link ReadableByteChannel} which uncompresses data read from another
+ * {@link ReadableByteChannel} that was compressed using the proprietary
+ * <i>HU01</i> algorithm. Decompressed bytes are written straight into the
+ * {@link ByteBuffer}s passed to {@link #read(ByteBuffer)}, which may be
+ * direct buffers, so the output can be transferred to e.g. a
+ * {@code FileChannel} without going through intermediate byte arrays.
+ * <p>
+ * If the wrapped channel is in non-blocking mode {@link #read(ByteBuffer)}
+ * returns 0 when no compressed bytes are currently available.
+ *
+ * @see HU01Decompressor
+ */
+public class HU01DecompressorChannel implements ReadableByteChannel {
+
+    static final int BUF_SIZE = 4096;
+
+    private final ReadableByteChannel source;
+    private final HU01Decompressor decompressor;
+    private final ByteBuffer in;
+    private boolean closed;
+    private boolean eof;
+
+    /**
+     * Creates a new channel reading compressed data from {@code source}
+     * using a new {@link HU01Decompressor}.
+     *
+     * @param source the channel to read compressed data from.
+     */
+    public HU01DecompressorChannel(ReadableByteChannel source) {
+        this(source, new HU01Decompressor(), BUF_SIZE);
+    }
+
+    /**
+     * Creates a new channel reading compressed data from {@code source}
+     * using the specified {@link HU01Decompressor}.
+     *
+     * @param source the channel to read compressed data from.
+     * @param decompressor the {@link HU01Decompressor} to use.
+     */
+    public HU01DecompressorChannel(ReadableByteChannel source, HU01Decompressor decompressor) {
+        this(source, decompressor, BUF_SIZE);
+    }
+
+    /**
+     * Creates a new channel reading compressed data from {@code source}
+     * using the specified {@link HU01Decompressor}. Compressed data is read
+     * from {@code source} into a direct buffer of {@code bsize} bytes.
+     *
+     * @param source the channel to read compressed data from.
+     * @param decompressor the {@link HU01Decompressor} to use.
+     * @param bsize the size of the buffer used to read from {@code source}.
+     */
+    public HU01DecompressorChannel(ReadableByteChannel source, HU01Decompressor decompressor, int bsize) {
+        if (source == null || decompressor == null) {
+            throw new NullPointerException();
+        }
+        if (bsize <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.source = source;
+        this.decompressor = decompressor;
+        this.in = ByteBuffer.allocateDirect(bsize);
+    }
+
+    /**
+     * Reads decompressed bytes into {@code dst}.
+     *
+     * @param dst the buffer to write decompressed bytes to.
+     * @return the number of bytes read, possibly 0, or -1 if the end of the
+     *         compressed stream has been reached.
+     * @throws EOFException if the wrapped channel ends prematurely.
+     * @throws IOException if the compressed data is corrupted or an error
+     *         occurs reading the wrapped channel.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (eof) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        try {
+            while (true) {
+                int result = decompressor.decompress(dst);
+                eof = decompressor.finished();
+                if (result > 0) {
+                    return result;
+                }
+                if (eof) {
+                    return -1;
+                }
+                in.clear();
+                int n = source.read(in);
+                if (n == -1) {
+                    eof = true;
+                    throw new EOFException();
+                }
+                if (n == 0) {
+                    return 0;
+                }
+                in.flip();
+                decompressor.addInput(in);
+            }
+        } catch (HU01Exception e) {
+            eof = true;
+            throw (IOException) (new IOException().initCause(e));
+        }
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Closes this channel and the wrapped channel.
+     *
+     * @throws IOException if an error occurs closing the wrapped channel.
+     */
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            eof = true;
+            source.close();
+        }
+    }
+}
@@ -171,8 +171,19 @@ public class HU01DecompressorOutputStream extends FilterOutputStream {
             throw new IndexOutOfBoundsException();
         }
 
-        decompressor.addInput(b, off, len);
-        write();
+        /*
+         * Add the input in chunks no bigger than buf so that a decompressor
+         * with a memory limit never has to buffer all of b at once. Input
+         * is dropped once the decompressor has finished, e.g. after the 
+         * message header if HU01Decompressor.setMaxBodyLines() is used.
+         */
+        while (len > 0 && !decompressor.finished()) {
+            int n = Math.min(len, buf.length);
+            decompressor.addInput(b, off, n);
+            write();
+            off += n;
+            len -= n;
+        }
     }
 
     private void write() throws IOException {
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.util.LinkedList;
+
+/**
+ * Bounded pool of {@link HU01Decompressor}s. Each {@link HU01Decompressor}
+ * holds on to a decompression table and buffers sized after the
+ * largest block seen so reusing them instead of creating a new one per
+ * message saves a lot of garbage. This class is thread-safe.
+ * <p>
+ * Idle {@link HU01Decompressor}s keep buffers of at most 
+ * {@link #getMaxBufferSize()} bytes. Buffers which have grown bigger than 
+ * that, e.g. because a large message was added in big chunks, are released
+ * by {@link #release(HU01Decompressor)} so a single big message doesn't tie
+ * up memory for as long as the pool lives.
+ * <p>
+ * Typical usage:
+ * <pre>
+ * HU01Decompressor decompressor = pool.borrow();
+ * try {
+ *     ...
+ * } finally {
+ *     pool.release(decompressor);
+ * }
+ * </pre>
+ */
+public class HU01DecompressorPool {
+
+    /**
+     * The default maximum number of idle {@link HU01Decompressor}s kept by
+     * the pool.
+     */
+    public static final int DEFAULT_MAX_IDLE = 16;
+
+    /**
+     * The default maximum size of a buffer kept by an idle 
+     * {@link HU01Decompressor}. Big enough for the largest block.
+     */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 131072;
+
+    private final int maxIdle;
+    private final int maxBufferSize;
+    private final LinkedList<HU01Decompressor> idle = new LinkedList<HU01Decompressor>();
+
+    /**
+     * Creates a new pool which keeps at most {@link #DEFAULT_MAX_IDLE} idle
+     * {@link HU01Decompressor}s.
+     */
+    public HU01DecompressorPool() {
+        this(DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Creates a new pool which keeps at most {@code maxIdle} idle
+     * {@link HU01Decompressor}s. {@link HU01Decompressor}s released when the
+     * pool is full are left to the garbage collector.
+     *
+     * @param maxIdle the maximum number of idle {@link HU01Decompressor}s.
+     * @throws IllegalArgumentException if {@code maxIdle} is negative.
+     */
+    public HU01DecompressorPool(int maxIdle) {
+        this(maxIdle, DEFAULT_MAX_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new pool which keeps at most {@code maxIdle} idle
+     * {@link HU01Decompressor}s, each holding buffers of at most 
+     * {@code maxBufferSize} bytes.
+     *
+     * @param maxIdle the maximum number of idle {@link HU01Decompressor}s.
+     * @param maxBufferSize the maximum size of a buffer kept by an idle
+     *        {@link HU01Decompressor}.
+     * @throws IllegalArgumentException if {@code maxIdle} or 
+     *         {@code maxBufferSize} is negative.
+     */
+    public HU01DecompressorPool(int maxIdle, int maxBufferSize) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle");
+        }
+        if (maxBufferSize < 0) {
+            throw new IllegalArgumentException("maxBufferSize");
+        }
+        this.maxIdle = maxIdle;
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * Returns an idle {@link HU01Decompressor} from the pool or a new one if
+     * the pool is empty. The returned {@link HU01Decompressor} is ready to
+     * decompress a new stream.
+     *
+     * @return the {@link HU01Decompressor}.
+     */
+    public HU01Decompressor borrow() {
+        synchronized (idle) {
+            if (!idle.isEmpty()) {
+                return idle.removeFirst();
+            }
+        }
+        HU01Decompressor decompressor = create();
+        configure(decompressor);
+        return decompressor;
+    }
+
+    /**
+     * Resets the specified {@link HU01Decompressor} and returns it to the pool.
+     * All settings changed by the borrower, e.g. 
+     * {@link HU01Decompressor#setMaxBodyLines(int)} or 
+     * {@link HU01Decompressor#setStats(HU01Stats)}, are restored using
+     * {@link HU01Decompressor#restoreDefaults()} followed by 
+     * {@link #configure(HU01Decompressor)} so they don't leak to the next
+     * borrower. Buffers bigger than {@link #getMaxBufferSize()} are released
+     * using {@link HU01Decompressor#trimBuffers(int)}. The 
+     * {@link HU01Decompressor} must not be used by the caller after this 
+     * method has been called.
+     *
+     * @param decompressor the {@link HU01Decompressor} to return.
+     */
+    public void release(HU01Decompressor decompressor) {
+        if (decompressor == null) {
+            throw new NullPointerException("decompressor");
+        }
+        decompressor.restoreDefaults();
+        decompressor.trimBuffers(maxBufferSize);
+        configure(decompressor);
+        synchronized (idle) {
+            if (idle.size() < maxIdle) {
+                idle.addFirst(decompressor);
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum size of a buffer kept by an idle 
+     * {@link HU01Decompressor}.
+     *
+     * @return the maximum buffer size in bytes.
+     */
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /**
+     * Returns the number of idle {@link HU01Decompressor}s currently in the pool.
+     *
+     * @return the number of idle {@link HU01Decompressor}s.
+     */
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * Creates a new {@link HU01Decompressor} when the pool is empty. Override
+     * to use a different initial buffer size.
+     *
+     * @return the new {@link HU01Decompressor}.
+     */
+    protected HU01Decompressor create() {
+        return new HU01Decompressor();
+    }
+
+    /**
+     * Applies the settings every {@link HU01Decompressor} handed out by this 
+     * pool should have. Called for new {@link HU01Decompressor}s and again
+     * for each one released after its settings have been restored to the 
+     * defaults. Override to e.g. use a particular 
+     * {@link HU01Decompressor.Decoder} or a shared {@link HU01TableCache}.
+     * The default implementation does nothing.
+     *
+     * @param decompressor the {@link HU01Decompressor}.
+     */
+    protected void configure(HU01Decompressor decompressor) {
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Index of the blocks in a HU01 stream. Each block of a HU01 stream can be
+ * decoded on its own so with an index of the block offsets any range of the
+ * uncompressed content can be read by decoding only the blocks covering
+ * that range. The index is built by reading the block headers only and can
+ * be stored next to the raw HU01 content using {@link #writeTo(OutputStream)}
+ * and loaded again using {@link #readFrom(InputStream)}.
+ * <p>
+ * Instances of this class are immutable and thread-safe.
+ */
+public class HU01Index {
+
+    private static final int INDEX_MAGIC = 0x48553149; // HU1I
+    private static final int INDEX_VERSION = 1;
+
+    private final long decompressedSize;
+    private final long[] compressedOffsets;
+    private final int[] compressedLengths;
+    private final long[] decompressedOffsets;
+
+    private HU01Index(long decompressedSize, long[] compressedOffsets, int[] compressedLengths,
+            long[] decompressedOffsets) {
+        this.decompressedSize = decompressedSize;
+        this.compressedOffsets = compressedOffsets;
+        this.compressedLengths = compressedLengths;
+        this.decompressedOffsets = decompressedOffsets;
+    }
+
+    /**
+     * Builds the index of the HU01 stream read from the specified
+     * {@link InputStream}. Only the headers are read. The compressed data
+     * of each block is skipped.
+     *
+     * @param in the stream to read the HU01 data from.
+     * @return the {@link HU01Index}.
+     * @throws HU01Exception if the stream isn't a valid HU01 stream.
+     * @throws IOException on errors reading the stream.
+     */
+    public static HU01Index build(InputStream in) throws HU01Exception, IOException {
+        DataInputStream din = new DataInputStream(in);
+        ByteBuffer b = ByteBuffer.allocate(0x28).order(ByteOrder.LITTLE_ENDIAN);
+        din.readFully(b.array());
+        int headerSize = HU01Decompressor.checkHeader(b);
+        long decompressedSize = b.getInt(32) & 0xffffffffL;
+        skipFully(din, headerSize - 0x28);
+
+        int count = 0;
+        long[] compressedOffsets = new long[16];
+        int[] compressedLengths = new int[16];
+        long[] decompressedOffsets = new long[16];
+        long compressedOffset = headerSize;
+        long decompressedOffset = 0;
+        b = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        while (decompressedOffset < decompressedSize) {
+            din.readFully(b.array());
+            long length = HU01Decompressor.checkBlockHeader(b, 0, decompressedSize - decompressedOffset);
+            if (length > Integer.MAX_VALUE) {
+                throw new HU01Exception("Bad block header: Block too big");
+            }
+            int decompressedBlockSize = b.getInt(8);
+            skipFully(din, length - 20);
+
+            if (count == compressedOffsets.length) {
+                compressedOffsets = grow(compressedOffsets);
+                compressedLengths = grow(compressedLengths);
+                decompressedOffsets = grow(decompressedOffsets);
+            }
+            compressedOffsets[count] = compressedOffset;
+            compressedLengths[count] = (int) length;
+            decompressedOffsets[count] = decompressedOffset;
+            count++;
+            compressedOffset += length;
+            decompressedOffset += decompressedBlockSize;
+        }
+        if (decompressedOffset != decompressedSize) {
+            throw new HU01Exception("Block sizes don't add up to the decompressed size in the header");
+        }
+
+        return new HU01Index(decompressedSize, trim(compressedOffsets, count),
+                trim(compressedLengths, count), trim(decompressedOffsets, count));
+    }
+
+    /**
+     * Reads an index previously written using {@link #writeTo(OutputStream)}.
+     * The offsets and sizes read are checked to be consistent with each 
+     * other. Whether they match the HU01 stream is checked by the 
+     * {@code read(...)} methods for every block they decode.
+     *
+     * @param in the stream to read from.
+     * @return the {@link HU01Index}.
+     * @throws HU01Exception if the stream doesn't contain a valid index.
+     * @throws IOException on errors reading the stream.
+     */
+    public static HU01Index readFrom(InputStream in) throws HU01Exception, IOException {
+        DataInputStream din = new DataInputStream(in);
+        if (din.readInt() != INDEX_MAGIC || din.readInt() != INDEX_VERSION) {
+            throw new HU01Exception("Not a HU01 index or unsupported index version");
+        }
+        long decompressedSize = din.readLong();
+        int count = din.readInt();
+        if (decompressedSize < 0 || decompressedSize > 0xffffffffL) {
+            throw new HU01Exception("Bad index: Bad decompressed size: " + decompressedSize);
+        }
+        if (count < 0 || (count == 0) != (decompressedSize == 0)) {
+            throw new HU01Exception("Bad index: Bad block count: " + count);
+        }
+        // Grow the arrays as blocks are read so a corrupt count can't make us allocate huge arrays
+        int capacity = Math.min(count, 16);
+        long[] compressedOffsets = new long[capacity];
+        int[] compressedLengths = new int[capacity];
+        long[] decompressedOffsets = new long[capacity];
+        long compressedEnd = 0x28;
+        long decompressedOffset = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == compressedOffsets.length) {
+                compressedOffsets = grow(compressedOffsets);
+                compressedLengths = grow(compressedLengths);
+                decompressedOffsets = grow(decompressedOffsets);
+            }
+            compressedOffsets[i] = din.readLong();
+            compressedLengths[i] = din.readInt();
+            decompressedOffsets[i] = din.readLong();
+            if (compressedOffsets[i] < compressedEnd || compressedLengths[i] < 20) {
+                throw new HU01Exception("Bad index: Bad compressed offset or length of block " + i);
+            }
+            if (i == 0 ? decompressedOffsets[i] != 0 : decompressedOffsets[i] < decompressedOffset
+                    || decompressedOffsets[i] >= decompressedSize) {
+                throw new HU01Exception("Bad index: Bad decompressed offset of block " + i);
+            }
+            compressedEnd = compressedOffsets[i] + compressedLengths[i];
+            decompressedOffset = decompressedOffsets[i];
+        }
+        return new HU01Index(decompressedSize, trim(compressedOffsets, count),
+                trim(compressedLengths, count), trim(decompressedOffsets, count));
+    }
+
+    /**
+     * Writes this index to the specified stream. The stream isn't closed.
+     *
+     * @param out the stream to write to.
+     * @throws IOException on errors writing to the stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(INDEX_MAGIC);
+        dout.writeInt(INDEX_VERSION);
+        dout.writeLong(decompressedSize);
+        dout.writeInt(compressedOffsets.length);
+        for (int i = 0; i < compressedOffsets.length; i++) {
+            dout.writeLong(compressedOffsets[i]);
+            dout.writeInt(compressedLengths[i]);
+            dout.writeLong(decompressedOffsets[i]);
+        }
+        dout.flush();
+    }
+
+    /**
+     * Returns the total size of the uncompressed content.
+     *
+     * @return the uncompressed size.
+     */
+    public long getDecompressedSize() {
+        return decompressedSize;
+    }
+
+    /**
+     * Returns the number of blocks in the HU01 stream.
+     *
+     * @return the number of blocks.
+     */
+    public int getBlockCount() {
+        return compressedOffsets.length;
+    }
+
+    /**
+     * Returns the offset of the header of the specified block in the HU01
+     * stream.
+     *
+     * @param block the block number.
+     * @return the offset of the block.
+     */
+    public long getCompressedOffset(int block) {
+        return compressedOffsets[block];
+    }
+
+    /**
+     * Returns the size of the specified block including its header.
+     *
+     * @param block the block number.
+     * @return the size of the block.
+     */
+    public int getCompressedLength(int block) {
+        return compressedLengths[block];
+    }
+
+    /**
+     * Returns the offset in the uncompressed content of the first byte
+     * decoded from the specified block.
+     *
+     * @param block the block number.
+     * @return the uncompressed offset of the block.
+     */
+    public long getDecompressedOffset(int block) {
+        return decompressedOffsets[block];
+    }
+
+    /**
+     * Returns the number of the block containing the byte at the specified
+     * offset in the uncompressed content.
+     *
+     * @param position the offset in the uncompressed content.
+     * @return the block number.
+     * @throws IndexOutOfBoundsException if {@code position} is negative or
+     *         not less than {@link #getDecompressedSize()}.
+     */
+    public int findBlock(long position) {
+        if (position < 0 || position >= decompressedSize) {
+            throw new IndexOutOfBoundsException("position: " + position);
+        }
+        int low = 0;
+        int high = decompressedOffsets.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (decompressedOffsets[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads up to {@code len} bytes of uncompressed content starting at
+     * {@code position} from the HU01 stream in {@code hu01}. Only the blocks
+     * covering the range are decoded.
+     *
+     * @param hu01 the entire HU01 stream this index was built from.
+     * @param position the offset in the uncompressed content to start at.
+     * @param buf the buffer to write the uncompressed bytes to.
+     * @param off the offset in {@code buf} where to start writing.
+     * @param len the maximum number of bytes to read.
+     * @return the number of bytes read or -1 if {@code position} is at or
+     *         past the end of the uncompressed content.
+     * @throws HU01Exception if a block is corrupted or doesn't match this
+     *         index.
+     */
+    public int read(final byte[] hu01, long position, byte[] buf, int off, int len) throws HU01Exception {
+        try {
+            return read(new BlockSource() {
+                int load(int block) throws HU01Exception {
+                    if (compressedOffsets[block] > hu01.length - compressedLengths[block]) {
+                        throw new HU01Exception("Block " + block + " of the index is outside the HU01 stream");
+                    }
+                    src = hu01;
+                    return (int) compressedOffsets[block];
+                }
+            }, position, buf, off, len);
+        } catch (IOException e) {
+            // Never thrown when reading from a byte array
+            throw new HU01Exception(e);
+        }
+    }
+
+    /**
+     * Reads up to {@code len} bytes of uncompressed content starting at
+     * {@code position} from the HU01 stream stored in {@code channel}. Only
+     * the blocks covering the range are read and decoded. The position of
+     * {@code channel} isn't changed.
+     *
+     * @param channel the {@link FileChannel} containing the HU01 stream this
+     *        index was built from.
+     * @param position the offset in the uncompressed content to start at.
+     * @param buf the buffer to write the uncompressed bytes to.
+     * @param off the offset in {@code buf} where to start writing.
+     * @param len the maximum number of bytes to read.
+     * @return the number of bytes read or -1 if {@code position} is at or
+     *         past the end of the uncompressed content.
+     * @throws HU01Exception if a block is corrupted or doesn't match this
+     *         index.
+     * @throws IOException on errors reading from {@code channel}.
+     */
+    public int read(final FileChannel channel, long position, byte[] buf, int off, int len)
+            throws HU01Exception, IOException {
+
+        return read(new BlockSource() {
+            int load(int block) throws HU01Exception, IOException {
+                int length = compressedLengths[block];
+                if (src == null || src.length < length) {
+                    src = new byte[length];
+                }
+                ByteBuffer b = ByteBuffer.wrap(src, 0, length);
+                long pos = compressedOffsets[block];
+                while (b.hasRemaining()) {
+                    int n = channel.read(b, pos);
+                    if (n == -1) {
+                        throw new HU01Exception("Block " + block + " of the index is outside the HU01 stream");
+                    }
+                    pos += n;
+                }
+                return 0;
+            }
+        }, position, buf, off, len);
+    }
+
+    private int read(BlockSource source, long position, byte[] buf, int off, int len)
+            throws HU01Exception, IOException {
+
+        if (off < 0 || len < 0 || off > buf.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("position");
+        }
+        if (position >= decompressedSize) {
+            return -1;
+        }
+
+        short[] table = new short[HU01TableCache.TABLE_ENTRIES];
+        byte[] decoded = null;
+        int count = 0;
+        int block = findBlock(position);
+        while (count < len && block < compressedOffsets.length) {
+            int srcOff = source.load(block);
+            long end = block + 1 < decompressedOffsets.length ? decompressedOffsets[block + 1] : decompressedSize;
+            long blockSize = end - decompressedOffsets[block];
+            // A stale index may point at the wrong bytes or a block of another size
+            ByteBuffer header = ByteBuffer.wrap(source.src).order(ByteOrder.LITTLE_ENDIAN);
+            if (HU01Decompressor.checkBlockHeader(header, srcOff, blockSize) != compressedLengths[block]
+                    || header.getInt(srcOff + 8) != blockSize) {
+                throw new HU01Exception("Block " + block + " doesn't match the index");
+            }
+            int decompressedBlockSize = (int) blockSize;
+            if (decoded == null || decoded.length < decompressedBlockSize) {
+                decoded = new byte[decompressedBlockSize];
+            }
+            HU01Decompressor.decodeBlock(HU01Decompressor.Decoder.REFERENCE, null, source.src, srcOff,
+                    table, null, decoded, 0, true, null);
+            int start = (int) (position + count - decompressedOffsets[block]);
+            int n = Math.min(len - count, decompressedBlockSize - start);
+            System.arraycopy(decoded, start, buf, off + count, n);
+            count += n;
+            block++;
+        }
+        return count;
+    }
+
+    private static void skipFully(DataInputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                // skip() may return 0 before EOF. read() tells us if we've hit EOF.
+                if (in.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static long[] grow(long[] a) {
+        long[] b = new long[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static int[] grow(int[] a) {
+        int[] b = new int[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static long[] trim(long[] a, int n) {
+        long[] b = new long[n];
+        System.arraycopy(a, 0, b, 0, n);
+        return b;
+    }
+
+    private static int[] trim(int[] a, int n) {
+        int[] b = new int[n];
+        System.arraycopy(a, 0, b, 0, n);
+        return b;
+    }
+
+    /**
+     * Loads the bytes of a block.
+     */
+    private abstract static class BlockSource {
+        byte[] src;
+
+        /**
+         * Makes the block available in {@link #src} and returns the offset
+         * of its header.
+         */
+        abstract int load(int block) throws HU01Exception, IOException;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table driven HU01 block decoder which decodes several symbols per table
+ * lookup. The wide table is derived from the 10-bit table built by
+ * {@link HU01#build_decompression_table(ByteBuffer, short[])}. Each of its
+ * {@value #TABLE_SIZE} entries is indexed by the next {@value #TABLE_BITS}
+ * bits of the stream and holds either
+ * <ul>
+ *   <li>up to 3 literals whose codes fit in those bits,</li>
+ *   <li>a single match symbol, or</li>
+ *   <li>0 if the next code is longer than {@value #TABLE_BITS} bits. Such
+ *       codes are resolved using the original table.</li>
+ * </ul>
+ * The stream is consumed in exactly the same order as by
+ * {@link HU01#decompress_hu01_block(ByteBuffer, short[], ByteBuffer)},
+ * including the extra match length bytes which are interleaved with the
+ * 16-bit words of the bit stream.
+ * <p>
+ * This class has package private scope since it's not meant to be used
+ * directly. Use {@link HU01Decompressor} with
+ * {@link HU01Decompressor.Decoder#MULTI_SYMBOL} instead.
+ */
+class HU01MultiSymbolDecoder {
+
+    static final int TABLE_BITS = 12;
+    static final int TABLE_SIZE = 1 << TABLE_BITS;
+
+    private static final int MAX_LITERALS = 3;
+    private static final int COUNT_SHIFT = 4;
+    private static final int COUNT_MASK = 0x3;
+    private static final int MATCH_FLAG = 0x40;
+    private static final int VALUE_SHIFT = 8;
+
+    /**
+     * Builds the wide table for a block from the table previously built by
+     * {@link HU01#build_decompression_table(ByteBuffer, short[])}.
+     *
+     * @param table the original decompression table.
+     * @param multiTable the array of at least {@link #TABLE_SIZE} entries to fill.
+     */
+    static void buildTable(short[] table, int[] multiTable) {
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            int bits = i << (32 - TABLE_BITS);
+            int first = peek(table, bits, TABLE_BITS);
+            if (first == -1) {
+                multiTable[i] = 0;
+                continue;
+            }
+            int symbol = first >>> 4;
+            int total = first & 0xf;
+            if (symbol >= 0x100) {
+                multiTable[i] = ((symbol - 0x100) << VALUE_SHIFT) | MATCH_FLAG | total;
+                continue;
+            }
+            int literals = symbol;
+            int count = 1;
+            while (count < MAX_LITERALS) {
+                int next = peek(table, bits << total, TABLE_BITS - total);
+                if (next == -1 || (next >>> 4) >= 0x100) {
+                    break;
+                }
+                literals |= (next >>> 4) << (count * 8);
+                total += next & 0xf;
+                count++;
+            }
+            multiTable[i] = (literals << VALUE_SHIFT) | (count << COUNT_SHIFT) | total;
+        }
+    }
+
+    /**
+     * Resolves the code at the top of {@code bits} using the original table.
+     * Returns the symbol shifted left 4 bits or'ed with the code length or -1
+     * if the code is longer than {@code known} bits.
+     */
+    private static int peek(short[] table, int bits, int known) {
+        int entry = table[bits >>> 22];
+        if (entry < 0) {
+            // Code longer than 10 bits. Walk the tree.
+            bits <<= 10;
+            int depth = 10;
+            do {
+                if (depth++ >= known) {
+                    return -1;
+                }
+                entry = table[0x8000 + entry + (bits >>> 31)];
+                bits <<= 1;
+            } while (entry < 0);
+        }
+        if ((entry & 0xf) > known) {
+            return -1;
+        }
+        return entry & 0xffff;
+    }
+
+    static void decompress(ByteBuffer source_ptr, short[] table, int[] multiTable,
+            ByteBuffer destination_ptr) throws HU01Exception {
+
+        if (source_ptr.hasArray() && destination_ptr.hasArray()) {
+            decompress(source_ptr.array(), source_ptr.arrayOffset() + source_ptr.position(), source_ptr.remaining(),
+                    table, multiTable, destination_ptr.array(),
+                    destination_ptr.arrayOffset() + destination_ptr.position(), destination_ptr.remaining());
+        } else {
+            byte[] source = new byte[source_ptr.remaining()];
+            source_ptr.duplicate().get(source);
+            byte[] destination = new byte[destination_ptr.remaining()];
+            int n = decompress(source, 0, source.length, table, multiTable, destination, 0, destination.length);
+            ByteBuffer b = destination_ptr.duplicate();
+            b.put(destination, 0, n);
+        }
+    }
+
+    private static int getShort(byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8);
+    }
+
+    /**
+     * Decodes a block.
+     *
+     * @return the number of bytes written to {@code destination}.
+     */
+    static int decompress(byte[] source, int sourceOff, int sourceLen, short[] table, int[] multiTable,
+            byte[] destination, int destinationOff, int destinationLen) throws HU01Exception {
+
+        int sp = sourceOff;
+        int sourceEnd = sourceOff + sourceLen;
+        int dp = destinationOff;
+        int destinationEnd = destinationOff + destinationLen;
+
+        if (sourceLen < 4) {
+            return 0;
+        }
+        // The top (16 + avail) bits of bits are valid
+        int bits = (getShort(source, sp) << 16) | getShort(source, sp + 2);
+        sp += 4;
+        int avail = 16;
+
+        while (dp < destinationEnd) {
+            int entry = multiTable[bits >>> (32 - TABLE_BITS)];
+            int count = (entry >>> COUNT_SHIFT) & COUNT_MASK;
+            int length = entry & 0xf;
+            int symbol;
+            if (count != 0) {
+                // One or more literals
+                int literals = entry >>> VALUE_SHIFT;
+                count = Math.min(count, destinationEnd - dp);
+                for (int i = 0; i < count; i++) {
+                    destination[dp++] = (byte) literals;
+                    literals >>>= 8;
+                }
+                bits <<= length;
+                avail -= length;
+                if (avail < 0) {
+                    if (sourceEnd - sp < 2) {
+                        break;
+                    }
+                    bits += getShort(source, sp) << -avail;
+                    sp += 2;
+                    avail += 16;
+                }
+                continue;
+            }
+
+            if (entry != 0) {
+                symbol = 0x100 + (entry >>> VALUE_SHIFT);
+                bits <<= length;
+            } else {
+                // Code longer than TABLE_BITS bits. Walk the tree in the original table.
+                entry = table[bits >>> 22];
+                bits <<= 10;
+                do {
+                    entry = table[0x8000 + entry + (bits >>> 31)];
+                    bits <<= 1;
+                } while (entry < 0);
+                symbol = entry >>> 4;
+                length = entry & 0xf;
+            }
+            avail -= length;
+            if (avail < 0) {
+                if (sourceEnd - sp < 2) {
+                    break;
+                }
+                bits += getShort(source, sp) << -avail;
+                sp += 2;
+                avail += 16;
+            }
+
+            if (symbol < 0x100) {
+                destination[dp++] = (byte) symbol;
+                continue;
+            }
+
+            // Match. The high nibble is the number of extra offset bits.
+            int n = (symbol >>> 4) & 0xf;
+            int offset = ((bits >>> 1) | 0x80000000) >>> (31 - n);
+            bits <<= n;
+            avail -= n;
+
+            int matchLength = symbol & 0xf;
+            if (matchLength == 0xf) {
+                if (sp >= sourceEnd) {
+                    break;
+                }
+                matchLength = source[sp++] & 0xff;
+                if (matchLength == 0xff) {
+                    if (sourceEnd - sp < 2) {
+                        break;
+                    }
+                    matchLength = getShort(source, sp);
+                    sp += 2;
+                    if (matchLength < 0x10e) {
+                        throw new HU01Exception();
+                    }
+                } else {
+                    matchLength += 0xf;
+                }
+            }
+            matchLength += 3;
+
+            int from = dp - offset;
+            if (from < destinationOff) {
+                throw new HU01Exception();
+            }
+            matchLength = Math.min(matchLength, destinationEnd - dp);
+            if (offset >= matchLength) {
+                System.arraycopy(destination, from, destination, dp, matchLength);
+                dp += matchLength;
+            } else {
+                // Overlapping match. Copy byte by byte to repeat the pattern.
+                for (int i = 0; i < matchLength; i++) {
+                    destination[dp++] = destination[from + i];
+                }
+            }
+
+            if (avail < 0) {
+                if (sourceEnd - sp < 2) {
+                    break;
+                }
+                bits += getShort(source, sp) << -avail;
+                sp += 2;
+                avail += 16;
+            }
+        }
+        return dp - destinationOff;
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link OutputStream} which decompresses the HU01 data written to it on
+ * another thread. Compressed bytes written to this stream are copied into a
+ * bounded ring of buffers and a task running on an {@link Executor} drains
+ * the ring through a {@link HU01DecompressorOutputStream}. This lets a
+ * thread reading compressed data from the network go back to waiting for
+ * the next packet while the previous ones are being decoded. The writing
+ * thread only blocks when all buffers in the ring are full.
+ * <p>
+ * The decompressed data is written to the underlying {@link OutputStream}
+ * by the {@link Executor}'s thread. {@link #finish()} must be called after
+ * the last byte has been written and waits for all data to be decompressed.
+ * Errors in the decoding task are reported by the next call to a write
+ * method, {@link #flush()}, {@link #finish()} or {@link #close()}.
+ * <p>
+ * The {@link Executor} must start the decoding task without waiting for 
+ * the writing thread, e.g. it mustn't be a bounded pool which the writing 
+ * thread itself belongs to. Instances of this class must only be written to
+ * by one thread at a time.
+ */
+public class HU01PipelinedOutputStream extends OutputStream {
+
+    /**
+     * The default number of buffers in the ring.
+     */
+    public static final int DEFAULT_BUFFERS = 8;
+
+    /**
+     * The default size of each buffer in the ring.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    private final OutputStream out;
+    private final HU01Decompressor decompressor;
+    private final HU01DecompressorOutputStream decompressorOut;
+    private final Object lock = new Object();
+    private final byte[][] ring;
+    private final int[] lengths;
+
+    // Guarded by lock
+    private int head = 0;
+    private int count = 0;
+    private boolean eof = false;
+    private boolean running = true;
+    private Throwable error;
+
+    // Only accessed by the writing thread
+    private int fill = 0;
+    private boolean closed = false;
+
+    private volatile boolean finished = false;
+
+    /**
+     * Creates a new {@link HU01PipelinedOutputStream} using
+     * {@link #DEFAULT_BUFFERS} buffers of {@link #DEFAULT_BUFFER_SIZE} bytes.
+     *
+     * @param out the stream decompressed data is written to.
+     * @param decompressor the {@link HU01Decompressor} to use. It must not be
+     *        used by anyone else until {@link #finish()} or {@link #abort()}
+     *        has returned.
+     * @param executor the {@link Executor} running the decoding task.
+     */
+    public HU01PipelinedOutputStream(OutputStream out, HU01Decompressor decompressor, Executor executor) {
+        this(out, decompressor, executor, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new {@link HU01PipelinedOutputStream}.
+     *
+     * @param out the stream decompressed data is written to.
+     * @param decompressor the {@link HU01Decompressor} to use. It must not be
+     *        used by anyone else until {@link #finish()} or {@link #abort()}
+     *        has returned.
+     * @param executor the {@link Executor} running the decoding task.
+     * @param buffers the number of buffers in the ring.
+     * @param bufferSize the size of each buffer.
+     * @throws IllegalArgumentException if {@code buffers} or
+     *         {@code bufferSize} is 0 or negative.
+     */
+    public HU01PipelinedOutputStream(OutputStream out, HU01Decompressor decompressor, Executor executor,
+            int buffers, int bufferSize) {
+
+        if (out == null || decompressor == null || executor == null) {
+            throw new NullPointerException();
+        }
+        if (buffers <= 0) {
+            throw new IllegalArgumentException("buffers");
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize");
+        }
+        this.out = out;
+        this.decompressor = decompressor;
+        this.decompressorOut = new HU01DecompressorOutputStream(new GuardedOutputStream(out), decompressor, bufferSize);
+        this.ring = new byte[buffers][bufferSize];
+        this.lengths = new int[buffers];
+        executor.execute(new Runnable() {
+            public void run() {
+                decode();
+            }
+        });
+    }
+
+    /**
+     * Indicates if the {@link HU01Decompressor} has finished, i.e. if the
+     * entire stream has been decompressed or if it stopped early because of
+     * {@link HU01Decompressor#setMaxBodyLines(int)}. Once this returns
+     * {@code true} the rest of the compressed data doesn't have to be
+     * written. Any data written after that is ignored.
+     *
+     * @return {@code true} if the decompressor has finished.
+     */
+    public boolean finished() {
+        return finished;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0 && !finished) {
+            int tail;
+            synchronized (lock) {
+                if (fill == 0) {
+                    while (count == ring.length && running) {
+                        waitForDecoder();
+                    }
+                }
+                checkError();
+                tail = (head + count) % ring.length;
+            }
+            // The tail buffer isn't touched by the decoding task until it's submitted
+            int n = Math.min(len, ring[tail].length - fill);
+            System.arraycopy(b, off, ring[tail], fill, n);
+            fill += n;
+            off += n;
+            len -= n;
+            if (fill == ring[tail].length) {
+                submit();
+            }
+        }
+        if (finished) {
+            synchronized (lock) {
+                checkError();
+            }
+        }
+    }
+
+    /**
+     * Waits until all data written so far has been decompressed and then
+     * flushes the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkClosed();
+        submit();
+        synchronized (lock) {
+            while (count > 0 && running) {
+                waitForDecoder();
+            }
+            checkError();
+        }
+        out.flush();
+    }
+
+    /**
+     * Waits until all data written to this stream has been decompressed and
+     * stops the decoding task. Doesn't close the underlying stream.
+     *
+     * @throws IOException if decompression failed or if the stream has
+     *         already been finished.
+     */
+    public void finish() throws IOException {
+        checkClosed();
+        submit();
+        synchronized (lock) {
+            eof = true;
+            lock.notifyAll();
+            while (running) {
+                waitForDecoder();
+            }
+            closed = true;
+            checkError();
+        }
+        out.flush();
+    }
+
+    /**
+     * Stops the decoding task without decompressing any data still waiting
+     * in the ring and waits for the task to finish. Does nothing if
+     * {@link #finish()} or {@link #close()} has already been called. The
+     * {@link HU01Decompressor} can be reused once this method returns.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        synchronized (lock) {
+            eof = true;
+            finished = true;
+            lock.notifyAll();
+            boolean interrupted = false;
+            while (running) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Calls {@link #finish()} and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            try {
+                finish();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Hands the partially filled tail buffer over to the decoding task.
+     */
+    private void submit() {
+        if (fill > 0) {
+            synchronized (lock) {
+                lengths[(head + count) % ring.length] = fill;
+                count++;
+                lock.notifyAll();
+            }
+            fill = 0;
+        }
+    }
+
+    private void waitForDecoder() throws IOException {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            throw (IOException) new IOException().initCause(error);
+        }
+    }
+
+    private void checkClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * The decoding task. Takes filled buffers from the head of the ring until
+     * {@link #eof} is set and the ring is empty. After an error or once the
+     * {@link HU01Decompressor} has finished buffers are just discarded so
+     * the writing thread never blocks forever.
+     */
+    private void decode() {
+        try {
+            while (true) {
+                int slot;
+                synchronized (lock) {
+                    while (count == 0 && !eof) {
+                        lock.wait();
+                    }
+                    if (count == 0) {
+                        break;
+                    }
+                    slot = head;
+                }
+                // Re-checked before every buffer since abort() may have set
+                // finished while the previous one was being decompressed
+                if (!finished) {
+                    try {
+                        decompressorOut.write(ring[slot], 0, lengths[slot]);
+                        if (decompressor.finished()) {
+                            // Never reset finished once abort() has set it
+                            finished = true;
+                        }
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+                synchronized (lock) {
+                    head = (head + 1) % ring.length;
+                    count--;
+                    lock.notifyAll();
+                }
+            }
+            if (!finished) {
+                decompressorOut.finish();
+            }
+        } catch (Throwable t) {
+            fail(t);
+        } finally {
+            synchronized (lock) {
+                running = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Passes decompressed data on to the underlying stream unless
+     * {@link #finished} has been set, e.g. by {@link #abort()} while a
+     * buffer was being decompressed. Every method checks {@link #finished}
+     * so nothing reaches the underlying stream after that.
+     */
+    class GuardedOutputStream extends FilterOutputStream {
+        GuardedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!finished) {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!finished) {
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!finished) {
+                out.flush();
+            }
+        }
+    }
+
+    private void fail(Throwable t) {
+        synchronized (lock) {
+            if (error == null) {
+                error = t;
+            }
+        }
+        finished = true;
+    }
+}
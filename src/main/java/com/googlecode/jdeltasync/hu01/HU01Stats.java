@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters collected by the {@link HU01Decompressor}s this has been set on
+ * using {@link HU01Decompressor#setStats(HU01Stats)}. Comparing the time
+ * spent waiting for input (see {@link #addInputWaitNanos(long)}) with the
+ * time spent building tables, decoding and checking CRCs tells whether
+ * downloads are limited by the network or by the CPU. The same instance can
+ * be shared by several {@link HU01Decompressor}s, e.g. all downloads for an
+ * account. This class is thread-safe.
+ */
+public class HU01Stats {
+
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong decompressedBytes = new AtomicLong();
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLong storedBlocks = new AtomicLong();
+    private final AtomicLong tableBuildNanos = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicLong crcNanos = new AtomicLong();
+    private final AtomicLong inputWaitNanos = new AtomicLong();
+
+    /**
+     * Returns the number of compressed bytes added to the
+     * {@link HU01Decompressor}s.
+     *
+     * @return the number of bytes.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * Returns the number of decompressed bytes returned by the
+     * {@link HU01Decompressor}s.
+     *
+     * @return the number of bytes.
+     */
+    public long getDecompressedBytes() {
+        return decompressedBytes.get();
+    }
+
+    /**
+     * Returns the number of blocks decoded, including stored blocks.
+     *
+     * @return the number of blocks.
+     */
+    public long getBlocks() {
+        return blocks.get();
+    }
+
+    /**
+     * Returns the number of stored blocks, i.e. blocks which weren't
+     * compressed and were just copied.
+     *
+     * @return the number of blocks.
+     */
+    public long getStoredBlocks() {
+        return storedBlocks.get();
+    }
+
+    /**
+     * Returns the time spent building (or looking up cached) decoding tables.
+     *
+     * @return the time in nanoseconds.
+     */
+    public long getTableBuildNanos() {
+        return tableBuildNanos.get();
+    }
+
+    /**
+     * Returns the time spent decoding blocks, excluding table building and
+     * CRC checks.
+     *
+     * @return the time in nanoseconds.
+     */
+    public long getDecodeNanos() {
+        return decodeNanos.get();
+    }
+
+    /**
+     * Returns the time spent computing block CRCs.
+     *
+     * @return the time in nanoseconds.
+     */
+    public long getCrcNanos() {
+        return crcNanos.get();
+    }
+
+    /**
+     * Returns the time spent waiting for compressed input as reported by
+     * {@link #addInputWaitNanos(long)}.
+     *
+     * @return the time in nanoseconds.
+     */
+    public long getInputWaitNanos() {
+        return inputWaitNanos.get();
+    }
+
+    /**
+     * Adds time spent waiting for compressed input, e.g. reading from the
+     * network. {@link HU01Decompressor} can't measure this itself so it's up
+     * to the code feeding it input to report it.
+     *
+     * @param nanos the time in nanoseconds.
+     */
+    public void addInputWaitNanos(long nanos) {
+        inputWaitNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Resets all counters to 0.
+     */
+    public void reset() {
+        compressedBytes.set(0);
+        decompressedBytes.set(0);
+        blocks.set(0);
+        storedBlocks.set(0);
+        tableBuildNanos.set(0);
+        decodeNanos.set(0);
+        crcNanos.set(0);
+        inputWaitNanos.set(0);
+    }
+
+    void addCompressedBytes(long n) {
+        compressedBytes.addAndGet(n);
+    }
+
+    void addDecompressedBytes(long n) {
+        decompressedBytes.addAndGet(n);
+    }
+
+    void addCrcNanos(long nanos) {
+        crcNanos.addAndGet(nanos);
+    }
+
+    void addBlock(boolean stored, long tableBuildNanos, long decodeNanos, long crcNanos) {
+        blocks.incrementAndGet();
+        if (stored) {
+            storedBlocks.incrementAndGet();
+        }
+        this.tableBuildNanos.addAndGet(tableBuildNanos);
+        this.decodeNanos.addAndGet(decodeNanos);
+        this.crcNanos.addAndGet(crcNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "HU01Stats[compressedBytes=" + getCompressedBytes()
+                + ", decompressedBytes=" + getDecompressedBytes()
+                + ", blocks=" + getBlocks()
+                + ", storedBlocks=" + getStoredBlocks()
+                + ", tableBuildMillis=" + getTableBuildNanos() / 1000000
+                + ", decodeMillis=" + getDecodeNanos() / 1000000
+                + ", crcMillis=" + getCrcNanos() / 1000000
+                + ", inputWaitMillis=" + getInputWaitNanos() / 1000000 + "]";
+    }
+}
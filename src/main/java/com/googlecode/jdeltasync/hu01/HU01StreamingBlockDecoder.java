@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HU01 block decoder which can be suspended when it runs out of compressed
+ * input and resumed once more input is available. This lets
+ * {@link HU01Decompressor} decode a block without holding the entire
+ * compressed block in memory. The bit buffer is kept between calls and the
+ * decoder never starts decoding a symbol unless all bytes it may consume
+ * are available, i.e. the stream is consumed in exactly the same order as by
+ * {@link HU01#decompress_hu01_block(ByteBuffer, short[], ByteBuffer)}.
+ * <p>
+ * This class has package private scope since it's not meant to be used
+ * directly. Use {@link HU01Decompressor#setMemoryLimit(int)} instead.
+ */
+class HU01StreamingBlockDecoder {
+
+    /**
+     * The maximum number of compressed bytes consumed while decoding a
+     * single symbol: a refill after the symbol, up to 3 extra match length
+     * bytes and a refill after the match.
+     */
+    static final int MAX_SYMBOL_BYTES = 7;
+
+    private short[] table;
+    private boolean started;
+    private boolean done;
+    private int bits;
+    private int avail;
+    private int written;
+
+    /**
+     * Prepares for decoding a new block using the specified table.
+     */
+    void reset(short[] table) {
+        this.table = table;
+        started = false;
+        done = false;
+        bits = 0;
+        avail = 0;
+        written = 0;
+    }
+
+    /**
+     * Returns {@code true} if the destination is full or the last input of
+     * the block has been decoded. Any remaining compressed bytes of the block
+     * should be skipped.
+     */
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns the number of bytes written to the destination so far.
+     */
+    int getWritten() {
+        return written;
+    }
+
+    /**
+     * Decodes as many symbols as possible from {@code source}. The same
+     * destination must be passed on every call for a block.
+     *
+     * @param last {@code true} if {@code source} holds all remaining
+     *        compressed bytes of the block.
+     * @return the number of bytes consumed from {@code source}. Unconsumed
+     *         bytes must be passed again on the next call.
+     */
+    int decode(byte[] source, int sourceOff, int sourceLen, boolean last,
+            byte[] destination, int destinationOff, int destinationLen) throws HU01Exception {
+
+        int sp = sourceOff;
+        int sourceEnd = sourceOff + sourceLen;
+        if (!started) {
+            if (sourceLen < 4) {
+                done = last;
+                return 0;
+            }
+            bits = (getShort(source, sp) << 16) | getShort(source, sp + 2);
+            sp += 4;
+            avail = 16;
+            started = true;
+        }
+
+        int bits = this.bits;
+        int avail = this.avail;
+        int dp = destinationOff + written;
+        int destinationEnd = destinationOff + destinationLen;
+
+        while (true) {
+            if (dp >= destinationEnd) {
+                done = true;
+                break;
+            }
+            if (!last && sourceEnd - sp < MAX_SYMBOL_BYTES) {
+                // Suspend until more input is available
+                break;
+            }
+
+            int entry = table[bits >>> 22];
+            if (entry < 0) {
+                // Code longer than 10 bits. Walk the tree.
+                bits <<= 10;
+                do {
+                    entry = table[0x8000 + entry + (bits >>> 31)];
+                    bits <<= 1;
+                } while (entry < 0);
+            } else {
+                bits <<= entry & 0xf;
+            }
+            int symbol = entry >>> 4;
+            avail -= entry & 0xf;
+            if (avail < 0) {
+                if (sourceEnd - sp < 2) {
+                    done = true;
+                    break;
+                }
+                bits += getShort(source, sp) << -avail;
+                sp += 2;
+                avail += 16;
+            }
+
+            if (symbol < 0x100) {
+                destination[dp++] = (byte) symbol;
+                continue;
+            }
+
+            // Match. The high nibble is the number of extra offset bits.
+            int n = (symbol >>> 4) & 0xf;
+            int offset = ((bits >>> 1) | 0x80000000) >>> (31 - n);
+            bits <<= n;
+            avail -= n;
+
+            int matchLength = symbol & 0xf;
+            if (matchLength == 0xf) {
+                if (sp >= sourceEnd) {
+                    done = true;
+                    break;
+                }
+                matchLength = source[sp++] & 0xff;
+                if (matchLength == 0xff) {
+                    if (sourceEnd - sp < 2) {
+                        done = true;
+                        break;
+                    }
+                    matchLength = getShort(source, sp);
+                    sp += 2;
+                    if (matchLength < 0x10e) {
+                        throw new HU01Exception();
+                    }
+                } else {
+                    matchLength += 0xf;
+                }
+            }
+            matchLength += 3;
+
+            int from = dp - offset;
+            if (from < destinationOff) {
+                throw new HU01Exception();
+            }
+            matchLength = Math.min(matchLength, destinationEnd - dp);
+            if (offset >= matchLength) {
+                System.arraycopy(destination, from, destination, dp, matchLength);
+                dp += matchLength;
+            } else {
+                // Overlapping match. Copy byte by byte to repeat the pattern.
+                for (int i = 0; i < matchLength; i++) {
+                    destination[dp++] = destination[from + i];
+                }
+            }
+
+            if (avail < 0) {
+                if (sourceEnd - sp < 2) {
+                    done = true;
+                    break;
+                }
+                bits += getShort(source, sp) << -avail;
+                sp += 2;
+                avail += 16;
+            }
+        }
+
+        this.bits = bits;
+        this.avail = avail;
+        this.written = dp - destinationOff;
+        return sp - sourceOff;
+    }
+
+    private static int getShort(byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8);
+    }
+}
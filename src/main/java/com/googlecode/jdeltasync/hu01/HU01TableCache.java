@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded cache of decompression tables keyed by the 256 table bytes
+ * at the start of each compressed block. Messages generated by the server
+ * often use the same table for many blocks and a cached table lets
+ * {@link HU01Decompressor} skip rebuilding it. The least recently used table
+ * is evicted when the cache is full. This class is thread-safe and a single
+ * instance can be shared by any number of {@link HU01Decompressor}s using
+ * {@link HU01Decompressor#setTableCache(HU01TableCache)}.
+ */
+public class HU01TableCache {
+
+    /**
+     * The default maximum number of tables kept by the cache.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    static final int TABLE_BYTES = 256;
+
+    /**
+     * The number of entries in a decompression table actually used by
+     * {@link HU01#build_decompression_table(ByteBuffer, short[])} and the
+     * block decoders: 1024 direct entries followed by the tree for longer
+     * codes.
+     */
+    static final int TABLE_ENTRIES = 2048;
+
+    private final int maxEntries;
+    private final Map<Key, CachedTable> entries;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Creates a new cache holding at most {@link #DEFAULT_MAX_ENTRIES} tables.
+     */
+    public HU01TableCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a new cache holding at most {@code maxEntries} tables. Each
+     * table takes about 4 kB (20 kB when used with
+     * {@link HU01Decompressor.Decoder#MULTI_SYMBOL}).
+     *
+     * @param maxEntries the maximum number of tables.
+     * @throws IllegalArgumentException if {@code maxEntries} is 0 or negative.
+     */
+    @SuppressWarnings("serial")
+    public HU01TableCache(final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries");
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Key, CachedTable>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedTable> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the maximum number of tables kept by this cache.
+     *
+     * @return the maximum number of tables.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Returns the number of tables currently in this cache.
+     *
+     * @return the number of tables.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups which found a cached table.
+     *
+     * @return the number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups which had to build a new table.
+     *
+     * @return the number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Removes all tables from this cache and resets the hit and miss counters.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    /**
+     * Returns the table for the {@value #TABLE_BYTES} table bytes starting at
+     * {@code src[off]}. The table is built and added to the cache if not
+     * found.
+     *
+     * @throws HU01Exception if the table bytes are invalid.
+     */
+    CachedTable get(byte[] src, int off) throws HU01Exception {
+        Key key = new Key(src, off);
+        synchronized (this) {
+            CachedTable entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                return entry;
+            }
+            misses++;
+        }
+
+        short[] table = new short[TABLE_ENTRIES];
+        if (!HU01.build_decompression_table(ByteBuffer.wrap(src, off, TABLE_BYTES).slice(), table)) {
+            throw new HU01Exception("Bad block table");
+        }
+        CachedTable entry = new CachedTable(table);
+        byte[] copy = new byte[TABLE_BYTES];
+        System.arraycopy(src, off, copy, 0, TABLE_BYTES);
+        synchronized (this) {
+            entries.put(new Key(copy, 0, key.hash), entry);
+        }
+        return entry;
+    }
+
+    /**
+     * A cached table.
+     */
+    static class CachedTable {
+        final short[] table;
+        private volatile int[] multiTable;
+
+        CachedTable(short[] table) {
+            this.table = table;
+        }
+
+        /**
+         * Returns the table used by {@link HU01MultiSymbolDecoder}. It is
+         * built the first time it's requested.
+         */
+        int[] getMultiTable() {
+            int[] t = multiTable;
+            if (t == null) {
+                // Racing threads build identical tables so there's no need to lock
+                t = new int[HU01MultiSymbolDecoder.TABLE_SIZE];
+                HU01MultiSymbolDecoder.buildTable(table, t);
+                multiTable = t;
+            }
+            return t;
+        }
+    }
+
+    /**
+     * Compares the table bytes in place to avoid copying them on lookups.
+     */
+    private static class Key {
+        private final byte[] bytes;
+        private final int off;
+        private final int hash;
+
+        Key(byte[] bytes, int off) {
+            this(bytes, off, hash(bytes, off));
+        }
+
+        Key(byte[] bytes, int off, int hash) {
+            this.bytes = bytes;
+            this.off = off;
+            this.hash = hash;
+        }
+
+        private static int hash(byte[] bytes, int off) {
+            int h = 1;
+            for (int i = off; i < off + TABLE_BYTES; i++) {
+                h = 31 * h + bytes[i];
+            }
+            return h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            if (hash != other.hash) {
+                return false;
+            }
+            for (int i = 0; i < TABLE_BYTES; i++) {
+                if (bytes[off + i] != other.bytes[other.off + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
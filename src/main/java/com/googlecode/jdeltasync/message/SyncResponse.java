@@ -42,6 +42,7 @@ public class SyncResponse {
     public static class Collection {
         
         private final String syncKey;
+        private final String collectionId;
         private final Clazz clazz;
         private final int status;
         private final List<Command> commands;
@@ -52,7 +53,15 @@ public class SyncResponse {
                 List<Command> commands, boolean moreAvailable, 
                 List<Response> responses) {
             
+            this(syncKey, null, clazz, status, commands, moreAvailable, responses);
+        }
+
+        public Collection(String syncKey, String collectionId, Clazz clazz, int status,
+                List<Command> commands, boolean moreAvailable, 
+                List<Response> responses) {
+            
             this.syncKey = syncKey;
+            this.collectionId = collectionId;
             this.clazz = clazz;
             this.status = status;
             this.commands = commands;
@@ -64,6 +73,17 @@ public class SyncResponse {
             return syncKey;
         }
 
+        /**
+         * Returns the <code>&lt;CollectionId&gt;</code> of this collection.
+         * 
+         * @return the id or <code>null</code> if the server didn't send one.
+         *         The collections of a response are in the same order as in
+         *         the request.
+         */
+        public String getCollectionId() {
+            return collectionId;
+        }
+
         public Clazz getClazz() {
             return clazz;
         }
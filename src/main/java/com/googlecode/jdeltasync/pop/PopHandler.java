@@ -76,6 +76,7 @@ class PopHandler implements Runnable {
     private static final Pattern LIST = Pattern.compile("^LIST(\\s+[\\d]+)?$", Pattern.CASE_INSENSITIVE);
     private static final Pattern DELE = Pattern.compile("^DELE\\s+([\\d]+)$", Pattern.CASE_INSENSITIVE);
     private static final Pattern RETR = Pattern.compile("^RETR\\s+([\\d]+)$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern TOP = Pattern.compile("^TOP\\s+([\\d]+)\\s+([\\d]+)$", Pattern.CASE_INSENSITIVE);
     private static final Pattern RSET = Pattern.compile("^RSET$", Pattern.CASE_INSENSITIVE);
     private static final Pattern NOOP = Pattern.compile("^NOOP$", Pattern.CASE_INSENSITIVE);
     private static final Pattern FOLDERS = Pattern.compile("^FOLDERS$", Pattern.CASE_INSENSITIVE);
@@ -216,20 +217,7 @@ class PopHandler implements Runnable {
             } else {
                 writeln(OK);
                 writer.flush();
-                OutputStream out = new ExtraDotOutputStream(new BufferedOutputStream(
-                    new FilterOutputStream(socket.getOutputStream()) {
-                        @Override
-                        public void write(byte[] b, int off, int len)
-                                throws IOException {
-
-                            if (logger.isTraceEnabled()) {
-                                logger.trace("READ: {}",
-                                        new String(b, off, len, "ISO8859-1"));
-                            }
-                            this.out.write(b, off, len);
-                        }
-                    }
-                ));
+                OutputStream out = createMessageOutputStream();
                 client.downloadMessageContent(msgs.get(n - 1), out);
                 out.flush();
                 writeln("\r\n.");
@@ -237,6 +225,45 @@ class PopHandler implements Runnable {
         }
     }
 
+    private void top(String line) throws Exception {
+        Matcher matcher = TOP.matcher(line);
+        if (!matcher.matches()) {
+            writeln(ERR_COMMAND_SYNTAX_ERROR);
+        } else {
+            int n = Integer.parseInt(matcher.group(1));
+            int lines = Integer.parseInt(matcher.group(2));
+            List<IMessage> msgs = getAllMessages();
+            if (n <= 0 || n > msgs.size() || deleted.contains(msgs.get(n - 1).getId())) {
+                writeln(ERR_UNKNOWN_MESSAGE_NUMBER, n);
+            } else {
+                writeln(OK);
+                writer.flush();
+                ExtraDotOutputStream out = createMessageOutputStream();
+                client.downloadMessageHeader(msgs.get(n - 1), lines, out);
+                out.flush();
+                // The last line written is normally complete already
+                writeln(out.countLast0A0D == 2 ? "." : "\r\n.");
+            }
+        }
+    }
+
+    private ExtraDotOutputStream createMessageOutputStream() throws IOException {
+        return new ExtraDotOutputStream(new BufferedOutputStream(
+            new FilterOutputStream(socket.getOutputStream()) {
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException {
+
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("READ: {}",
+                                new String(b, off, len, "ISO8859-1"));
+                    }
+                    this.out.write(b, off, len);
+                }
+            }
+        ));
+    }
+
     private void dele(String line) throws Exception {
         Matcher matcher = DELE.matcher(line);
         if (!matcher.matches()) {
@@ -435,6 +462,8 @@ class PopHandler implements Runnable {
                             stat(line);
                         } else if ("RETR".equals(cmd)) {
                             retr(line);
+                        } else if ("TOP".equals(cmd)) {
+                            top(line);
                         } else if ("DELE".equals(cmd)) {
                             dele(line);
                         } else if ("UIDL".equals(cmd)) {
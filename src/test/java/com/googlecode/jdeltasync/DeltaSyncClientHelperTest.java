@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.junit.Test;
+
+import com.googlecode.jdeltasync.message.Clazz;
+import com.googlecode.jdeltasync.message.Command;
+import com.googlecode.jdeltasync.message.MessageAddCommand;
+import com.googlecode.jdeltasync.message.SyncRequest;
+import com.googlecode.jdeltasync.message.SyncResponse;
+
+/**
+ * Tests {@link DeltaSyncClientHelper}.
+ */
+public class DeltaSyncClientHelperTest {
+
+    /**
+     * {@link IDeltaSyncClient} answering each <code>Sync</code> request with
+     * one message per requested collection. The collection of folder
+     * <code>a</code> has more changes available in the first request and the
+     * collection of folder <code>c</code> fails unless it's synchronized alone.
+     */
+    private static class SyncClient implements IDeltaSyncClient {
+        private final List<String> requests = new ArrayList<String>();
+
+        public void sync(IDeltaSyncSession session, SyncRequest syncRequest, ISyncResponseVisitor visitor)
+                throws DeltaSyncException {
+
+            List<String> ids = new ArrayList<String>();
+            for (SyncRequest.Collection collection : syncRequest.getCollections()) {
+                ids.add(collection.getCollectionId());
+            }
+            requests.add(ids.toString());
+            for (String id : ids) {
+                if (id.equals("c") && ids.size() > 1) {
+                    visitor.endCollection(new SyncResponse.Collection(null, Clazz.Email, 4104,
+                            Collections.<Command>emptyList(), false, null));
+                    continue;
+                }
+                String messageId = id + requests.size();
+                visitor.command(Clazz.Email, new MessageAddCommand(messageId, id, new Date(), 1,
+                        false, "", "", false, false));
+                boolean moreAvailable = id.equals("a") && requests.size() == 1;
+                visitor.endCollection(new SyncResponse.Collection("key-" + messageId, Clazz.Email, 1,
+                        Collections.<Command>emptyList(), moreAvailable, null));
+            }
+        }
+
+        public IDeltaSyncSession login(String username, String password) {
+            return new DeltaSyncSession(username, password);
+        }
+
+        public SyncResponse sync(IDeltaSyncSession session, SyncRequest syncRequest) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void downloadMessageContent(IDeltaSyncSession session, String messageId, OutputStream out) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void downloadRawMessageContent(IDeltaSyncSession session, String messageId, OutputStream out) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Map<String, DeltaSyncException> downloadMessageContents(IDeltaSyncSession session,
+                Map<String, ? extends OutputStream> outputs) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void downloadMessageHeader(IDeltaSyncSession session, String messageId, int bodyLines,
+                OutputStream out) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Deprecated
+        public ClientConnectionManager getConnectionManager() {
+            throw new UnsupportedOperationException();
+        }
+
+        public IDeltaSyncSession renew(IDeltaSyncSession session) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setConnectionTimeout(int timeout) {
+        }
+
+        public void setSoTimeout(int timeout) {
+        }
+    }
+
+    @Test
+    public void testSyncFolders() throws Exception {
+        SyncClient client = new SyncClient();
+        InMemoryStore store = new InMemoryStore();
+        DeltaSyncClientHelper helper = new DeltaSyncClientHelper(client, "user", "pass", store);
+        helper.login();
+
+        IFolder a = new Folder("a", "A");
+        IFolder b = new Folder("b", "B");
+        IFolder c = new Folder("c", "C");
+        Map<IFolder, Collection<IMessage>> result = helper.syncFolders(Arrays.asList(a, b, c));
+
+        // All folders in one request, then only the folder with more changes
+        // and finally the failed folder on its own
+        assertEquals("[[a, b, c], [a], [c]]", client.requests.toString());
+        assertEquals(Arrays.asList(a, b, c), new ArrayList<IFolder>(result.keySet()));
+        assertEquals(2, result.get(a).size());
+        assertEquals(1, result.get(b).size());
+        assertEquals("b1", result.get(b).iterator().next().getId());
+        assertEquals(1, result.get(c).size());
+        assertEquals("c3", result.get(c).iterator().next().getId());
+        assertEquals("key-a2", store.getMessagesSyncKey("user", a));
+        assertEquals("key-b1", store.getMessagesSyncKey("user", b));
+        assertEquals("key-c3", store.getMessagesSyncKey("user", c));
+    }
+
+    @Test
+    public void testGetMessagesUpdatesStoreWhileReading() throws Exception {
+        SyncClient client = new SyncClient() {
+            @Override
+            public void sync(IDeltaSyncSession session, SyncRequest syncRequest, ISyncResponseVisitor visitor)
+                    throws DeltaSyncException {
+
+                for (int i = 0; i < 150; i++) {
+                    visitor.command(Clazz.Email, new MessageAddCommand("m" + i, "a", new Date(), 1,
+                            false, "", "", false, false));
+                }
+                visitor.endCollection(new SyncResponse.Collection("key-1", Clazz.Email, 1,
+                        Collections.<Command>emptyList(), false, null));
+            }
+        };
+        final List<String> updates = new ArrayList<String>();
+        InMemoryStore store = new InMemoryStore() {
+            @Override
+            public void updateMessages(String username, IFolder folder, String syncKey, 
+                    Collection<IMessage> added, Collection<IMessage> modified, Collection<String> deleted) {
+                updates.add(syncKey + ":" + added.size());
+                super.updateMessages(username, folder, syncKey, added, modified, deleted);
+            }
+        };
+        DeltaSyncClientHelper helper = new DeltaSyncClientHelper(client, "user", "pass", store);
+        helper.login();
+
+        IFolder a = new Folder("a", "A");
+        assertEquals(150, helper.getMessagesCollection(a).size());
+        // Applied in batches with the old sync key, the new one comes last
+        assertEquals("[0:64, 0:64, key-1:22]", updates.toString());
+        assertEquals("key-1", store.getMessagesSyncKey("user", a));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.junit.Test;
+
+import com.googlecode.jdeltasync.hu01.HU01Compressor;
+
+/**
+ * Tests {@link DeltaSyncClient} against canned responses.
+ */
+public class DeltaSyncClientTest {
+
+    /**
+     * Response content which records whether the connection was aborted.
+     */
+    private static class ResponseStream extends ByteArrayInputStream implements ConnectionReleaseTrigger {
+        private boolean aborted;
+
+        ResponseStream(byte[] content) {
+            super(content);
+        }
+
+        public void releaseConnection() {
+        }
+
+        public void abortConnection() {
+            aborted = true;
+        }
+    }
+
+    /**
+     * Returns an {@link HttpClient} answering every request with a
+     * multipart <code>ItemOperations</code> response holding the specified
+     * HU01 compressed message.
+     */
+    private static HttpClient client(byte[] compressed, ResponseStream[] content) throws IOException {
+        return client(content, xopPart("<Fetch><Status>1</Status><Properties><Data>" + include(1)
+                + "</Data></Properties></Fetch>"), octetPart(1, compressed));
+    }
+
+    private static String include(int contentId) {
+        return "<xop:Include xmlns:xop=\"http://www.w3.org/2004/08/xop/include\" href=\"cid:" + contentId + "\"/>";
+    }
+
+    private static byte[] xopPart(String fetches) throws IOException {
+        return ("Content-Type: application/xop+xml\r\n"
+            + "Content-ID: <root>\r\n"
+            + "\r\n"
+            + "<ItemOperations xmlns=\"ItemOperations:\"><Status>1</Status><Responses>"
+            + fetches + "</Responses></ItemOperations>").getBytes("ASCII");
+    }
+
+    private static byte[] octetPart(int contentId, byte[] compressed) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(("Content-Type: application/octet-stream\r\n"
+            + "Content-ID: <" + contentId + ">\r\n"
+            + "\r\n").getBytes("ASCII"));
+        baos.write(compressed);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Returns an {@link HttpClient} answering every request with a
+     * multipart response made up of the specified parts.
+     */
+    private static HttpClient client(final ResponseStream[] content, final byte[]... parts) {
+        return (HttpClient) Proxy.newProxyInstance(HttpClient.class.getClassLoader(),
+                new Class<?>[] {HttpClient.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        HttpUriRequest request = (HttpUriRequest) args[0];
+                        HttpContext context = (HttpContext) args[2];
+                        context.setAttribute(HttpCoreContext.HTTP_REQUEST, request);
+                        context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, new HttpHost("localhost"));
+
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        baos.write(("MIME-Version: 1.0\r\n"
+                            + "Content-Type: multipart/related; boundary=\"part\"; type=\"application/xop+xml\"\r\n"
+                            + "\r\n").getBytes("ASCII"));
+                        for (byte[] part : parts) {
+                            baos.write("--part\r\n".getBytes("ASCII"));
+                            baos.write(part);
+                            baos.write("\r\n".getBytes("ASCII"));
+                        }
+                        baos.write("--part--\r\n".getBytes("ASCII"));
+                        content[0] = new ResponseStream(baos.toByteArray());
+
+                        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+                        response.setHeader("Content-Type", "application/xop+xml");
+                        response.setEntity(new InputStreamEntity(content[0], -1));
+                        return ((ResponseHandler<?>) args[1]).handleResponse(response);
+                    }
+                });
+    }
+
+    private static byte[] message() throws IOException {
+        StringBuilder sb = new StringBuilder("Subject: test\r\n\r\n");
+        for (int i = 0; i < 1000; i++) {
+            sb.append("Line ").append(i).append("\r\n");
+        }
+        return sb.toString().getBytes("ASCII");
+    }
+
+    private static IDeltaSyncSession session() {
+        IDeltaSyncSession session = new DeltaSyncSession("user", "pass");
+        session.setBaseUri("http://localhost");
+        return session;
+    }
+
+    @Test
+    public void testFullDownloadDoesNotAbortConnection() throws Exception {
+        byte[] message = message();
+        ResponseStream[] content = new ResponseStream[1];
+        DeltaSyncClient client = new DeltaSyncClient(client(new HU01Compressor().compress(message), content));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        client.downloadMessageContent(session(), "1", out);
+        assertArrayEquals(message, out.toByteArray());
+        // The rest of the response was read so the connection can be reused
+        assertFalse(content[0].aborted);
+        assertEquals(0, content[0].available());
+    }
+
+    @Test
+    public void testHeaderDownloadAbortsConnection() throws Exception {
+        byte[] message = message();
+        ResponseStream[] content = new ResponseStream[1];
+        DeltaSyncClient client = new DeltaSyncClient(client(new HU01Compressor().compress(message), content));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        client.downloadMessageHeader(session(), "1", 2, out);
+        assertEquals("Subject: test\r\n\r\nLine 0\r\nLine 1\r\n", new String(out.toByteArray(), "ASCII"));
+        assertTrue(content[0].aborted);
+    }
+
+    @Test
+    public void testDownloadMessageContentsSkipsUnresolvedParts() throws Exception {
+        byte[] message1 = message();
+        byte[] message2 = "Subject: second\r\n\r\nBody\r\n".getBytes("ASCII");
+        HU01Compressor compressor = new HU01Compressor();
+        // The part of message 2 arrives before the xop+xml part so it can't
+        // be matched to a <Fetch>
+        HttpClient httpClient = client(new ResponseStream[1],
+                octetPart(2, compressor.compress(message2)),
+                xopPart("<Fetch><Status>1</Status><ServerId>m1</ServerId><Properties><Data>" + include(1)
+                        + "</Data></Properties></Fetch>"
+                        + "<Fetch><Status>1</Status><ServerId>m2</ServerId><Properties><Data>" + include(2)
+                        + "</Data></Properties></Fetch>"),
+                octetPart(3, compressor.compress(message2)),
+                octetPart(1, compressor.compress(message1)));
+        DeltaSyncClient client = new DeltaSyncClient(httpClient);
+
+        Map<String, ByteArrayOutputStream> outputs = new LinkedHashMap<String, ByteArrayOutputStream>();
+        outputs.put("m1", new ByteArrayOutputStream());
+        outputs.put("m2", new ByteArrayOutputStream());
+        Map<String, DeltaSyncException> failures = client.downloadMessageContents(session(), outputs);
+        assertArrayEquals(message1, outputs.get("m1").toByteArray());
+        assertEquals(0, outputs.get("m2").size());
+        assertEquals(Collections.singleton("m2"), failures.keySet());
+    }
+}
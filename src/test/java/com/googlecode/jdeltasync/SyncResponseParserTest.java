@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.googlecode.jdeltasync.message.Clazz;
+import com.googlecode.jdeltasync.message.Command;
+import com.googlecode.jdeltasync.message.FolderAddCommand;
+import com.googlecode.jdeltasync.message.FolderChangeCommand;
+import com.googlecode.jdeltasync.message.FolderDeleteCommand;
+import com.googlecode.jdeltasync.message.MessageAddCommand;
+import com.googlecode.jdeltasync.message.MessageChangeCommand;
+import com.googlecode.jdeltasync.message.MessageDeleteCommand;
+import com.googlecode.jdeltasync.message.SyncResponse;
+
+/**
+ * Tests {@link SyncResponseParser}.
+ */
+public class SyncResponseParserTest {
+
+    @Test
+    public void testParse() throws Exception {
+        SyncResponseParser parser = SyncResponseParser.parse(getClass().getResourceAsStream("sync-response.xml"));
+        assertEquals(1, parser.getStatus());
+        assertNull(parser.getFaultString());
+        List<SyncResponse.Collection> collections = parser.getSyncResponse().getCollections();
+        assertEquals(2, collections.size());
+
+        SyncResponse.Collection email = collections.get(0);
+        assertEquals(Clazz.Email, email.getClazz());
+        assertEquals("c2a3ab2b-ea50-4d2e-9ea7-39d1c2ad1ac2", email.getSyncKey());
+        assertEquals("00000000-0000-0000-0000-000000000001", email.getCollectionId());
+        assertEquals(1, email.getStatus());
+        assertTrue(email.isMoreAvailable());
+        // Commands are returned in document order
+        List<Command> commands = email.getCommands();
+        assertEquals(4, commands.size());
+        MessageAddCommand add = (MessageAddCommand) commands.get(0);
+        assertEquals("00000000-0000-0000-0000-000000000001", add.getId());
+        assertEquals("00000000-0000-0000-0000-000000000001", add.getFolderId());
+        assertEquals(1298982896789L, add.getDateReceived().getTime());
+        assertEquals("Hello & welcome", add.getSubject());
+        assertEquals("\"Alice\" <alice@example.com>", add.getFrom());
+        assertTrue(add.isRead());
+        assertEquals(4711, add.getSize());
+        assertFalse(add.hasAttachments());
+        assertFalse(add.hasFlag());
+        assertEquals("00000000-0000-0000-0000-000000000002", ((MessageDeleteCommand) commands.get(1)).getId());
+        MessageChangeCommand change = (MessageChangeCommand) commands.get(2);
+        assertEquals("00000000-0000-0000-0000-000000000003", change.getId());
+        assertEquals("00000000-0000-0000-0000-000000000004", change.getFolderId());
+        assertFalse(change.isRead());
+        assertTrue(change.hasAttachments());
+        assertTrue(change.hasFlag());
+        assertEquals("", ((MessageAddCommand) commands.get(3)).getSubject());
+        assertEquals(1, email.getResponses().size());
+        SyncResponse.Collection.EmailDeleteResponse response =
+            (SyncResponse.Collection.EmailDeleteResponse) email.getResponses().get(0);
+        assertEquals("00000000-0000-0000-0000-000000000006", response.getId());
+        assertEquals(1, response.getStatus());
+
+        SyncResponse.Collection folder = collections.get(1);
+        assertEquals(Clazz.Folder, folder.getClazz());
+        assertNull(folder.getCollectionId());
+        assertFalse(folder.isMoreAvailable());
+        commands = folder.getCommands();
+        assertEquals(3, commands.size());
+        assertEquals("ACTIVE", ((FolderAddCommand) commands.get(0)).getDisplayName());
+        assertEquals("0", ((FolderAddCommand) commands.get(0)).getParentID());
+        assertEquals("Archive", ((FolderChangeCommand) commands.get(1)).getDisplayName());
+        assertEquals("00000000-0000-0000-0000-000000000007", ((FolderDeleteCommand) commands.get(2)).getId());
+    }
+
+    @Test
+    public void testVisitor() throws Exception {
+        final List<String> events = new ArrayList<String>();
+        ISyncResponseVisitor visitor = new ISyncResponseVisitor() {
+            public void command(Clazz clazz, Command command) {
+                events.add(clazz + " " + command.getClass().getSimpleName());
+            }
+            public void endCollection(SyncResponse.Collection collection) {
+                assertTrue(collection.getCommands().isEmpty());
+                events.add("end " + collection.getClazz() + " " + collection.getResponses().size());
+            }
+        };
+        SyncResponseParser.parse(getClass().getResourceAsStream("sync-response.xml"), visitor);
+        assertEquals(Arrays.asList("Email MessageAddCommand", "Email MessageDeleteCommand", 
+                "Email MessageChangeCommand", "Email MessageAddCommand", "end Email 1",
+                "Folder FolderAddCommand", "Folder FolderChangeCommand", "Folder FolderDeleteCommand", 
+                "end Folder 0"), events);
+
+        // <Class> after the commands
+        events.clear();
+        String xml = "<Sync xmlns=\"AirSync:\"><Status>1</Status><Collections><Collection>"
+            + "<Commands><Delete><ServerId>1</ServerId></Delete></Commands>"
+            + "<SyncKey>1</SyncKey><Status>1</Status><Class>Folder</Class></Collection></Collections></Sync>";
+        SyncResponseParser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), visitor);
+        assertEquals(Arrays.asList("Folder FolderDeleteCommand", "end Folder 0"), events);
+
+        // <Class> between the commands. Document order is kept.
+        events.clear();
+        xml = "<Sync xmlns=\"AirSync:\"><Status>1</Status><Collections><Collection>"
+            + "<Commands><Delete><ServerId>1</ServerId></Delete></Commands><Class>Folder</Class>"
+            + "<Commands><Add><ServerId>2</ServerId></Add></Commands>"
+            + "<SyncKey>1</SyncKey><Status>1</Status></Collection></Collections></Sync>";
+        SyncResponseParser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), visitor);
+        assertEquals(Arrays.asList("Folder FolderDeleteCommand", "Folder FolderAddCommand", "end Folder 0"), events);
+    }
+
+    @Test
+    public void testVisitorStops() throws Exception {
+        final DeltaSyncException stop = new DeltaSyncException("stop");
+        final int[] count = new int[1];
+        try {
+            SyncResponseParser.parse(getClass().getResourceAsStream("sync-response.xml"), new ISyncResponseVisitor() {
+                public void command(Clazz clazz, Command command) throws DeltaSyncException {
+                    if (++count[0] == 2) {
+                        throw stop;
+                    }
+                }
+                public void endCollection(SyncResponse.Collection collection) {
+                    fail();
+                }
+            });
+            fail("DeltaSyncException expected");
+        } catch (DeltaSyncException e) {
+            assertSame(stop, e);
+        }
+        assertEquals(2, count[0]);
+    }
+
+    @Test
+    public void testParseFault() throws Exception {
+        String xml = "<Sync xmlns=\"AirSync:\"><Status>4104</Status>"
+            + "<Fault><Faultcode>4104</Faultcode><Faultstring> Invalid sync key </Faultstring></Fault></Sync>";
+        SyncResponseParser parser = SyncResponseParser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        assertEquals(4104, parser.getStatus());
+        assertEquals("Invalid sync key", parser.getFaultString());
+        assertTrue(parser.getSyncResponse().getCollections().isEmpty());
+    }
+
+    @Test(expected = XmlException.class)
+    public void testParseMalformed() throws Exception {
+        SyncResponseParser.parse(new ByteArrayInputStream("<Sync xmlns=\"AirSync:\"><Status>".getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import com.googlecode.jdeltasync.message.Clazz;
+import com.googlecode.jdeltasync.message.Command;
+import com.googlecode.jdeltasync.message.MessageDeleteCommand;
+import com.googlecode.jdeltasync.message.SyncRequest;
+
+/**
+ * Tests {@link XmlRequestEntity} and its subclasses.
+ */
+public class XmlRequestEntityTest {
+
+    private static String write(XmlRequestEntity entity) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        entity.writeTo(baos);
+        return new String(baos.toByteArray(), "UTF-8");
+    }
+
+    @Test
+    public void testSyncRequest() throws Exception {
+        List<Command> commands = new ArrayList<Command>();
+        commands.add(new MessageDeleteCommand("1"));
+        commands.add(new MessageDeleteCommand("<2>"));
+        SyncRequest syncRequest = new SyncRequest(
+                new SyncRequest.Collection("0", Clazz.Folder, true),
+                new SyncRequest.Collection("käy", Clazz.Email, "inbox", true, 2000),
+                new SyncRequest.Collection("key", Clazz.Email, "inbox", commands));
+        SyncRequestEntity entity = new SyncRequestEntity(syncRequest);
+        String expected = "<Sync xmlns=\"AirSync:\"><Collections>"
+            + "<Collection><Class>Folder</Class><SyncKey>0</SyncKey><GetChanges/></Collection>"
+            + "<Collection><Class>Email</Class><CollectionId>inbox</CollectionId><SyncKey>käy</SyncKey>"
+            + "<GetChanges/><WindowSize>2000</WindowSize></Collection>"
+            + "<Collection><Class>Email</Class><CollectionId>inbox</CollectionId><SyncKey>key</SyncKey>"
+            + "<Commands><Delete><ServerId>1</ServerId></Delete><Delete><ServerId>&lt;2&gt;</ServerId></Delete>"
+            + "</Commands></Collection></Collections></Sync>";
+
+        // The entity is repeatable
+        assertTrue(entity.isRepeatable());
+        assertEquals(expected, write(entity));
+        assertEquals(expected, write(entity));
+        assertEquals(expected.getBytes("UTF-8").length, entity.getContentLength());
+        assertEquals(expected, EntityUtils.toString(entity, "UTF-8"));
+        assertEquals(expected, entity.toString());
+        assertEquals("text/xml", entity.getContentType().getValue());
+    }
+
+    @Test
+    public void testItemOperationsRequest() throws Exception {
+        ItemOperationsRequestEntity entity = new ItemOperationsRequestEntity("abc");
+        String expected = "<ItemOperations xmlns=\"ItemOperations:\" xmlns:A=\"HMMAIL:\">"
+            + "<Fetch><Class>Email</Class><A:ServerId>abc</A:ServerId>"
+            + "<A:Compression>hm-compression</A:Compression>"
+            + "<A:ResponseContentType>mtom</A:ResponseContentType></Fetch></ItemOperations>";
+        assertEquals(expected, write(entity));
+        assertEquals(expected.length(), entity.getContentLength());
+    }
+
+    @Test
+    public void testMultiFetchItemOperationsRequest() throws Exception {
+        ItemOperationsRequestEntity entity = new ItemOperationsRequestEntity(Arrays.asList("a", "b&c"));
+        String expected = "<ItemOperations xmlns=\"ItemOperations:\" xmlns:A=\"HMMAIL:\">"
+            + "<Fetch><Class>Email</Class><A:ServerId>a</A:ServerId>"
+            + "<A:Compression>hm-compression</A:Compression>"
+            + "<A:ResponseContentType>mtom</A:ResponseContentType></Fetch>"
+            + "<Fetch><Class>Email</Class><A:ServerId>b&amp;c</A:ServerId>"
+            + "<A:Compression>hm-compression</A:Compression>"
+            + "<A:ResponseContentType>mtom</A:ResponseContentType></Fetch></ItemOperations>";
+        assertEquals(expected, write(entity));
+        assertEquals(expected.length(), entity.getContentLength());
+    }
+}
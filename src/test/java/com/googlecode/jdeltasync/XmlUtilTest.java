@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Tests {@link XmlUtil}.
+ */
+public class XmlUtilTest {
+
+    private static Document parse(String xml) throws Exception {
+        return XmlUtil.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testPaths() throws Exception {
+        Document doc = parse("<Sync xmlns=\"AirSync:\" xmlns:hmmail=\"HMMAIL:\"><Status>1</Status>"
+                + "<Collection><Id>1</Id><Commands><Add><Id>2</Id></Add><Delete><Id>3</Id></Delete>"
+                + "<Add><Id>4</Id><x><Id>5</Id></x></Add></Commands></Collection>"
+                + "<Collection><hmmail:Id>6</hmmail:Id><Id> 7 </Id></Collection></Sync>");
+
+        assertEquals("1", XmlUtil.getTextContent(doc, "/airsync:Sync/airsync:Status"));
+        assertEquals("1", XmlUtil.getTextContent(doc.getDocumentElement(), "*:Status"));
+        assertEquals("1", XmlUtil.getTextContent(doc, "airsync:Sync/airsync:Collection/airsync:Id"));
+        assertEquals(2, XmlUtil.getElements(doc, "airsync:Sync/airsync:Collection/airsync:Id").size());
+        assertNull(XmlUtil.getElement(doc, "airsync:Sync/airsync:Missing"));
+        assertFalse(XmlUtil.hasElement(doc, "airsync:Sync/Status"));
+
+        List<Element> ids = XmlUtil.getElements(doc, "//airsync:Id");
+        assertEquals(6, ids.size());
+        String[] expected = {"1", "2", "3", "4", "5", " 7 "};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], ids.get(i).getTextContent());
+        }
+        assertEquals(7, XmlUtil.getElements(doc, "//*:Id").size());
+        assertEquals(2, XmlUtil.getElements(doc, "//airsync:Commands/airsync:Add").size());
+        assertEquals("5", XmlUtil.getTextContent(doc, "//airsync:Add//airsync:x/airsync:Id"));
+        assertEquals("6", XmlUtil.getTextContent(doc, "//hmmail:Id"));
+        assertEquals("2", XmlUtil.getTextContent(doc, "//airsync:Collection/airsync:Commands//airsync:Id"));
+
+        XmlUtil.setTextContent(doc, "//airsync:Delete/airsync:Id", "8");
+        assertEquals("8", XmlUtil.getTextContent(doc, XmlUtil.compile("//airsync:Commands/airsync:Delete/airsync:Id")));
+    }
+
+    @Test
+    public void testCompile() throws Exception {
+        assertSame(XmlUtil.compile("//airsync:Id"), XmlUtil.compile("//airsync:Id"));
+        assertEquals("//airsync:Id", XmlUtil.compile("//airsync:Id").toString());
+        try {
+            XmlUtil.compile("foo:Bar");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Unbound prefix foo", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testParserReuse() throws Exception {
+        // Parsers and transformers are reused by the same thread
+        for (int i = 0; i < 3; i++) {
+            Document doc = parse("<a xmlns=\"AirSync:\"><b>" + i + "</b></a>");
+            assertEquals(String.valueOf(i), XmlUtil.getTextContent(doc, "airsync:a/airsync:b"));
+            assertFalse(XmlUtil.toString(doc, false).equals(XmlUtil.toString(doc, true)));
+            assertTrue(XmlUtil.toString(doc).endsWith("<a xmlns=\"AirSync:\"><b>" + i + "</b></a>"));
+        }
+        try {
+            parse("<a>");
+            fail("XmlException expected");
+        } catch (XmlException e) {
+        }
+        assertNotNull(parse("<a/>"));
+    }
+
+    @Test
+    public void testNestedSaxParse() throws Exception {
+        final List<String> names = new ArrayList<String>();
+        XmlUtil.parse(new ByteArrayInputStream("<a><b/></a>".getBytes("UTF-8")), new DefaultHandler() {
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) 
+                    throws SAXException {
+                names.add(localName);
+                if (localName.equals("b")) {
+                    try {
+                        // Parse another document while the outer parser is in use
+                        XmlUtil.parse(new ByteArrayInputStream("<c/>".getBytes("UTF-8")), this);
+                        names.add(XmlUtil.parse(new ByteArrayInputStream("<d/>".getBytes("UTF-8")))
+                                .getDocumentElement().getLocalName());
+                    } catch (DeltaSyncException e) {
+                        throw new SAXException(e);
+                    } catch (IOException e) {
+                        throw new SAXException(e);
+                    }
+                }
+            }
+        });
+        assertEquals("[a, b, c, d]", names.toString());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link HU01Compressor} by decompressing its output.
+ */
+public class HU01CompressorTest {
+
+    @Test
+    public void testPlainFixtures() throws Exception {
+        for (int i = 1; i <= 7; i++) {
+            byte[] plain = HU01DecompressorTest.toByteArray(getClass().getResourceAsStream("test" + i + ".plain"));
+            HU01Compressor compressor = new HU01Compressor();
+            byte[] hu01 = compressor.compress(plain);
+            assertTrue("test" + i, hu01.length < plain.length);
+            roundTrip("test" + i, plain, hu01);
+
+            compressor.setMaxChain(0);
+            roundTrip("test" + i + " (literals only)", plain, compressor.compress(plain));
+            compressor.setBlockSize(1000);
+            roundTrip("test" + i + " (small blocks)", plain, compressor.compress(plain));
+        }
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        byte[] hu01 = new HU01Compressor().compress(new byte[0]);
+        assertEquals(0x28, hu01.length);
+        roundTrip("empty", new byte[0], hu01);
+    }
+
+    @Test
+    public void testSingleSymbol() throws Exception {
+        HU01Compressor compressor = new HU01Compressor();
+        for (int len : new int[] {1, 2, 3, 4, 100, 2048, 70000}) {
+            byte[] data = new byte[len];
+            Arrays.fill(data, (byte) 'x');
+            roundTrip("run of " + len, data, compressor.compress(data));
+        }
+    }
+
+    @Test
+    public void testLongMatches() throws Exception {
+        // Match lengths around the one byte and two byte length escapes
+        Random random = new Random(42);
+        for (int len : new int[] {17, 18, 19, 272, 273, 274, 275, 1000, 65000}) {
+            byte[] data = new byte[200 + len + 200];
+            random.nextBytes(data);
+            System.arraycopy(data, 0, data, 100, len);
+            roundTrip("match of " + len, data, new HU01Compressor().compress(data));
+        }
+    }
+
+    @Test
+    public void testRandom() throws Exception {
+        Random random = new Random(4711);
+        HU01Compressor compressor = new HU01Compressor();
+        for (int len : new int[] {1, 100, 2047, 2048, 65536, 65537, 200000}) {
+            byte[] data = new byte[len];
+            random.nextBytes(data);
+            roundTrip("random " + len, data, compressor.compress(data));
+        }
+        // Skewed distribution giving codes of maximum length
+        byte[] data = new byte[300000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.numberOfTrailingZeros(random.nextInt() | 0x10000);
+        }
+        roundTrip("skewed", data, compressor.compress(data));
+    }
+
+    private void roundTrip(String message, byte[] expected, byte[] hu01) throws Exception {
+        ByteBuffer b = ByteBuffer.wrap(hu01).order(ByteOrder.LITTLE_ENDIAN);
+        int decompressed = 0;
+        for (int pos = b.getInt(4); pos < hu01.length; pos += 20 + b.getInt(pos + 16)) {
+            int size = b.getInt(pos + 8);
+            int len = b.getInt(pos + 16);
+            int off = pos + 20;
+            if (len != size) {
+                short[] table = new short[HU01TableCache.TABLE_ENTRIES];
+                assertTrue(message, HU01.build_decompression_table(ByteBuffer.wrap(hu01, off, 256).slice(), table));
+
+                // The ByteBuffer reference decoder reads until it runs out of input
+                ByteBuffer source = ByteBuffer.allocateDirect(len - 256);
+                source.put(hu01, off + 256, len - 256).flip();
+                ByteBuffer destination = ByteBuffer.allocateDirect(size);
+                HU01.decompress_hu01_block(source, table, destination);
+                byte[] actual = new byte[size];
+                destination.get(actual);
+                byte[] block = new byte[size];
+                System.arraycopy(expected, decompressed, block, 0, size);
+                assertArrayEquals(message, block, actual);
+            } else {
+                assertTrue(message, size < 2048);
+            }
+            decompressed += size;
+        }
+        assertEquals(message, expected.length, decompressed);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (HU01Decompressor.Decoder decoder : HU01Decompressor.Decoder.values()) {
+                HU01Decompressor decompressor = new HU01Decompressor();
+                decompressor.setDecoder(decoder);
+                assertArrayEquals(message + " " + decoder, expected, decompress(hu01, decompressor));
+                decompressor = new HU01Decompressor();
+                decompressor.setDecoder(decoder);
+                decompressor.setExecutor(executor, 2);
+                assertArrayEquals(message + " " + decoder + " (parallel)", expected, decompress(hu01, decompressor));
+            }
+            HU01Decompressor decompressor = new HU01Decompressor();
+            decompressor.setMemoryLimit(65536 + 276 + 4096);
+            assertArrayEquals(message + " (memory limit)", expected, decompress(hu01, decompressor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private byte[] decompress(byte[] hu01, HU01Decompressor decompressor) throws Exception {
+        return HU01DecompressorTest.toByteArray(
+                new HU01DecompressorInputStream(new ByteArrayInputStream(hu01), decompressor));
+    }
+}
@@ -18,11 +18,32 @@ package com.googlecode.jdeltasync.hu01;
 import static org.junit.Assert.*;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Ignore;
 import org.junit.Test;
@@ -71,6 +92,732 @@ public class HU01DecompressorTest {
         decompress("test7.hu01", "test7.plain", "UTF-8");
     }
     
+    @Test
+    public void testPooledDecompressorIsReused() throws Exception {
+        HU01DecompressorPool pool = new HU01DecompressorPool(1);
+        HU01Decompressor decompressor = pool.borrow();
+        // Release in the middle of a stream
+        decompressor.addInput(toByteArray(getClass().getResourceAsStream("test5.hu01")));
+        assertTrue(decompressor.decompress(new byte[100]) > 0);
+        pool.release(decompressor);
+        assertEquals(1, pool.getIdleCount());
+        
+        assertSame(decompressor, pool.borrow());
+        assertEquals(0, pool.getIdleCount());
+        byte[] actual = decompress(getClass().getResourceAsStream("test6.hu01"), decompressor);
+        assertEquals(new String(toByteArray(getClass().getResourceAsStream("test6.plain")), "UTF-8"), 
+                new String(actual, "UTF-8"));
+        pool.release(decompressor);
+        pool.release(new HU01Decompressor());
+        assertEquals(1, pool.getIdleCount());
+    }
+    
+    @Test
+    public void testPoolRestoresDefaults() throws Exception {
+        final HU01TableCache cache = new HU01TableCache();
+        HU01DecompressorPool pool = new HU01DecompressorPool(1) {
+            @Override
+            protected void configure(HU01Decompressor decompressor) {
+                decompressor.setTableCache(cache);
+            }
+        };
+        HU01Decompressor decompressor = pool.borrow();
+        assertSame(cache, decompressor.getTableCache());
+        decompressor.setDecoder(HU01Decompressor.Decoder.MULTI_SYMBOL);
+        decompressor.setCrcCheck(HU01Decompressor.CrcCheck.OFF);
+        decompressor.setStats(new HU01Stats());
+        decompressor.setTableCache(new HU01TableCache());
+        decompressor.setExecutor(Executors.newSingleThreadExecutor(), 2);
+        decompressor.setMemoryLimit(65536);
+        decompressor.setMaxBodyLines(1);
+        ((ExecutorService) decompressor.getExecutor()).shutdown();
+        pool.release(decompressor);
+        
+        assertSame(decompressor, pool.borrow());
+        assertEquals(HU01Decompressor.Decoder.REFERENCE, decompressor.getDecoder());
+        assertEquals(HU01Decompressor.CrcCheck.STRICT, decompressor.getCrcCheck());
+        assertNull(decompressor.getStats());
+        assertSame(cache, decompressor.getTableCache());
+        assertNull(decompressor.getExecutor());
+        assertEquals(0, decompressor.getMaxPendingBlocks());
+        assertEquals(0, decompressor.getMemoryLimit());
+        assertEquals(-1, decompressor.getMaxBodyLines());
+        byte[] actual = decompress(getClass().getResourceAsStream("test6.hu01"), decompressor);
+        assertEquals(new String(toByteArray(getClass().getResourceAsStream("test6.plain")), "UTF-8"), 
+                new String(actual, "UTF-8"));
+    }
+    
+    @Test
+    public void testPoolTrimsBuffers() throws Exception {
+        byte[] hu01 = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        byte[] plain = toByteArray(getClass().getResourceAsStream("test6.plain"));
+        HU01DecompressorPool pool = new HU01DecompressorPool(1, 8192);
+        HU01Decompressor decompressor = pool.borrow();
+        // Adding all input at once grows the input buffer beyond the limit
+        decompressor.addInput(hu01, 0, hu01.length);
+        byte[] actual = new byte[plain.length];
+        int off = 0;
+        int n;
+        while ((n = decompressor.decompress(actual, off, actual.length - off)) > 0) {
+            off += n;
+        }
+        assertTrue(decompressor.finished());
+        assertTrue(decompressor.largestBuffer() > 8192);
+        pool.release(decompressor);
+        
+        assertSame(decompressor, pool.borrow());
+        assertTrue(decompressor.largestBuffer() <= 8192);
+        assertArrayEquals(plain, decompress(new ByteArrayInputStream(hu01), decompressor));
+        
+        // Buffers within the limit are kept
+        int largest = decompressor.largestBuffer();
+        pool = new HU01DecompressorPool(1);
+        pool.release(decompressor);
+        assertEquals(largest, pool.borrow().largestBuffer());
+    }
+    
+    @Test
+    public void testTableCache() throws Exception {
+        byte[] hu01 = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        String expected = new String(toByteArray(getClass().getResourceAsStream("test6.plain")), "UTF-8");
+        int blocks = HU01Test.compressedBlocks(hu01).size();
+        HU01TableCache cache = new HU01TableCache();
+        for (HU01Decompressor.Decoder decoder : HU01Decompressor.Decoder.values()) {
+            HU01Decompressor decompressor = new HU01Decompressor();
+            decompressor.setDecoder(decoder);
+            decompressor.setTableCache(cache);
+            String actual = new String(decompress(new ByteArrayInputStream(hu01), decompressor), "UTF-8");
+            assertEquals(decoder.toString(), expected, actual);
+        }
+        assertEquals(blocks, cache.getMisses());
+        assertEquals(blocks * (HU01Decompressor.Decoder.values().length - 1), cache.getHits());
+        assertEquals(blocks, cache.size());
+        
+        cache = new HU01TableCache(1);
+        HU01Decompressor decompressor = new HU01Decompressor();
+        decompressor.setTableCache(cache);
+        String actual = new String(decompress(new ByteArrayInputStream(hu01), decompressor), "UTF-8");
+        assertEquals(expected, actual);
+        assertEquals(1, cache.size());
+    }
+    
+    @Test
+    public void testChannel() throws Exception {
+        for (int i = 1; i <= 7; i++) {
+            byte[] expected = toByteArray(getClass().getResourceAsStream("test" + i + ".plain"));
+            ReadableByteChannel source = Channels.newChannel(getClass().getResourceAsStream("test" + i + ".hu01"));
+            HU01DecompressorChannel channel = new HU01DecompressorChannel(source, new HU01Decompressor(), 100);
+            ByteBuffer actual = ByteBuffer.allocateDirect(expected.length);
+            ByteBuffer dst = ByteBuffer.allocateDirect(777);
+            int n;
+            while ((n = channel.read(dst)) != -1) {
+                assertEquals(dst.position(), n);
+                dst.flip();
+                actual.put(dst);
+                dst.clear();
+            }
+            assertFalse(actual.hasRemaining());
+            actual.flip();
+            byte[] bytes = new byte[expected.length];
+            actual.get(bytes);
+            assertArrayEquals("test" + i, expected, bytes);
+            channel.close();
+            assertFalse(channel.isOpen());
+        }
+    }
+    
+    @Test(expected = EOFException.class)
+    public void testChannelTruncated() throws Exception {
+        byte[] hu01 = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        ReadableByteChannel source = Channels.newChannel(new ByteArrayInputStream(hu01, 0, hu01.length - 10));
+        HU01DecompressorChannel channel = new HU01DecompressorChannel(source);
+        ByteBuffer dst = ByteBuffer.allocate(4096);
+        while (channel.read(dst) != -1) {
+            dst.clear();
+        }
+    }
+    
+    @Test
+    public void testMemoryLimitExceeded() throws Exception {
+        HU01Decompressor decompressor = new HU01Decompressor();
+        decompressor.setMemoryLimit(16384);
+        try {
+            decompress(getClass().getResourceAsStream("test6.hu01"), decompressor);
+            fail("HU01Exception expected");
+        } catch (HU01Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("exceeds memory limit"));
+        }
+    }
+    
+    @Test
+    public void testMemoryLimitRejectsHugeBlockHeader() throws Exception {
+        ByteBuffer b = ByteBuffer.allocate(0x28 + 20).order(ByteOrder.LITTLE_ENDIAN);
+        b.put("HU01".getBytes("US-ASCII")).putInt(0x28);
+        b.putInt(32, 0x7fffffff);
+        b.position(0x28);
+        b.put("SCBH".getBytes("US-ASCII")).putInt(20).putInt(0x7fffffff).putInt(0).putInt(0x7fffffff);
+        HU01Decompressor decompressor = new HU01Decompressor();
+        decompressor.setMemoryLimit(1 << 20);
+        decompressor.addInput(b.array());
+        try {
+            decompressor.decompress(new byte[100]);
+            fail("HU01Exception expected");
+        } catch (HU01Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("exceeds memory limit"));
+        }
+    }
+    
+    @Test
+    public void testCorruptBlockHeader() throws Exception {
+        byte[] original = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        int header = HU01Test.compressedBlocks(original).get(0)[0] - 20;
+        HU01TableCache cache = new HU01TableCache();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Bad header size, compressed size and decompressed size
+            int[][] corruptions = {{4, -100}, {4, 0x80000000}, {16, -1}, {16, 10}, {8, 0x7ffffff0}};
+            for (int[] corruption : corruptions) {
+                byte[] hu01 = original.clone();
+                ByteBuffer.wrap(hu01).order(ByteOrder.LITTLE_ENDIAN).putInt(header + corruption[0], corruption[1]);
+                for (int mode = 0; mode < 5; mode++) {
+                    HU01Decompressor decompressor = new HU01Decompressor();
+                    switch (mode) {
+                    case 1: decompressor.setTableCache(cache); break;
+                    case 2: decompressor.setExecutor(executor, 2); break;
+                    case 3: decompressor.setMemoryLimit(1 << 20); break;
+                    }
+                    try {
+                        if (mode == 4) {
+                            decompressor.decompress(ByteBuffer.wrap(hu01), ByteBuffer.allocate(1 << 20));
+                        } else {
+                            decompress(hu01, decompressor, new ByteArrayOutputStream());
+                        }
+                        fail("HU01Exception expected");
+                    } catch (HU01Exception e) {
+                        assertTrue(e.getMessage(), e.getMessage().startsWith("Bad block header"));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testCrcCheck() throws Exception {
+        byte[] hu01 = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        byte[] plain = toByteArray(getClass().getResourceAsStream("test6.plain"));
+        List<int[]> blocks = HU01Test.compressedBlocks(hu01);
+        int[] last = blocks.get(blocks.size() - 1);
+        // Corrupt the CRC in the header of the last block
+        hu01[last[0] - 20 + 12] ^= 1;
+        
+        for (int memoryLimit : new int[] {0, 65536 + 276 + 4096}) {
+            HU01Decompressor decompressor = new HU01Decompressor();
+            decompressor.setMemoryLimit(memoryLimit);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try {
+                decompress(hu01, decompressor, baos);
+                fail("HU01Exception expected");
+            } catch (HU01Exception e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("CRC check failed"));
+            }
+            assertEquals(plain.length - last[2], baos.size());
+            
+            decompressor.reset();
+            decompressor.setCrcCheck(HU01Decompressor.CrcCheck.PIPELINED);
+            baos.reset();
+            try {
+                decompress(hu01, decompressor, baos);
+                fail("HU01Exception expected");
+            } catch (HU01Exception e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("CRC check failed"));
+            }
+            assertArrayEquals(plain, baos.toByteArray());
+            assertFalse(decompressor.finished());
+            
+            decompressor.reset();
+            decompressor.setCrcCheck(HU01Decompressor.CrcCheck.OFF);
+            baos.reset();
+            decompress(hu01, decompressor, baos);
+            assertArrayEquals(plain, baos.toByteArray());
+            assertTrue(decompressor.finished());
+        }
+    }
+    
+    @Test
+    public void testStats() throws Exception {
+        // Random data at the end gives stored blocks
+        byte[] plain = toByteArray(getClass().getResourceAsStream("test6.plain"));
+        byte[] data = new byte[plain.length + 3000];
+        System.arraycopy(plain, 0, data, 0, plain.length);
+        byte[] random = new byte[3000];
+        new Random(17).nextBytes(random);
+        System.arraycopy(random, 0, data, plain.length, random.length);
+        HU01Compressor compressor = new HU01Compressor();
+        compressor.setBlockSize(1000);
+        byte[] hu01 = compressor.compress(data);
+        
+        ByteBuffer b = ByteBuffer.wrap(hu01).order(ByteOrder.LITTLE_ENDIAN);
+        int blocks = 0;
+        int storedBlocks = 0;
+        for (int pos = b.getInt(4); pos < hu01.length; pos += 20 + b.getInt(pos + 16)) {
+            blocks++;
+            if (b.getInt(pos + 8) == b.getInt(pos + 16)) {
+                storedBlocks++;
+            }
+        }
+        assertTrue(storedBlocks > 0 && storedBlocks < blocks);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int mode = 0; mode < 4; mode++) {
+                HU01Stats stats = new HU01Stats();
+                HU01Decompressor decompressor = new HU01Decompressor();
+                decompressor.setStats(stats);
+                if (mode == 1) {
+                    decompressor.setMemoryLimit(65536 + 276 + 4096);
+                } else if (mode == 2) {
+                    decompressor.setExecutor(executor, 2);
+                } else if (mode == 3) {
+                    decompressor.setCrcCheck(HU01Decompressor.CrcCheck.PIPELINED);
+                }
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                decompress(hu01, decompressor, baos);
+                assertArrayEquals("mode " + mode, data, baos.toByteArray());
+                assertEquals("mode " + mode, hu01.length, stats.getCompressedBytes());
+                assertEquals("mode " + mode, data.length, stats.getDecompressedBytes());
+                assertEquals("mode " + mode, blocks, stats.getBlocks());
+                assertEquals("mode " + mode, storedBlocks, stats.getStoredBlocks());
+                assertTrue("mode " + mode, stats.getDecodeNanos() > 0);
+                assertTrue("mode " + mode, stats.getCrcNanos() > 0);
+                
+                stats.reset();
+                decompressor.reset();
+                decompressor.setStats(null);
+                decompress(hu01, decompressor, new ByteArrayOutputStream());
+                assertEquals(0, stats.getBlocks());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    private void decompress(byte[] hu01, HU01Decompressor decompressor, ByteArrayOutputStream out) throws Exception {
+        byte[] buf = new byte[1000];
+        for (int off = 0; off < hu01.length; off += buf.length) {
+            decompressor.addInput(hu01, off, Math.min(buf.length, hu01.length - off));
+            int n;
+            while ((n = decompressor.decompress(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+        }
+    }
+    
+    @Test
+    public void testPipelinedOutputStream() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            for (int i = 1; i <= 7; i++) {
+                byte[] hu01 = toByteArray(getClass().getResourceAsStream("test" + i + ".hu01"));
+                byte[] plain = toByteArray(getClass().getResourceAsStream("test" + i + ".plain"));
+                for (int buffers : new int[] {1, 3, 8}) {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    HU01PipelinedOutputStream out = new HU01PipelinedOutputStream(baos, 
+                            new HU01Decompressor(), executor, buffers, 1000);
+                    for (int off = 0; off < hu01.length; off += 777) {
+                        out.write(hu01, off, Math.min(777, hu01.length - off));
+                    }
+                    out.finish();
+                    assertTrue(out.finished());
+                    assertArrayEquals("test" + i + " (" + buffers + " buffers)", plain, baos.toByteArray());
+                }
+            }
+            
+            // Errors in the decoding task are reported to the writer
+            byte[] hu01 = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+            hu01[hu01.length - 1000] ^= 0x55;
+            HU01PipelinedOutputStream out = new HU01PipelinedOutputStream(new ByteArrayOutputStream(), 
+                    new HU01Decompressor(), executor, 2, 512);
+            try {
+                out.write(hu01);
+                out.finish();
+                fail("IOException expected");
+            } catch (IOException e) {
+                assertTrue(e.getCause() instanceof HU01Exception);
+            }
+            out.abort();
+            
+            // The decoder stage stops once the decompressor has finished
+            HU01Decompressor decompressor = new HU01Decompressor();
+            decompressor.setMaxBodyLines(0);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            out = new HU01PipelinedOutputStream(baos, decompressor, executor, 2, 512);
+            hu01 = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+            for (int off = 0; off < hu01.length && !out.finished(); off += 512) {
+                out.write(hu01, off, Math.min(512, hu01.length - off));
+            }
+            out.finish();
+            assertTrue(decompressor.finished());
+            String plain = new String(toByteArray(getClass().getResourceAsStream("test6.plain")), "UTF-8");
+            assertEquals(plain.substring(0, plain.indexOf("\r\n\r\n") + 4), new String(baos.toByteArray(), "UTF-8"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testPipelinedOutputStreamAbort() throws Exception {
+        byte[] plain = toByteArray(getClass().getResourceAsStream("test6.plain"));
+        HU01Compressor compressor = new HU01Compressor();
+        compressor.setBlockSize(64);
+        byte[] hu01 = compressor.compress(plain);
+        
+        // The first decompressed write blocks until abort() has been called
+        final HU01PipelinedOutputStream[] out = new HU01PipelinedOutputStream[1];
+        final List<Integer> writes = new ArrayList<Integer>();
+        final CountDownLatch writing = new CountDownLatch(1);
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (writes) {
+                    writes.add(len);
+                }
+                writing.countDown();
+                while (!out[0].finished()) {
+                    Thread.yield();
+                }
+            }
+            
+            @Override
+            public void flush() {
+                synchronized (writes) {
+                    writes.add(-1);
+                }
+            }
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            out[0] = new HU01PipelinedOutputStream(sink, new HU01Decompressor(), executor, 4, 512);
+            out[0].write(hu01, 0, 4 * 512);
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+            out[0].abort();
+            assertTrue(out[0].finished());
+            // Nothing is written once abort() has been called, neither the
+            // rest of the buffer being decompressed nor the queued buffers
+            synchronized (writes) {
+                assertEquals(1, writes.size());
+            }
+            
+            // Neither single bytes nor flushes get through after abort()
+            OutputStream guarded = out[0].new GuardedOutputStream(sink);
+            guarded.write('x');
+            guarded.write(new byte[10], 0, 10);
+            guarded.flush();
+            synchronized (writes) {
+                assertEquals(1, writes.size());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testBatchDecompressor() throws Exception {
+        final byte[][] hu01 = new byte[7][];
+        final byte[][] plain = new byte[7][];
+        for (int i = 0; i < 7; i++) {
+            hu01[i] = toByteArray(getClass().getResourceAsStream("test" + (i + 1) + ".hu01"));
+            plain[i] = toByteArray(getClass().getResourceAsStream("test" + (i + 1) + ".plain"));
+        }
+        final byte[] truncated = new byte[hu01[5].length / 2];
+        System.arraycopy(hu01[5], 0, truncated, 0, truncated.length);
+        
+        final List<ByteArrayOutputStream> sinks = new ArrayList<ByteArrayOutputStream>();
+        List<HU01BatchDecompressor.Task> tasks = new ArrayList<HU01BatchDecompressor.Task>();
+        long expectedBytes = 0;
+        for (int i = 0; i < 70; i++) {
+            final int index = i;
+            final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            sinks.add(sink);
+            expectedBytes += plain[i % 7].length;
+            tasks.add(new HU01BatchDecompressor.Task() {
+                public String getId() {
+                    return "task" + index;
+                }
+                public InputStream openSource() {
+                    return new ByteArrayInputStream(index == 42 ? truncated : hu01[index % 7]);
+                }
+                public OutputStream openSink() {
+                    return sink;
+                }
+            });
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            HU01BatchDecompressor.Result result = new HU01BatchDecompressor(executor, 3).run(tasks.iterator());
+            assertEquals(70, result.getTasks());
+            assertEquals(1, result.getFailures().size());
+            assertTrue(result.getFailures().get("task42") instanceof HU01Exception);
+            assertEquals(expectedBytes - plain[0].length, result.getDecompressedBytes() - sinks.get(42).size());
+            assertTrue(result.getDecompressedBytesPerSecond() > 0);
+            for (int i = 0; i < 70; i++) {
+                if (i != 42) {
+                    assertArrayEquals("task" + i, plain[i % 7], sinks.get(i).toByteArray());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testBatchDecompressorRejected() throws Exception {
+        final byte[] hu01 = toByteArray(getClass().getResourceAsStream("test1.hu01"));
+        final int[] pulled = new int[1];
+        Iterator<HU01BatchDecompressor.Task> tasks = new Iterator<HU01BatchDecompressor.Task>() {
+            public boolean hasNext() {
+                return pulled[0] < 100000;
+            }
+            public HU01BatchDecompressor.Task next() {
+                final int index = pulled[0]++;
+                return new HU01BatchDecompressor.Task() {
+                    public String getId() {
+                        return "task" + index;
+                    }
+                    public InputStream openSource() {
+                        return new ByteArrayInputStream(hu01);
+                    }
+                    public OutputStream openSink() {
+                        return new ByteArrayOutputStream();
+                    }
+                };
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        
+        // Only one worker fits, the second one is rejected
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, 
+                new SynchronousQueue<Runnable>());
+        try {
+            new HU01BatchDecompressor(executor, 3).run(tasks);
+            fail("RejectedExecutionException expected");
+        } catch (RejectedExecutionException e) {
+        }
+        // The worker which was started has stopped and no longer pulls tasks
+        int pulledAfterRejection = pulled[0];
+        assertTrue(pulledAfterRejection < 100000);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(pulledAfterRejection, pulled[0]);
+    }
+    
+    @Test
+    public void testDecompressMappedFile() throws Exception {
+        for (int i = 1; i <= 7; i++) {
+            byte[] hu01 = toByteArray(getClass().getResourceAsStream("test" + i + ".hu01"));
+            byte[] plain = toByteArray(getClass().getResourceAsStream("test" + i + ".plain"));
+            File file = File.createTempFile("hu01", ".hu01");
+            try {
+                FileOutputStream fos = new FileOutputStream(file);
+                fos.write(hu01);
+                fos.close();
+                FileInputStream fis = new FileInputStream(file);
+                try {
+                    FileChannel channel = fis.getChannel();
+                    MappedByteBuffer src = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    assertEquals(plain.length, HU01Decompressor.getDecompressedSize(src));
+                    for (HU01Decompressor.Decoder decoder : HU01Decompressor.Decoder.values()) {
+                        HU01Decompressor decompressor = new HU01Decompressor();
+                        decompressor.setDecoder(decoder);
+                        for (ByteBuffer dst : new ByteBuffer[] {ByteBuffer.allocate(plain.length + 1), 
+                                ByteBuffer.allocateDirect(plain.length)}) {
+                            src.rewind();
+                            assertEquals(plain.length, decompressor.decompress(src, dst));
+                            assertEquals(hu01.length, src.position());
+                            assertEquals(plain.length, dst.position());
+                            byte[] actual = new byte[plain.length];
+                            dst.flip();
+                            dst.get(actual);
+                            assertArrayEquals("test" + i, plain, actual);
+                        }
+                    }
+                    
+                    src.rewind();
+                    src.limit(hu01.length - 1);
+                    try {
+                        new HU01Decompressor().decompress(src, ByteBuffer.allocate(plain.length));
+                        fail("HU01Exception expected");
+                    } catch (HU01Exception e) {
+                        assertEquals("Unexpected end of HU01 stream", e.getMessage());
+                    }
+                } finally {
+                    fis.close();
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+    
+    @Test
+    public void testMaxBodyLines() throws Exception {
+        byte[] hu01 = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        String plain = new String(toByteArray(getClass().getResourceAsStream("test6.plain")), "UTF-8");
+        int headerEnd = plain.indexOf("\r\n\r\n") + 4;
+        int afterTwoLines = plain.indexOf("\n", plain.indexOf("\n", headerEnd) + 1) + 1;
+        
+        HU01Decompressor decompressor = new HU01Decompressor();
+        decompressor.setMaxBodyLines(0);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        HU01DecompressorOutputStream out = new HU01DecompressorOutputStream(baos, decompressor);
+        out.write(hu01);
+        out.close();
+        assertTrue(decompressor.finished());
+        assertEquals(plain.substring(0, headerEnd), new String(baos.toByteArray(), "UTF-8"));
+        
+        decompressor.reset();
+        decompressor.setMaxBodyLines(2);
+        baos = new ByteArrayOutputStream();
+        ByteArrayInputStream source = new ByteArrayInputStream(hu01);
+        HU01DecompressorInputStream in = new HU01DecompressorInputStream(source, decompressor, 64);
+        byte[] buf = new byte[100];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            baos.write(buf, 0, n);
+        }
+        assertEquals(plain.substring(0, afterTwoLines), new String(baos.toByteArray(), "UTF-8"));
+        // Decompression stopped long before all input was read
+        assertTrue(source.available() > hu01.length / 2);
+    }
+    
+    @Test
+    public void testIndex() throws Exception {
+        for (int i = 1; i <= 7; i++) {
+            byte[] hu01 = toByteArray(getClass().getResourceAsStream("test" + i + ".hu01"));
+            byte[] plain = toByteArray(getClass().getResourceAsStream("test" + i + ".plain"));
+            HU01Index index = HU01Index.build(new ByteArrayInputStream(hu01));
+            assertEquals(plain.length, index.getDecompressedSize());
+            
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            index.writeTo(baos);
+            index = HU01Index.readFrom(new ByteArrayInputStream(baos.toByteArray()));
+            assertEquals(plain.length, index.getDecompressedSize());
+            
+            // Ranges starting in the middle of a block and spanning block boundaries
+            for (int start = 0; start < plain.length; start += plain.length / 5 + 1) {
+                int len = Math.min(plain.length - start, 70000);
+                byte[] actual = new byte[len];
+                assertEquals(len, index.read(hu01, start, actual, 0, len));
+                byte[] expected = new byte[len];
+                System.arraycopy(plain, start, expected, 0, len);
+                assertArrayEquals("test" + i + " at " + start, expected, actual);
+            }
+            assertEquals(-1, index.read(hu01, plain.length, new byte[10], 0, 10));
+        }
+    }
+    
+    @Test
+    public void testIndexReadFromFileChannel() throws Exception {
+        byte[] hu01 = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        byte[] plain = toByteArray(getClass().getResourceAsStream("test6.plain"));
+        File file = File.createTempFile("jdeltasync", ".hu01");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(hu01);
+            out.close();
+            FileInputStream in = new FileInputStream(file);
+            try {
+                HU01Index index = HU01Index.build(in);
+                assertTrue(index.getBlockCount() > 1);
+                byte[] actual = new byte[100];
+                int start = plain.length - 50;
+                assertEquals(50, index.read(in.getChannel(), start, actual, 10, 100 - 10));
+                for (int i = 0; i < 50; i++) {
+                    assertEquals(plain[start + i], actual[10 + i]);
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testCorruptIndex() throws Exception {
+        byte[] hu01 = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        HU01Index index = HU01Index.build(new ByteArrayInputStream(hu01));
+        assertTrue(index.getBlockCount() > 1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        index.writeTo(baos);
+        byte[] stored = baos.toByteArray();
+        
+        // Offsets and sizes which don't add up are rejected when the index is read
+        long[][] corruptions = {
+            {8, -1},                            // Negative decompressed size
+            {16, 0},                            // No blocks
+            {20, -1},                           // Negative compressed offset
+            {20 + 20, 0x28},                    // Second block overlapping the first one
+            {20 + 8, 0},                        // First block too short
+            {20 + 12, 1},                       // First block not starting at 0
+            {20 + 20 + 12, Integer.MAX_VALUE},  // Second block past the end
+        };
+        for (long[] corruption : corruptions) {
+            ByteBuffer b = ByteBuffer.wrap(stored.clone());
+            int pos = (int) corruption[0];
+            if (pos == 16 || pos == 20 + 8) {
+                b.putInt(pos, (int) corruption[1]);
+            } else {
+                b.putLong(pos, corruption[1]);
+            }
+            try {
+                HU01Index.readFrom(new ByteArrayInputStream(b.array()));
+                fail("HU01Exception expected for corruption at " + pos);
+            } catch (HU01Exception e) {
+            }
+        }
+        
+        // An index which doesn't match the HU01 stream
+        byte[] other = toByteArray(getClass().getResourceAsStream("test5.hu01"));
+        try {
+            index.read(other, 0, new byte[100], 0, 100);
+            fail("HU01Exception expected");
+        } catch (HU01Exception e) {
+        }
+        byte[] truncated = new byte[hu01.length - 100];
+        System.arraycopy(hu01, 0, truncated, 0, truncated.length);
+        try {
+            index.read(truncated, index.getDecompressedSize() - 1, new byte[1], 0, 1);
+            fail("HU01Exception expected");
+        } catch (HU01Exception e) {
+        }
+        File file = File.createTempFile("jdeltasync", ".hu01");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(truncated);
+            out.close();
+            FileInputStream in = new FileInputStream(file);
+            try {
+                index.read(in.getChannel(), index.getDecompressedSize() - 1, new byte[1], 0, 1);
+                fail("HU01Exception expected");
+            } catch (HU01Exception e) {
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+    
     @Test
     @Ignore
     public void testDecompressLkml2009() throws Exception {
@@ -108,10 +855,51 @@ public class HU01DecompressorTest {
     }
     
     private void decompress(InputStream hu01Input, InputStream plainInput, String encoding) throws Exception {
+        byte[] hu01 = toByteArray(hu01Input);
+        String expected = new String(toByteArray(plainInput), encoding);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (HU01Decompressor.Decoder decoder : HU01Decompressor.Decoder.values()) {
+                HU01Decompressor decompressor = new HU01Decompressor();
+                decompressor.setDecoder(decoder);
+                String actual = new String(decompress(new ByteArrayInputStream(hu01), decompressor), encoding);
+                assertEquals(decoder.toString(), expected, actual);
+                
+                decompressor = new HU01Decompressor();
+                decompressor.setDecoder(decoder);
+                decompressor.setCrcCheck(HU01Decompressor.CrcCheck.PIPELINED);
+                actual = new String(decompress(new ByteArrayInputStream(hu01), decompressor), encoding);
+                assertEquals(decoder + " (pipelined CRC)", expected, actual);
+                
+                decompressor = new HU01Decompressor();
+                decompressor.setDecoder(decoder);
+                decompressor.setExecutor(executor, 2);
+                actual = new String(decompress(new ByteArrayInputStream(hu01), decompressor), encoding);
+                assertEquals(decoder + " (parallel)", expected, actual);
+            }
+            
+            HU01Decompressor decompressor = new HU01Decompressor();
+            decompressor.setMemoryLimit(65536 + 276 + 4096);
+            String actual = new String(decompress(new ByteArrayInputStream(hu01), decompressor), encoding);
+            assertEquals("memory limit", expected, actual);
+            
+            // Feed 3 bytes at a time to suspend the decoder at as many positions as possible
+            decompressor.reset();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            HU01DecompressorOutputStream out = new HU01DecompressorOutputStream(baos, decompressor, 3);
+            out.write(hu01);
+            out.close();
+            assertTrue(decompressor.finished());
+            assertEquals("memory limit (3 byte chunks)", expected, new String(baos.toByteArray(), encoding));
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    private byte[] decompress(InputStream hu01Input, HU01Decompressor decompressor) throws Exception {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         byte[] data = new byte[1024];
         byte[] decoded = new byte[1024];
-        HU01Decompressor decompressor = new HU01Decompressor();
         while (true) {
             int n = hu01Input.read(data);
             if (n == -1) {
@@ -124,9 +912,7 @@ public class HU01DecompressorTest {
             }
         }
         assertTrue(decompressor.finished());
-        String expected = new String(toByteArray(plainInput), encoding);
-        String actual = new String(baos.toByteArray(), encoding);
-        assertEquals(expected, actual);
+        return baos.toByteArray();
     }
     
     static byte[] toByteArray(InputStream input) throws IOException {
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the block decoders in {@link HU01} and {@link HU01MultiSymbolDecoder}
+ * against each other.
+ */
+public class HU01Test {
+
+    @Test
+    public void testBlockDecodersAgree() throws Exception {
+        for (int i = 1; i <= 7; i++) {
+            byte[] hu01 = HU01DecompressorTest.toByteArray(getClass().getResourceAsStream("test" + i + ".hu01"));
+            for (int[] block : compressedBlocks(hu01)) {
+                int off = block[0];
+                int len = block[1];
+                int size = block[2];
+
+                short[] table = new short[0x8000];
+                assertTrue(HU01.build_decompression_table(ByteBuffer.wrap(hu01, off, 256).slice(), table));
+
+                // ByteBuffer based reference decoder on direct buffers
+                ByteBuffer source = ByteBuffer.allocateDirect(len - 256);
+                source.put(hu01, off + 256, len - 256).flip();
+                ByteBuffer destination = ByteBuffer.allocateDirect(size);
+                HU01.decompress_hu01_block(source, table, destination);
+                byte[] expected = new byte[size];
+                destination.get(expected);
+
+                // The original state machine on its own
+                ByteBuffer b = ByteBuffer.wrap(hu01, off + 256, 4).slice().order(ByteOrder.LITTLE_ENDIAN);
+                int bits = (b.getShort(0) << 16) | (b.getShort(2) & 0xffff);
+                byte[] actual = new byte[size];
+                assertEquals(size, HU01.decompress_hu01_block_tail(hu01, off + 260, off + len, table, actual, 0, 0, size, bits, 0x10));
+                assertArrayEquals("test" + i, expected, actual);
+                
+                // Input ending in the middle of the block
+                for (int cut = len - 256; cut > 4; cut = cut * 7 / 8) {
+                    byte[] truncated = new byte[size];
+                    int n = HU01.decompress_hu01_block_tail(hu01, off + 260, off + 256 + cut, table, truncated, 0, 0, size, bits, 0x10);
+                    actual = new byte[size];
+                    assertEquals(n, HU01.decompress_hu01_block(hu01, off + 256, cut, table, actual, 0, size));
+                    assertArrayEquals("test" + i, truncated, actual);
+                }
+
+                actual = new byte[size + 10];
+                assertEquals(size, HU01.decompress_hu01_block(hu01, off + 256, len - 256, table, actual, 5, size));
+                byte[] copy = new byte[size];
+                System.arraycopy(actual, 5, copy, 0, size);
+                assertArrayEquals("test" + i, expected, copy);
+
+                int[] multiTable = new int[HU01MultiSymbolDecoder.TABLE_SIZE];
+                HU01MultiSymbolDecoder.buildTable(table, multiTable);
+                actual = new byte[size];
+                assertEquals(size, HU01MultiSymbolDecoder.decompress(hu01, off + 256, len - 256, table, multiTable, actual, 0, size));
+                assertArrayEquals("test" + i, expected, actual);
+            }
+        }
+    }
+
+    /**
+     * Returns the offset, length and decompressed size of each compressed
+     * block in a HU01 stream.
+     */
+    static List<int[]> compressedBlocks(byte[] hu01) {
+        ByteBuffer b = ByteBuffer.wrap(hu01).order(ByteOrder.LITTLE_ENDIAN);
+        List<int[]> blocks = new ArrayList<int[]>();
+        int pos = b.getInt(4);
+        while (pos < hu01.length) {
+            int headerSize = b.getInt(pos + 4);
+            int decompressedSize = b.getInt(pos + 8);
+            int compressedSize = b.getInt(pos + 16);
+            if (compressedSize != decompressedSize) {
+                blocks.add(new int[] {pos + headerSize, compressedSize, decompressedSize});
+            }
+            pos += headerSize + compressedSize;
+        }
+        return blocks;
+    }
+}